@@ -0,0 +1,22 @@
+package org.subethamail.smtp;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The asynchronous variant of {@link HeaderCheckingMessageHandler}. The data
+ * stream is only passed to {@link #data(java.io.InputStream)} after the stage
+ * returned by {@link #headers(MessageHeaders)} has completed normally.
+ */
+public interface AsyncHeaderCheckingMessageHandler extends AsyncMessageHandler {
+
+    /**
+     * Called when the header block of the message has been received by the
+     * DATA or BDAT command.
+     *
+     * @param headers the header fields, including the trace header added by
+     * the server
+     * @return a stage which completes exceptionally with a
+     * {@link RejectException} if the message should be rejected
+     */
+    public CompletionStage<Void> headers(MessageHeaders headers);
+}
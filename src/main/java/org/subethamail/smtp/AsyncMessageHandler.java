@@ -0,0 +1,68 @@
+package org.subethamail.smtp;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The asynchronous variant of {@link MessageHandler}. The methods are called in
+ * the same order, but instead of blocking until the sender, a recipient or the
+ * message is accepted, they return a stage which completes when the decision
+ * is made, for example when a database or a message queue acknowledges the
+ * write. The reply to the client is sent when the stage completes.
+ * <p>
+ * A stage which completes normally accepts the command. To reject it, the
+ * stage completes exceptionally with a {@link RejectException}, or a
+ * {@link DropConnectionException} if the connection should be dropped as well.
+ * The next method is only called after the stage of the previous one has
+ * completed.
+ * <p>
+ * With the default thread per session model the session thread waits for the
+ * stage. On the non-blocking transport the session does not occupy a thread
+ * while the stage is pending, the commands pipelined by the client wait.
+ *
+ * @see AsyncMessageHandlerFactory
+ */
+public interface AsyncMessageHandler {
+
+    /**
+     * Called first, after the MAIL FROM during a SMTP exchange.
+     *
+     * @param from is the sender as specified by the client, validated like in
+     * {@link MessageHandler#from(String)}
+     * @return a stage which completes exceptionally with a
+     * {@link RejectException} if the sender should be denied
+     */
+    public CompletionStage<Void> from(String from);
+
+    /**
+     * Called once for every RCPT TO during a SMTP exchange.
+     *
+     * @param recipient is a rfc822-compliant email address, validated by the
+     * server.
+     * @return a stage which completes exceptionally with a
+     * {@link RejectException} if the recipient should be denied
+     */
+    public CompletionStage<Void> recipient(String recipient);
+
+    /**
+     * Called when the DATA or the BDAT part of the SMTP exchange begins.
+     * <p>
+     * The data stream is valid until the returned stage completes, it may be
+     * read on any thread. If the stream is not read to its end by then, the
+     * rest of the data is read and discarded.
+     *
+     * @param data will be the smtp data stream, stripped of any extra '.'
+     * chars.
+     * @return a stage which completes when the message is accepted, or which
+     * completes exceptionally with a {@link RejectException}, a
+     * {@link TooMuchDataException} or an {@link java.io.IOException}
+     */
+    public CompletionStage<Void> data(InputStream data);
+
+    /**
+     * Called after all other methods are completed, even if the mail
+     * transaction is aborted at some point after the initial from() call. If
+     * the connection is closed meanwhile, a stage may still be pending.
+     */
+    public void done();
+}
@@ -0,0 +1,17 @@
+package org.subethamail.smtp;
+
+/**
+ * Creates an {@link AsyncMessageHandler} for every message exchanged in an SMTP
+ * conversation. It replaces the {@link MessageHandlerFactory} if it is set by
+ * {@link org.subethamail.smtp.server.SMTPServer#setAsyncMessageHandlerFactory}.
+ */
+public interface AsyncMessageHandlerFactory {
+
+    /**
+     * Called for the exchange of a single message during an SMTP conversation.
+     *
+     * @param ctx provides information about the client.
+     * @return AsyncMessageHandler
+     */
+    public AsyncMessageHandler create(MessageContext ctx);
+}
@@ -0,0 +1,21 @@
+package org.subethamail.smtp;
+
+/**
+ * Publishes the content of a message as a sequence of {@link java.nio.ByteBuffer}
+ * chunks to a {@link BodySubscriber}, see
+ * {@link StreamingMessageHandler#data(BodyPublisher)}. It follows the contract
+ * of the Reactive Streams publisher, and of
+ * {@code java.util.concurrent.Flow.Publisher<ByteBuffer>} on Java 9 and later,
+ * so it can be adapted to those interfaces with a few lines of code.
+ */
+public interface BodyPublisher {
+
+    /**
+     * Subscribes to the message content. A publisher accepts a single
+     * subscriber, a second one receives an error.
+     *
+     * @param subscriber the subscriber which receives the chunks of the
+     * message
+     */
+    public void subscribe(BodySubscriber subscriber);
+}
@@ -0,0 +1,50 @@
+package org.subethamail.smtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the content of a message from a {@link BodyPublisher}. The methods
+ * are never called concurrently, and no more chunks are passed to
+ * {@link #onNext(ByteBuffer)} than were requested from the
+ * {@link BodySubscription}. The server does not read from the client while
+ * there is no demand, so a slow subscriber slows down the client instead of
+ * filling the memory of the server.
+ */
+public interface BodySubscriber {
+
+    /**
+     * Called first, before any other method.
+     *
+     * @param subscription the subscription, used to request chunks
+     */
+    public void onSubscribe(BodySubscription subscription);
+
+    /**
+     * Receives the next chunk of the message, stripped of any extra '.' chars.
+     * <p>
+     * The chunk is a read-only view of the receive buffer of the session, it
+     * is not copied. It must not be used after the publisher is allowed to
+     * read further: if there is outstanding demand when this method returns,
+     * the chunk is only valid until then, otherwise until the next call of
+     * {@link BodySubscription#request(long)} or
+     * {@link BodySubscription#cancel()}. A subscriber which keeps the data
+     * longer must copy it.
+     *
+     * @param chunk the next part of the message, it is not empty
+     */
+    public void onNext(ByteBuffer chunk);
+
+    /**
+     * Called if the message cannot be received completely, for example
+     * because the connection is broken. No other method is called afterwards.
+     *
+     * @param failure the cause
+     */
+    public void onError(Throwable failure);
+
+    /**
+     * Called after the last chunk of the message. No other method is called
+     * afterwards.
+     */
+    public void onComplete();
+}
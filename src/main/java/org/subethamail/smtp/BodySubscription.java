@@ -0,0 +1,24 @@
+package org.subethamail.smtp;
+
+/**
+ * The link between a {@link BodyPublisher} and its {@link BodySubscriber}. Its
+ * methods may be called on any thread, also from within the methods of the
+ * subscriber.
+ */
+public interface BodySubscription {
+
+    /**
+     * Adds the specified number of chunks to the demand of the subscriber.
+     *
+     * @param n the number of additional chunks, it must be positive, otherwise
+     * the subscriber receives an {@link IllegalArgumentException} through
+     * {@link BodySubscriber#onError(Throwable)}
+     */
+    public void request(long n);
+
+    /**
+     * Stops the delivery of chunks. The rest of the message is read and
+     * discarded by the server.
+     */
+    public void cancel();
+}
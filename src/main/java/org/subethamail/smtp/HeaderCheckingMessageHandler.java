@@ -0,0 +1,33 @@
+package org.subethamail.smtp;
+
+/**
+ * A {@link MessageHandler} which examines the header fields of a message
+ * before the body is received. If it rejects the message, the server skips the
+ * rest of the message without passing it to the handler, so policy decisions
+ * based on the headers are cheap even for large messages. The methods are
+ * called in the following order:
+ *
+ * <ol>
+ * <li><code>from()</code></li>
+ * <li><code>recipient()</code> (possibly more than once)</li>
+ * <li><code>headers()</code></li>
+ * <li><code>data()</code>, only if the headers are accepted</li>
+ * <li><code>done()</code></li>
+ * </ol>
+ *
+ * @see AsyncHeaderCheckingMessageHandler
+ */
+public interface HeaderCheckingMessageHandler extends MessageHandler {
+
+    /**
+     * Called when the header block of the message has been received by the
+     * DATA or BDAT command. The data stream passed to
+     * {@link #data(java.io.InputStream)} afterwards still begins with the
+     * header block.
+     *
+     * @param headers the header fields, including the trace header added by
+     * the server
+     * @throws RejectException if the message should be rejected
+     */
+    public void headers(MessageHeaders headers) throws RejectException;
+}
@@ -55,4 +55,45 @@ public interface MessageContext {
      */
     Certificate[] getTlsPeerCertificates();
 
+    /**
+     * @return the size of the message which the client declared with the SIZE
+     * parameter of the MAIL command, or 0 if it did not declare one. The
+     * default implementation returns 0.
+     */
+    public default int getDeclaredMessageSize() {
+        return 0;
+    }
+
+    /**
+     * Returns the header fields of the message which is being received. They
+     * are parsed once by the server, if it is configured to do so with
+     * {@link org.subethamail.smtp.server.SMTPServer#setParseHeaders(boolean)},
+     * or if the message handler is a {@link HeaderCheckingMessageHandler}.
+     * They are available when the message handler receives the message
+     * content, which still begins with the header block. Skipping
+     * {@link MessageHeaders#getLength()} bytes of it positions the stream at
+     * the body.
+     *
+     * @return the header fields, or null if they are not parsed, which the
+     * default implementation always returns
+     */
+    public default MessageHeaders getMessageHeaders() {
+        return null;
+    }
+
+    /**
+     * Returns the digests and the length of the message which is being
+     * received, if the server computes them, see
+     * {@link org.subethamail.smtp.server.SMTPServer#setMessageDigests(String...)}.
+     * They are available as soon as the message content has been read to its
+     * end, at the latest when {@link MessageHandler#done()} is called after an
+     * accepted message.
+     *
+     * @return the digests, or null if they are not computed or the message
+     * has not been read to its end yet, which the default implementation
+     * always returns
+     */
+    public default MessageDigests getMessageDigests() {
+        return null;
+    }
 }
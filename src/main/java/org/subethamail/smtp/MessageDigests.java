@@ -0,0 +1,80 @@
+package org.subethamail.smtp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The digests and the length of a message, computed by the server while the
+ * message content was received, see
+ * {@link org.subethamail.smtp.server.SMTPServer#setMessageDigests(String...)}.
+ * They cover the content as sent by the client, after dot unstuffing and
+ * without the Received header added by the server.
+ */
+public final class MessageDigests {
+
+    private final Map<String, byte[]> digests;
+    private final long length;
+
+    /**
+     * @param digests the digests by algorithm name, in the order of the
+     * configuration. The arrays are not copied.
+     * @param length the number of bytes of the message
+     */
+    public MessageDigests(Map<String, byte[]> digests, long length) {
+        this.digests = Collections.unmodifiableMap(new LinkedHashMap<>(digests));
+        this.length = length;
+    }
+
+    /**
+     * @return the number of bytes of the message
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return the names of the algorithms, as they were configured
+     */
+    public Set<String> getAlgorithms() {
+        return this.digests.keySet();
+    }
+
+    /**
+     * @param algorithm the name of the algorithm, as it was configured
+     * @return the digest, or null if it was not computed. A checksum such as
+     * CRC32 is returned as four bytes in big-endian order.
+     */
+    public byte[] get(String algorithm) {
+        byte[] digest = this.digests.get(algorithm);
+        return digest == null ? null : digest.clone();
+    }
+
+    /**
+     * @param algorithm the name of the algorithm, as it was configured
+     * @return the digest in lower case hexadecimal, or null if it was not
+     * computed
+     */
+    public String getHex(String algorithm) {
+        byte[] digest = this.digests.get(algorithm);
+        if (digest == null) {
+            return null;
+        }
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("length=").append(this.length);
+        for (String algorithm : this.digests.keySet()) {
+            result.append(", ").append(algorithm).append('=').append(this.getHex(algorithm));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,225 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The header fields of a message (RFC 5322), as received by the server. The
+ * fields are kept in their raw form, only the positions of the fields are
+ * recorded while parsing. Names and values are decoded when they are asked
+ * for, so a handler which looks at a few fields does not pay for the others.
+ * <p>
+ * Values are unfolded, and leading and trailing whitespace is removed.
+ * Encoded words (RFC 2047) are not decoded. Raw bytes are decoded as UTF-8,
+ * which covers both ASCII and internationalized headers (RFC 6532).
+ */
+public final class MessageHeaders {
+
+    private final byte[] block;
+    private final int length;
+
+    /**
+     * For each field the offset of its first byte, of the colon, and of the
+     * line break which ends it.
+     */
+    private final int[] starts;
+    private final int[] colons;
+    private final int[] ends;
+    private final int size;
+
+    private MessageHeaders(byte[] block, int length, int[] starts, int[] colons, int[] ends, int size) {
+        this.block = block;
+        this.length = length;
+        this.starts = starts;
+        this.colons = colons;
+        this.ends = ends;
+        this.size = size;
+    }
+
+    /**
+     * Parses a header block. Lines without a colon, which are invalid, are
+     * skipped.
+     *
+     * @param block the header block, including the empty line which ends it,
+     * if it was received. It is not copied.
+     * @param length the length of the header block in the array
+     * @return the parsed fields
+     */
+    public static MessageHeaders parse(byte[] block, int length) {
+        int[] starts = new int[16];
+        int[] colons = new int[16];
+        int[] ends = new int[16];
+        int size = 0;
+
+        int position = 0;
+        while (position < length) {
+            int lineEnd = endOfLine(block, position, length);
+            if (lineEnd == position || (lineEnd == position + 1 && block[position] == '\r')) {
+                // the empty line which ends the block
+                break;
+            }
+            // continuation lines of the field
+            int fieldEnd = lineEnd;
+            int next = Math.min(lineEnd + 1, length);
+            while (next < length && (block[next] == ' ' || block[next] == '\t')) {
+                fieldEnd = endOfLine(block, next, length);
+                next = Math.min(fieldEnd + 1, length);
+            }
+
+            int colon = indexOf(block, (byte) ':', position, lineEnd);
+            if (colon > position) {
+                if (size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    colons = Arrays.copyOf(colons, size * 2);
+                    ends = Arrays.copyOf(ends, size * 2);
+                }
+                starts[size] = position;
+                colons[size] = colon;
+                ends[size] = fieldEnd;
+                size++;
+            }
+            position = next;
+        }
+        return new MessageHeaders(block, length, starts, colons, ends, size);
+    }
+
+    /**
+     * @return the offset of the next LF, or the length if there is none
+     */
+    private static int endOfLine(byte[] block, int from, int length) {
+        int i = indexOf(block, (byte) '\n', from, length);
+        return i == -1 ? length : i;
+    }
+
+    private static int indexOf(byte[] block, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (block[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of fields
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param index the index of the field, in the order of the message
+     * @return the name of the field
+     */
+    public String getName(int index) {
+        this.checkIndex(index);
+        return decode(this.block, this.starts[index], this.colons[index]).trim();
+    }
+
+    /**
+     * @param index the index of the field, in the order of the message
+     * @return the unfolded value of the field
+     */
+    public String getValue(int index) {
+        this.checkIndex(index);
+        String value = decode(this.block, this.colons[index] + 1, this.ends[index]);
+        return value.replaceAll("\r?\n(?=[ \t])", "").trim();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + this.size);
+        }
+    }
+
+    /**
+     * @param name the name of the field, case insensitive
+     * @return the value of the first field with the name, or null if there is
+     * none
+     */
+    public String get(String name) {
+        int index = this.indexOf(name, 0);
+        return index == -1 ? null : this.getValue(index);
+    }
+
+    /**
+     * @param name the name of the field, case insensitive
+     * @return the values of all fields with the name, in the order of the
+     * message
+     */
+    public List<String> getAll(String name) {
+        List<String> result = null;
+        for (int index = this.indexOf(name, 0); index != -1; index = this.indexOf(name, index + 1)) {
+            if (result == null) {
+                result = new ArrayList<>();
+            }
+            result.add(this.getValue(index));
+        }
+        return result == null ? Collections.<String>emptyList() : result;
+    }
+
+    /**
+     * @return true if there is a field with the name, case insensitive
+     */
+    public boolean contains(String name) {
+        return this.indexOf(name, 0) != -1;
+    }
+
+    /**
+     * Compares the name with the raw field names, without decoding them.
+     *
+     * @return the index of the first matching field from the specified index,
+     * or -1
+     */
+    private int indexOf(String name, int from) {
+        for (int i = from; i < this.size; i++) {
+            int start = this.starts[i];
+            int end = this.colons[i];
+            while (end > start && (this.block[end - 1] == ' ' || this.block[end - 1] == '\t')) {
+                end--;
+            }
+            if (end - start == name.length() && this.matches(name, start)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(String name, int start) {
+        for (int j = 0; j < name.length(); j++) {
+            char c = (char) (this.block[start + j] & 0xff);
+            if (Character.toLowerCase(c) != Character.toLowerCase(name.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the raw header block, as received
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(this.block, 0, this.length);
+    }
+
+    /**
+     * @return the length of the raw header block in bytes
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    private static String decode(byte[] block, int from, int to) {
+        return new String(block, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return decode(this.block, 0, this.length);
+    }
+}
@@ -0,0 +1,38 @@
+package org.subethamail.smtp;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An {@link AsyncMessageHandler} which receives the message content as
+ * {@link java.nio.ByteBuffer} chunks pushed by the server, instead of pulling
+ * it through an {@link InputStream}. The chunks are taken directly from the
+ * receive buffer of the session, so a handler which forwards the content to a
+ * channel, a message queue or a storage service avoids copying it into its
+ * own buffers. The delivery is driven by the demand of the subscriber, see
+ * {@link BodySubscriber}.
+ * <p>
+ * If an {@link AsyncMessageHandler} created by the
+ * {@link AsyncMessageHandlerFactory} implements this interface, the DATA and
+ * BDAT commands call {@link #data(BodyPublisher)}, and never
+ * {@link #data(InputStream)}.
+ */
+public interface StreamingMessageHandler extends AsyncMessageHandler {
+
+    /**
+     * Called when the DATA or the BDAT part of the SMTP exchange begins. The
+     * handler subscribes to the publisher, during this call or later on any
+     * thread.
+     * <p>
+     * The server pushes the chunks on the session thread, which waits while
+     * there is no demand, up to the connection timeout. When the returned stage
+     * completes, the delivery stops, and the rest of the message is read and
+     * discarded.
+     *
+     * @param body the publisher of the message content
+     * @return a stage which completes when the message is accepted, or which
+     * completes exceptionally with a {@link RejectException}, a
+     * {@link TooMuchDataException} or an {@link java.io.IOException}
+     */
+    public CompletionStage<Void> data(BodyPublisher body);
+}
@@ -0,0 +1,438 @@
+package org.subethamail.smtp.command;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CompletionStage;
+import org.subethamail.smtp.AsyncHeaderCheckingMessageHandler;
+import org.subethamail.smtp.AsyncMessageHandler;
+import org.subethamail.smtp.DropConnectionException;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.StreamingMessageHandler;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.io.ChunkSource;
+import org.subethamail.smtp.io.CRLFTerminatedReader;
+import org.subethamail.smtp.io.DigestingInputStream;
+import org.subethamail.smtp.io.HeaderBlockReader;
+import org.subethamail.smtp.io.ReceivedHeaderStream;
+import org.subethamail.smtp.server.BaseCommand;
+import org.subethamail.smtp.server.ChunkPublisher;
+import org.subethamail.smtp.server.CommandContinuation;
+import org.subethamail.smtp.server.CompletionResult;
+import org.subethamail.smtp.server.Session;
+
+/**
+ * Implements the BDAT command of the CHUNKING extension (RFC 3030). The
+ * message content is transferred in chunks of declared size, so it is passed to
+ * the message handler with bulk reads, without looking for the terminating dot
+ * and without dot unstuffing. This is also the only way to transfer a message
+ * declared with BODY=BINARYMIME.
+ * <p>
+ * The message handler receives all chunks of a message in a single
+ * {@link org.subethamail.smtp.MessageHandler#data(InputStream)} call, or
+ * through a single publisher if it is a
+ * {@link StreamingMessageHandler}. When a
+ * chunk is exhausted, the stream reads the following BDAT command itself and
+ * continues with the next chunk. A command other than BDAT between the chunks
+ * aborts the message, and the command is executed as usual.
+ */
+public class BdatCommand extends BaseCommand {
+
+    /**
+     *
+     */
+    public static final String VERB = "BDAT";
+
+    /**
+     * The size of the buffer used to discard unwanted chunks.
+     */
+    private static final int DISCARD_BUFFER_SIZE = 8192;
+
+    /**
+     *
+     */
+    public BdatCommand() {
+        super(VERB,
+                "Transfers a chunk of the message content of the given size.\n"
+                + "The last chunk of the message is marked by LAST.",
+                "<chunk-size> [LAST]");
+    }
+
+    /**
+     *
+     * @param sess
+     * @throws java.io.IOException
+     * @throws org.subethamail.smtp.DropConnectionException
+     */
+    @Override
+    public void execute(String commandString, final Session sess)
+            throws IOException, DropConnectionException {
+        Chunk chunk = Chunk.parse(this.getArgs(commandString));
+        if (chunk == null) {
+            // the size of the chunk is unknown, so it cannot be skipped
+            sess.sendResponse("501 Syntax: BDAT <chunk-size> [LAST]");
+            return;
+        }
+
+        // The chunk follows the command without waiting for a response, so it
+        // must be consumed even if it is rejected. Commands which are required
+        // before BDAT check TLS and authentication, so if a transaction is in
+        // progress, those requirements are met.
+        if (!sess.isMailTransactionInProgress()) {
+            discard(sess.getRawInput(), chunk.size);
+            sess.sendResponse("503 5.5.1 Error: need MAIL command");
+            return;
+        } else if (sess.getRecipientCount() == 0) {
+            discard(sess.getRawInput(), chunk.size);
+            sess.sendResponse("503 Error: need RCPT command");
+            return;
+        } else if (DataCommand.isMemoryExhausted(sess)) {
+            // as with any rejected chunk, the transaction is reset, so
+            // pipelined chunks are discarded
+            discard(sess.getRawInput(), chunk.size);
+            sess.sendResponse("452 4.3.1 Insufficient system storage");
+            sess.resetMailTransaction();
+            return;
+        } else if (exceedsMaxMessageSize(sess, chunk.size)) {
+            discard(sess.getRawInput(), chunk.size);
+            sess.sendResponse("552 5.3.4 Message size exceeds fixed limit");
+            sess.resetMailTransaction();
+            return;
+        }
+
+        final ChunkedInputStream chunks = new ChunkedInputStream(sess, chunk);
+        AsyncMessageHandler handler = sess.getAsyncMessageHandler();
+        CompletionStage<Void> stage;
+        if (handler instanceof StreamingMessageHandler) {
+            ChunkPublisher publisher = new ChunkPublisher(sess, chunks);
+            stage = ((StreamingMessageHandler) handler).data(publisher);
+            try {
+                publisher.publish(stage);
+            } catch (IOException ex) {
+                if (chunks.interruptingCommand != null) {
+                    abort(chunks.interruptingCommand, sess);
+                    return;
+                } else if (!chunks.tooMuchData) {
+                    throw ex;
+                }
+                // the subscriber has received it, the chunk is discarded below
+            }
+        } else {
+            InputStream stream = chunks;
+            DigestingInputStream digester = DataCommand.digester(sess, stream);
+            if (digester != null) {
+                stream = digester;
+            }
+            if (!sess.getServer().getDisableReceivedHeaders()) {
+                stream = new ReceivedHeaderStream(stream, sess.getHelo(), sess
+                        .getRemoteAddress().getAddress(), sess.getServer()
+                                .getHostName(), sess.getServer().getSoftwareName(),
+                        sess.getSessionId(), sess.getSingleRecipient());
+            }
+            if (handler instanceof AsyncHeaderCheckingMessageHandler
+                    || sess.getServer().isParseHeaders()) {
+                this.readHeaders(sess, handler, stream,
+                        new DataContinuation(sess, chunks, digester));
+                return;
+            }
+            stage = handler.data(stream);
+            sess.whenComplete(stage, new DataContinuation(sess, chunks, digester));
+            return;
+        }
+
+        sess.whenComplete(stage, new DataContinuation(sess, chunks, null));
+    }
+
+    /**
+     * Reads the header block before the message is passed to the handler, and
+     * gives a header checking handler the chance to reject it.
+     */
+    private void readHeaders(final Session sess, final AsyncMessageHandler handler,
+            InputStream stream, final DataContinuation continuation)
+            throws IOException, DropConnectionException {
+        final HeaderBlockReader reader = new HeaderBlockReader(stream,
+                HeaderBlockReader.DEFAULT_MAX_LENGTH);
+        CompletionStage<Void> stage = DataCommand.headers(sess, handler, reader);
+
+        sess.whenComplete(stage, new CommandContinuation<Void>() {
+            @Override
+            public void proceed(CompletionResult<Void> result)
+                    throws IOException, DropConnectionException {
+                try {
+                    result.get();
+                } catch (RejectException | IOException ex) {
+                    // A rejection discards the rest of the current chunk
+                    // with bulk reads, like a rejection of the message.
+                    continuation.proceed(result);
+                    return;
+                }
+                sess.whenComplete(handler.data(reader.getMessage()), continuation);
+            }
+        });
+    }
+
+    /**
+     * Aborts the message because the client sent another command between the
+     * chunks, and executes that command.
+     */
+    private void abort(String commandString, Session sess)
+            throws IOException, DropConnectionException {
+        sess.resetMailTransaction();
+        sess.getServer().getCommandHandler().handleCommand(sess, commandString);
+    }
+
+    /**
+     * @return true if the server limits the message size and the specified
+     * total exceeds it
+     */
+    private static boolean exceedsMaxMessageSize(Session sess, long total) {
+        int maxMessageSize = sess.getServer().getMaxMessageSize();
+        return maxMessageSize > 0 && total > maxMessageSize;
+    }
+
+    /**
+     * Reads and throws away the specified number of bytes.
+     */
+    private static void discard(InputStream in, long count) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(DISCARD_BUFFER_SIZE, Math.max(count, 1))];
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read == -1) {
+                throw new EOFException("Pre-mature end of BDAT chunk");
+            }
+            count -= read;
+        }
+    }
+
+    /**
+     * The arguments of a BDAT command.
+     */
+    private static class Chunk {
+
+        final long size;
+        final boolean last;
+
+        private Chunk(long size, boolean last) {
+            this.size = size;
+            this.last = last;
+        }
+
+        /**
+         * @param args the command split into words
+         * @return the chunk, or null if the syntax of the command is invalid
+         */
+        static Chunk parse(String[] args) {
+            if (args.length < 2 || args.length > 3
+                    || !args[0].equalsIgnoreCase(VERB)
+                    || !args[1].matches("[0-9]{1,18}")) {
+                return null;
+            }
+            boolean last = args.length == 3;
+            if (last && !args[2].toUpperCase(Locale.ENGLISH).equals("LAST")) {
+                return null;
+            }
+            return new Chunk(Long.parseLong(args[1]), last);
+        }
+    }
+
+    /**
+     * Concatenates the chunks of a message. When a chunk which is not the last
+     * one has been read, it answers that chunk and reads the next BDAT command
+     * from the client.
+     */
+    private class ChunkedInputStream extends InputStream implements ChunkSource {
+
+        private final Session sess;
+        private final CRLFTerminatedReader reader;
+        private final InputStream in;
+
+        /**
+         * The number of unread bytes in the current chunk.
+         */
+        long remaining;
+        /**
+         * True if the current chunk is the last one.
+         */
+        boolean last;
+        /**
+         * The number of bytes in the chunks received so far.
+         */
+        long total;
+        /**
+         * The command line received in place of the next BDAT command, or null.
+         */
+        String interruptingCommand;
+        /**
+         * True if the current chunk would exceed the maximum message size, it
+         * is not passed to the handler.
+         */
+        boolean tooMuchData;
+
+        ChunkedInputStream(Session sess, Chunk first) {
+            this.sess = sess;
+            this.reader = sess.getReader();
+            this.in = sess.getRawInput();
+            this.remaining = first.size;
+            this.last = first.last;
+            this.total = first.size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.nextChunkIfNeeded()) {
+                return -1;
+            }
+            int b = this.in.read();
+            if (b == -1) {
+                throw new EOFException("Pre-mature end of BDAT chunk");
+            }
+            this.remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.nextChunkIfNeeded()) {
+                return -1;
+            }
+            int count = this.in.read(b, off, (int) Math.min(len, this.remaining));
+            if (count == -1) {
+                throw new EOFException("Pre-mature end of BDAT chunk");
+            }
+            this.remaining -= count;
+            return count;
+        }
+
+        @Override
+        public ByteBuffer nextChunk() throws IOException {
+            if (!this.nextChunkIfNeeded()) {
+                return null;
+            }
+            ByteBuffer chunk = this.reader.readBuffer((int) Math.min(Integer.MAX_VALUE, this.remaining));
+            if (chunk == null) {
+                throw new EOFException("Pre-mature end of BDAT chunk");
+            }
+            this.remaining -= chunk.remaining();
+            return chunk;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(this.in.available(), this.remaining);
+        }
+
+        /**
+         * Reads the rest of the message.
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[DISCARD_BUFFER_SIZE];
+            while (this.read(buffer, 0, buffer.length) != -1);
+        }
+
+        /**
+         * Moves to the next chunk if the current one is exhausted.
+         *
+         * @return false if the last chunk has been read
+         */
+        private boolean nextChunkIfNeeded() throws IOException {
+            if (this.tooMuchData) {
+                throw new TooMuchDataException("Message size exceeds fixed limit");
+            }
+            while (this.remaining == 0) {
+                if (this.last || this.interruptingCommand != null) {
+                    return false;
+                }
+
+                this.sess.queueResponse("250 " + this.total + " octets received");
+
+                String line = this.sess.readCommandLine();
+                if (line == null) {
+                    throw new EOFException("Pre-mature end of BDAT chunks");
+                }
+                Chunk chunk = Chunk.parse(BdatCommand.this.getArgs(line));
+                if (chunk == null) {
+                    this.interruptingCommand = line;
+                    throw new IOException("BDAT chunks interrupted by another command");
+                }
+                this.remaining = chunk.size;
+                this.last = chunk.last;
+                if (exceedsMaxMessageSize(this.sess, this.total + chunk.size)) {
+                    this.tooMuchData = true;
+                    throw new TooMuchDataException("Message size exceeds fixed limit");
+                }
+                this.total += chunk.size;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Answers the message after the handler has processed it.
+     */
+    private class DataContinuation implements CommandContinuation<Void> {
+
+        private final Session sess;
+        private final ChunkedInputStream chunks;
+        private final DigestingInputStream digester;
+
+        DataContinuation(Session sess, ChunkedInputStream chunks, DigestingInputStream digester) {
+            this.sess = sess;
+            this.chunks = chunks;
+            this.digester = digester;
+        }
+
+        @Override
+        public void proceed(CompletionResult<Void> result)
+                throws IOException, DropConnectionException {
+            if (this.chunks.tooMuchData) {
+                // Whatever the handler made of it, the message is too big.
+                // The chunk which exceeds the limit is discarded without
+                // passing it to the handler, further pipelined chunks are
+                // discarded because the transaction is reset.
+                discard(this.sess.getRawInput(), this.chunks.remaining);
+                this.sess.sendResponse("552 5.3.4 Message size exceeds fixed limit");
+                this.sess.resetMailTransaction();
+                return;
+            }
+
+            try {
+                result.get();
+
+                // As in DATA, consume whatever the handler left unread.
+                if (this.digester != null) {
+                    while (this.digester.skip(Long.MAX_VALUE) > 0);
+                } else {
+                    this.chunks.drain();
+                }
+            } catch (DropConnectionException ex) {
+                throw ex; // Propagate this
+            } catch (RejectException ex) {
+                if (this.chunks.interruptingCommand != null) {
+                    abort(this.chunks.interruptingCommand, this.sess);
+                    return;
+                }
+                // The client must not send further chunks after an error,
+                // those which are already pipelined are discarded, because
+                // the transaction is reset.
+                discard(this.sess.getRawInput(), this.chunks.remaining);
+                this.sess.sendResponse(ex.getErrorResponse());
+                this.sess.resetMailTransaction();
+                return;
+            } catch (IOException ex) {
+                if (this.chunks.interruptingCommand != null) {
+                    abort(this.chunks.interruptingCommand, this.sess);
+                    return;
+                }
+                throw ex;
+            }
+
+            this.sess.sendResponse("250 Message OK, " + this.chunks.total + " octets received");
+            this.sess.resetMailTransaction();
+        }
+    }
+}
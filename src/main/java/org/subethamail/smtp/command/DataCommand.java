@@ -1,14 +1,30 @@
 package org.subethamail.smtp.command;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.subethamail.smtp.AsyncHeaderCheckingMessageHandler;
+import org.subethamail.smtp.AsyncMessageHandler;
 import org.subethamail.smtp.DropConnectionException;
+import org.subethamail.smtp.MessageHeaders;
 import org.subethamail.smtp.RejectException;
-import org.subethamail.smtp.io.DotTerminatedInputStream;
-import org.subethamail.smtp.io.DotUnstuffingInputStream;
+import org.subethamail.smtp.StreamingMessageHandler;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.io.ChunkSource;
+import org.subethamail.smtp.io.DigestingInputStream;
+import org.subethamail.smtp.io.DotTerminatedChunkReader;
+import org.subethamail.smtp.io.DotTerminatedUnstuffingInputStream;
+import org.subethamail.smtp.io.HeaderBlockReader;
+import org.subethamail.smtp.io.MemoryBudget;
 import org.subethamail.smtp.io.ReceivedHeaderStream;
+import org.subethamail.smtp.io.SizeLimitedChunkSource;
+import org.subethamail.smtp.io.SizeLimitedInputStream;
 import org.subethamail.smtp.server.BaseCommand;
+import org.subethamail.smtp.server.ChunkPublisher;
+import org.subethamail.smtp.server.CommandContinuation;
+import org.subethamail.smtp.server.CompletionResult;
 import org.subethamail.smtp.server.Session;
 
 /**
@@ -18,8 +34,6 @@ import org.subethamail.smtp.server.Session;
  */
 public class DataCommand extends BaseCommand {
 
-    private final static int BUFFER_SIZE = 1024 * 32;	// 32k seems reasonable
-
     /**
      *
      */
@@ -36,7 +50,7 @@ public class DataCommand extends BaseCommand {
      * @throws org.subethamail.smtp.DropConnectionException
      */
     @Override
-    public void execute(String commandString, Session sess)
+    public void execute(String commandString, final Session sess)
             throws IOException, DropConnectionException {
         if (!sess.isMailTransactionInProgress()) {
             sess.sendResponse("503 5.5.1 Error: need MAIL command");
@@ -44,37 +58,243 @@ public class DataCommand extends BaseCommand {
         } else if (sess.getRecipientCount() == 0) {
             sess.sendResponse("503 Error: need RCPT command");
             return;
+        } else if (sess.isBinaryMime()) {
+            // RFC 3030: BINARYMIME content cannot be dot terminated
+            sess.sendResponse("503 5.5.1 Error: BODY=BINARYMIME requires BDAT");
+            return;
+        } else if (isMemoryExhausted(sess)) {
+            sess.sendResponse("452 4.3.1 Insufficient system storage");
+            return;
         }
 
         sess.sendResponse("354 End data with <CR><LF>.<CR><LF>");
 
-        InputStream stream = sess.getRawInput();
-        stream = new BufferedInputStream(stream, BUFFER_SIZE);
-        stream = new DotTerminatedInputStream(stream);
-        stream = new DotUnstuffingInputStream(stream);
-        if (!sess.getServer().getDisableReceivedHeaders()) {
-            stream = new ReceivedHeaderStream(stream, sess.getHelo(), sess
-                    .getRemoteAddress().getAddress(), sess.getServer()
-                            .getHostName(), sess.getServer().getSoftwareName(),
-                    sess.getSessionId(), sess.getSingleRecipient());
+        AsyncMessageHandler handler = sess.getAsyncMessageHandler();
+        int maxMessageSize = sess.getServer().getMaxMessageSize();
+        InputStream stream;
+        ChunkSource chunks;
+        SizeLimitedInputStream limitedStream;
+        SizeLimitedChunkSource limitedChunks;
+        CompletionStage<Void> stage;
+        if (handler instanceof StreamingMessageHandler) {
+            stream = null;
+            chunks = new DotTerminatedChunkReader(sess.getReader());
+            limitedStream = null;
+            limitedChunks = maxMessageSize > 0 ? new SizeLimitedChunkSource(chunks, maxMessageSize) : null;
+            ChunkPublisher publisher = new ChunkPublisher(sess, limitedChunks != null ? limitedChunks : chunks);
+            stage = ((StreamingMessageHandler) handler).data(publisher);
+            try {
+                publisher.publish(stage);
+            } catch (TooMuchDataException ex) {
+                // the subscriber has received it, the rest is discarded below
+            }
+        } else {
+            stream = new DotTerminatedUnstuffingInputStream(sess.getReader());
+            chunks = null;
+            limitedChunks = null;
+            limitedStream = maxMessageSize > 0 ? new SizeLimitedInputStream(stream, maxMessageSize) : null;
+            InputStream dataStream = limitedStream != null ? limitedStream : stream;
+            DigestingInputStream digester = digester(sess, dataStream);
+            if (digester != null) {
+                dataStream = digester;
+            }
+            if (!sess.getServer().getDisableReceivedHeaders()) {
+                dataStream = new ReceivedHeaderStream(dataStream, sess.getHelo(), sess
+                        .getRemoteAddress().getAddress(), sess.getServer()
+                                .getHostName(), sess.getServer().getSoftwareName(),
+                        sess.getSessionId(), sess.getSingleRecipient());
+            }
+            if (handler instanceof AsyncHeaderCheckingMessageHandler
+                    || sess.getServer().isParseHeaders()) {
+                this.readHeaders(sess, handler, dataStream,
+                        new DataContinuation(sess, stream, null, limitedStream, null, digester));
+                return;
+            }
+            stage = handler.data(dataStream);
+            sess.whenComplete(stage, new DataContinuation(sess, stream, null,
+                    limitedStream, null, digester));
+            return;
         }
 
+        sess.whenComplete(stage, new DataContinuation(sess, stream, chunks,
+                limitedStream, limitedChunks, null));
+    }
+
+    /**
+     * Reads the header block before the message is passed to the handler, and
+     * gives a header checking handler the chance to reject it.
+     */
+    private void readHeaders(final Session sess, final AsyncMessageHandler handler,
+            InputStream dataStream, final DataContinuation continuation)
+            throws IOException, DropConnectionException {
+        final HeaderBlockReader reader = new HeaderBlockReader(dataStream,
+                HeaderBlockReader.DEFAULT_MAX_LENGTH);
+        CompletionStage<Void> stage = headers(sess, handler, reader);
+
+        sess.whenComplete(stage, new CommandContinuation<Void>() {
+            @Override
+            public void proceed(CompletionResult<Void> result)
+                    throws IOException, DropConnectionException {
+                if (!continuation.isExceeded()) {
+                    try {
+                        result.get();
+                        sess.whenComplete(handler.data(reader.getMessage()), continuation);
+                        return;
+                    } catch (DropConnectionException ex) {
+                        throw ex; // Propagate this
+                    } catch (RejectException ex) {
+                        if (!continuation.isExceeded()) {
+                            // The body is skipped with bulk reads, without
+                            // passing it to the handler.
+                            continuation.skipRest();
+                            sess.sendResponse(ex.getErrorResponse());
+                            sess.resetMailTransaction();
+                            return;
+                        }
+                    } catch (TooMuchDataException ex) {
+                        if (!continuation.isExceeded()) {
+                            throw ex;
+                        }
+                    }
+                }
+                // the header block alone is too big
+                continuation.proceed(result);
+            }
+        });
+    }
+
+    /**
+     * Reads the header block and makes it available through the session.
+     *
+     * @return the stage returned by a header checking handler, or a completed
+     * stage, which fails if the header block cannot be read
+     */
+    static CompletionStage<Void> headers(Session sess, AsyncMessageHandler handler,
+            HeaderBlockReader reader) {
+        MessageHeaders headers;
         try {
-            sess.getMessageHandler().data(stream);
-
-            // Just in case the handler didn't consume all the data, we might as well
-            // suck it up so it doesn't pollute further exchanges.  This code used to
-            // throw an exception, but this seems an arbitrary part of the contract that
-            // we might as well relax.
-            while (stream.read() != -1);
-        } catch (DropConnectionException ex) {
-            throw ex; // Propagate this
-        } catch (RejectException ex) {
-            sess.sendResponse(ex.getErrorResponse());
-            return;
+            headers = reader.read();
+        } catch (IOException ex) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+        sess.setMessageHeaders(headers);
+        if (handler instanceof AsyncHeaderCheckingMessageHandler) {
+            return ((AsyncHeaderCheckingMessageHandler) handler).headers(headers);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Starts computing the digests of the message, if the server is
+     * configured to do so, and makes them available through the session.
+     *
+     * @return the stream which computes the digests, or null
+     */
+    static DigestingInputStream digester(Session sess, InputStream in) {
+        List<String> algorithms = sess.getServer().getMessageDigests();
+        if (algorithms.isEmpty()) {
+            return null;
         }
+        DigestingInputStream digester = new DigestingInputStream(in, algorithms);
+        sess.setMessageDigester(digester);
+        return digester;
+    }
+
+    /**
+     * @return true if the server has no memory left to buffer another message
+     */
+    static boolean isMemoryExhausted(Session sess) {
+        MemoryBudget budget = sess.getServer().getMemoryBudget();
+        return budget != null && budget.isExhausted();
+    }
+
+    /**
+     * Answers the message after the handler has processed it.
+     */
+    private static class DataContinuation implements CommandContinuation<Void> {
+
+        private final Session sess;
+        private final InputStream stream;
+        private final ChunkSource chunks;
+        private final SizeLimitedInputStream limitedStream;
+        private final SizeLimitedChunkSource limitedChunks;
+        private final DigestingInputStream digester;
 
-        sess.sendResponse("250 Ok");
-        sess.resetMailTransaction();
+        DataContinuation(Session sess, InputStream stream, ChunkSource chunks,
+                SizeLimitedInputStream limitedStream, SizeLimitedChunkSource limitedChunks,
+                DigestingInputStream digester) {
+            this.sess = sess;
+            this.stream = stream;
+            this.chunks = chunks;
+            this.limitedStream = limitedStream;
+            this.limitedChunks = limitedChunks;
+            this.digester = digester;
+        }
+
+        @Override
+        public void proceed(CompletionResult<Void> result)
+                throws IOException, DropConnectionException {
+            // Once the message is too big, the handler result does not
+            // matter anymore
+            if (!this.isExceeded()) {
+                try {
+                    result.get();
+
+                    // Just in case the handler didn't consume all the data, we might as well
+                    // suck it up so it doesn't pollute further exchanges.  This code used to
+                    // throw an exception, but this seems an arbitrary part of the contract that
+                    // we might as well relax.
+                    if (this.limitedChunks != null) {
+                        while (this.limitedChunks.nextChunk() != null);
+                    } else if (this.digester != null) {
+                        // the digests cover the whole message
+                        while (this.digester.skip(Long.MAX_VALUE) > 0);
+                    } else if (this.limitedStream != null) {
+                        while (this.limitedStream.skip(Long.MAX_VALUE) > 0);
+                    }
+                } catch (DropConnectionException ex) {
+                    throw ex; // Propagate this
+                } catch (RejectException ex) {
+                    if (!this.isExceeded()) {
+                        // the handler may not have read the whole message
+                        this.skipRest();
+                        this.sess.sendResponse(ex.getErrorResponse());
+                        this.sess.resetMailTransaction();
+                        return;
+                    }
+                } catch (TooMuchDataException ex) {
+                    if (!this.isExceeded()) {
+                        throw ex;
+                    }
+                }
+            }
+
+            this.skipRest();
+
+            if (this.isExceeded()) {
+                this.sess.sendResponse("552 5.3.4 Message size exceeds fixed limit");
+            } else {
+                this.sess.sendResponse("250 Ok");
+            }
+            this.sess.resetMailTransaction();
+        }
+
+        /**
+         * Skips the rest of the message without passing it to the handler.
+         */
+        void skipRest() throws IOException {
+            if (this.chunks != null) {
+                while (this.chunks.nextChunk() != null);
+            } else {
+                while (this.stream.skip(Long.MAX_VALUE) > 0);
+            }
+        }
+
+        boolean isExceeded() {
+            return (this.limitedStream != null && this.limitedStream.isExceeded())
+                    || (this.limitedChunks != null && this.limitedChunks.isExceeded());
+        }
     }
 }
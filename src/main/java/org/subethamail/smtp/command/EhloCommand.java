@@ -53,6 +53,12 @@ public class EhloCommand extends BaseCommand {
         response.append("250-");
         response.append(sess.getServer().getHostName());
         response.append("\r\n" + "250-8BITMIME");
+        response.append("\r\n" + "250-PIPELINING");
+
+        if (sess.getServer().getCommandHandler().containsCommand(BdatCommand.VERB)) {
+            response.append("\r\n" + "250-CHUNKING");
+            response.append("\r\n" + "250-BINARYMIME");
+        }
 
         int maxSize = sess.getServer().getMaxMessageSize();
         if (maxSize > 0) {
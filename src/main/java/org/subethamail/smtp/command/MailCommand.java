@@ -5,6 +5,8 @@ import java.util.Locale;
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.server.BaseCommand;
+import org.subethamail.smtp.server.CommandContinuation;
+import org.subethamail.smtp.server.CompletionResult;
 import org.subethamail.smtp.server.Session;
 import org.subethamail.smtp.util.EmailUtils;
 
@@ -35,21 +37,21 @@ public class MailCommand extends BaseCommand {
 	 * @see org.subethamail.smtp.server.BaseCommand#execute(java.lang.String, org.subethamail.smtp.server.Session)
      */
     @Override
-    public void execute(String commandString, Session sess) throws IOException,
+    public void execute(String commandString, final Session sess) throws IOException,
             DropConnectionException {
         if (sess.isMailTransactionInProgress()) {
-            sess.sendResponse("503 5.5.1 Sender already specified.");
+            sess.queueResponse("503 5.5.1 Sender already specified.");
             return;
         }
 
         if (commandString.trim().equals("MAIL FROM:")) {
-            sess.sendResponse("501 Syntax: MAIL FROM: <address>");
+            sess.queueResponse("501 Syntax: MAIL FROM: <address>");
             return;
         }
 
         String args = this.getArgPredicate(commandString);
         if (!args.toUpperCase(Locale.ENGLISH).startsWith("FROM:")) {
-            sess.sendResponse(
+            sess.queueResponse(
                     "501 Syntax: MAIL FROM: <address>  Error in parameters: \""
                     + this.getArgPredicate(commandString) + "\"");
             return;
@@ -57,46 +59,71 @@ public class MailCommand extends BaseCommand {
 
         String emailAddress = EmailUtils.extractEmailAddress(args, 5);
         if (!EmailUtils.isValidEmailAddress(emailAddress)) {
-            sess.sendResponse("553 <" + emailAddress + "> Invalid email address.");
+            sess.queueResponse("553 <" + emailAddress + "> Invalid email address.");
             return;
         }
 
-        // extract SIZE argument from MAIL FROM command.
+        // extract SIZE and BODY arguments from MAIL FROM command.
         // disregard unknown parameters. TODO: reject unknown
         // parameters.
         int size = 0;
         String largs = args.toLowerCase(Locale.ENGLISH);
-        int sizec = largs.indexOf(" size=");
-        if (sizec > -1) {
-            // disregard non-numeric values.
-            String ssize = largs.substring(sizec + 6).trim();
-            if (ssize.length() > 0 && ssize.matches("[0-9]+")) {
-                size = Integer.parseInt(ssize);
-            }
+        String ssize = getParameter(largs, "size");
+        // disregard non-numeric values.
+        if (ssize != null && ssize.matches("[0-9]+")) {
+            size = Integer.parseInt(ssize);
+        }
+        boolean binaryMime = "binarymime".equals(getParameter(largs, "body"));
+        if (binaryMime && !sess.getServer().getCommandHandler().containsCommand(BdatCommand.VERB)) {
+            sess.queueResponse("555 5.5.4 BODY=BINARYMIME requires CHUNKING");
+            return;
         }
         // Reject the message if the size supplied by the client
         // is larger than what we advertised in EHLO answer.
         if (size > sess.getServer().getMaxMessageSize()) {
-            sess.sendResponse("552 5.3.4 Message size exceeds fixed limit");
+            sess.queueResponse("552 5.3.4 Message size exceeds fixed limit");
             return;
         }
 
         sess.setDeclaredMessageSize(size);
+        sess.setBinaryMime(binaryMime);
         sess.startMailTransaction();
 
-        try {
-            sess.getMessageHandler().from(emailAddress);
-        } catch (DropConnectionException ex) {
-            // roll back the start of the transaction
-            sess.resetMailTransaction();
-            throw ex; // Propagate this
-        } catch (RejectException ex) {
-            // roll back the start of the transaction
-            sess.resetMailTransaction();
-            sess.sendResponse(ex.getErrorResponse());
-            return;
-        }
+        sess.whenComplete(sess.getAsyncMessageHandler().from(emailAddress),
+                new CommandContinuation<Void>() {
+            @Override
+            public void proceed(CompletionResult<Void> result)
+                    throws IOException, DropConnectionException {
+                try {
+                    result.get();
+                } catch (DropConnectionException ex) {
+                    // roll back the start of the transaction
+                    sess.resetMailTransaction();
+                    throw ex; // Propagate this
+                } catch (RejectException ex) {
+                    // roll back the start of the transaction
+                    sess.resetMailTransaction();
+                    sess.queueResponse(ex.getErrorResponse());
+                    return;
+                }
 
-        sess.sendResponse("250 Ok");
+                sess.queueResponse("250 Ok");
+            }
+        });
+    }
+
+    /**
+     * @param largs the lower case arguments of the command
+     * @param name the lower case name of a parameter
+     * @return the value of the parameter, or null if it is not present
+     */
+    private static String getParameter(String largs, String name) {
+        int index = largs.indexOf(" " + name + "=");
+        if (index == -1) {
+            return null;
+        }
+        int start = index + name.length() + 2;
+        int end = largs.indexOf(' ', start);
+        return end == -1 ? largs.substring(start) : largs.substring(start, end);
     }
 }
@@ -5,6 +5,8 @@ import java.util.Locale;
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.server.BaseCommand;
+import org.subethamail.smtp.server.CommandContinuation;
+import org.subethamail.smtp.server.CompletionResult;
 import org.subethamail.smtp.server.Session;
 import org.subethamail.smtp.util.EmailUtils;
 
@@ -31,33 +33,40 @@ public class ReceiptCommand extends BaseCommand {
      * @throws org.subethamail.smtp.DropConnectionException
      */
     @Override
-    public void execute(String commandString, Session sess)
+    public void execute(String commandString, final Session sess)
             throws IOException, DropConnectionException {
         if (!sess.isMailTransactionInProgress()) {
-            sess.sendResponse("503 5.5.1 Error: need MAIL command");
+            sess.queueResponse("503 5.5.1 Error: need MAIL command");
             return;
         } else if (sess.getServer().getMaxRecipients() >= 0
                 && sess.getRecipientCount() >= sess.getServer().getMaxRecipients()) {
-            sess.sendResponse("452 Error: too many recipients");
+            sess.queueResponse("452 Error: too many recipients");
             return;
         }
 
         String args = this.getArgPredicate(commandString);
         if (!args.toUpperCase(Locale.ENGLISH).startsWith("TO:")) {
-            sess.sendResponse(
+            sess.queueResponse(
                     "501 Syntax: RCPT TO: <address>  Error in parameters: \""
                     + args + "\"");
         } else {
-            String recipientAddress = EmailUtils.extractEmailAddress(args, 3);
-            try {
-                sess.getMessageHandler().recipient(recipientAddress);
-                sess.addRecipient(recipientAddress);
-                sess.sendResponse("250 Ok");
-            } catch (DropConnectionException ex) {
-                throw ex; // Propagate this
-            } catch (RejectException ex) {
-                sess.sendResponse(ex.getErrorResponse());
-            }
+            final String recipientAddress = EmailUtils.extractEmailAddress(args, 3);
+            sess.whenComplete(sess.getAsyncMessageHandler().recipient(recipientAddress),
+                    new CommandContinuation<Void>() {
+                @Override
+                public void proceed(CompletionResult<Void> result)
+                        throws IOException, DropConnectionException {
+                    try {
+                        result.get();
+                        sess.addRecipient(recipientAddress);
+                        sess.queueResponse("250 Ok");
+                    } catch (DropConnectionException ex) {
+                        throw ex; // Propagate this
+                    } catch (RejectException ex) {
+                        sess.queueResponse(ex.getErrorResponse());
+                    }
+                }
+            });
         }
     }
 }
@@ -27,6 +27,6 @@ public class ResetCommand extends BaseCommand {
     public void execute(String commandString, Session sess) throws IOException {
         sess.resetMailTransaction();
 
-        sess.sendResponse("250 Ok");
+        sess.queueResponse("250 Ok");
     }
 }
@@ -52,6 +52,7 @@ public class StartTLSCommand extends BaseCommand {
             }
 
             sess.sendResponse("220 Ready to start TLS");
+            sess.ensureBlockingMode();
 
             SSLSocket s = sess.getServer().createSSLSocket(socket);
             s.startHandshake();
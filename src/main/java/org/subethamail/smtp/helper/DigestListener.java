@@ -0,0 +1,23 @@
+package org.subethamail.smtp.helper;
+
+import org.subethamail.smtp.MessageDigests;
+
+/**
+ * Implemented by a {@link SimpleMessageListener} or a
+ * {@link SmarterMessageListener.Receiver} which wants the digests the server
+ * computed while the message was received, see
+ * {@link org.subethamail.smtp.server.SMTPServer#setMessageDigests(String...)}.
+ * The listener adapters pass them on, so a listener does not need to read the
+ * message a second time to compute them.
+ */
+public interface DigestListener {
+
+    /**
+     * Called once for each delivery to the listener, after the message has
+     * been delivered to all accepted recipients. It is not called if the
+     * server does not compute digests, or if a delivery fails.
+     *
+     * @param digests the digests and the length of the message
+     */
+    public void digests(MessageDigests digests);
+}
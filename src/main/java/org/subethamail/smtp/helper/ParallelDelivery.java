@@ -0,0 +1,220 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.helper.SmarterMessageListener.Receiver;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolFilePool;
+
+/**
+ * Delivers a message to several receivers concurrently, for the message
+ * listener adapters. Each receiver reads its own stream of the message, either
+ * of a spooled copy or of a {@link TeeBranch} which is filled while the
+ * message is received. The client waits for the slowest delivery instead
+ * of the sum of all of them, and at most for the timeout.
+ * <p>
+ * If any delivery fails or times out, the message is rejected with a
+ * temporary error, so the client retries later. Deliveries which succeeded
+ * are then repeated, as with a failure during sequential delivery. If all
+ * failures are caused by {@link TooMuchDataException}s, the message is
+ * rejected permanently.
+ */
+class ParallelDelivery {
+
+    private final static Logger log = LoggerFactory.getLogger(ParallelDelivery.class);
+
+    /**
+     * The size of the blocks in which a streamed message is passed to the
+     * receivers.
+     */
+    private final static int BUFFER_SIZE = 1024 * 8;
+
+    private final ExecutorService executor;
+
+    /**
+     * The time allowed for each delivery in nanoseconds, or 0 to wait without
+     * limit.
+     */
+    private final long timeout;
+
+    /**
+     * @param executor the executor which runs the deliveries
+     * @param timeout the time allowed for each delivery, counted from the end
+     * of the message, or 0 to wait without limit
+     * @param unit the unit of the timeout
+     */
+    ParallelDelivery(ExecutorService executor, long timeout, TimeUnit unit) {
+        this.executor = executor;
+        this.timeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * Delivers the message to all receivers and waits until they are done.
+     * Deliveries which exceed the timeout are cancelled.
+     *
+     * @param spool the complete message
+     * @param receivers the receivers of the message
+     * @throws RejectException if any delivery failed
+     * @throws IOException if the spooled message cannot be read
+     */
+    void deliver(DeferredFileOutputStream spool, List<Receiver> receivers)
+            throws RejectException, IOException {
+        List<InputStream> streams = new ArrayList<>();
+        List<Future<Void>> deliveries = new ArrayList<>();
+        try {
+            for (Receiver receiver : receivers) {
+                InputStream data = spool.getInputStream();
+                streams.add(data);
+                deliveries.add(this.submit(receiver, data));
+            }
+            this.await(deliveries);
+        } catch (RejectedExecutionException e) {
+            log.warn("The message cannot be delivered in parallel", e);
+            throw new RejectException(451, "4.3.0 Delivery temporarily unavailable");
+        } finally {
+            this.release(deliveries, streams);
+        }
+    }
+
+    /**
+     * Delivers the message to all receivers while it is received, through a
+     * {@link TeeBranch} for each of them, and waits until they are done. The
+     * timeout is counted from the end of the message.
+     *
+     * @param data the message as it is received
+     * @param receivers the receivers of the message
+     * @param bufferSize the size of the ring buffer of each receiver
+     * @param filePool the pool which provides the spill files, or null to
+     * create temp files
+     * @param budget the budget which covers the ring buffers, or null
+     * @throws RejectException if any delivery failed
+     * @throws IOException if receiving the message fails
+     */
+    void stream(InputStream data, List<Receiver> receivers, int bufferSize, SpoolFilePool filePool,
+            MemoryBudget budget) throws RejectException, IOException {
+        List<TeeBranch> branches = new ArrayList<>();
+        List<Future<Void>> deliveries = new ArrayList<>();
+        try {
+            for (Receiver receiver : receivers) {
+                TeeBranch branch = new TeeBranch(bufferSize, filePool, budget);
+                branches.add(branch);
+                deliveries.add(this.submit(receiver, branch));
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            try {
+                while ((count = data.read(buffer)) != -1) {
+                    for (TeeBranch branch : branches) {
+                        branch.write(buffer, 0, count);
+                    }
+                }
+            } catch (IOException e) {
+                for (TeeBranch branch : branches) {
+                    branch.fail(e);
+                }
+                throw e;
+            }
+            for (TeeBranch branch : branches) {
+                branch.finish();
+            }
+
+            this.await(deliveries);
+        } catch (RejectedExecutionException e) {
+            log.warn("The message cannot be delivered in parallel", e);
+            throw new RejectException(451, "4.3.0 Delivery temporarily unavailable");
+        } finally {
+            this.release(deliveries, branches);
+        }
+    }
+
+    /**
+     * Starts the delivery to a receiver, which closes the stream when it is
+     * done.
+     */
+    private Future<Void> submit(final Receiver receiver, final InputStream data) {
+        return this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    receiver.deliver(data);
+                } finally {
+                    data.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Cancels the deliveries which are still running, and closes their
+     * streams.
+     */
+    private void release(List<Future<Void>> deliveries, List<? extends InputStream> streams)
+            throws IOException {
+        // does nothing if the deliveries are completed
+        for (Future<Void> delivery : deliveries) {
+            delivery.cancel(true);
+        }
+        for (InputStream data : streams) {
+            data.close();
+        }
+    }
+
+    /**
+     * Waits for the deliveries, cancelling those which exceed the timeout.
+     */
+    private void await(List<Future<Void>> deliveries) throws RejectException, InterruptedIOException {
+        long deadline = System.nanoTime() + this.timeout;
+        int failed = 0;
+        int tooMuchData = 0;
+        for (int i = 0; i < deliveries.size(); i++) {
+            Future<Void> delivery = deliveries.get(i);
+            try {
+                if (this.timeout > 0) {
+                    delivery.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    delivery.get();
+                }
+            } catch (ExecutionException e) {
+                failed++;
+                if (e.getCause() instanceof TooMuchDataException) {
+                    tooMuchData++;
+                }
+                log.warn("Delivery {} of {} failed", i + 1, deliveries.size(), e.getCause());
+            } catch (TimeoutException e) {
+                failed++;
+                delivery.cancel(true);
+                log.warn("Delivery {} of {} timed out", i + 1, deliveries.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the deliveries");
+            }
+        }
+
+        if (failed == 0) {
+            return;
+        } else if (failed == tooMuchData) {
+            throw new RejectException(552, "5.3.4 Message too big for "
+                    + failed + " of " + deliveries.size() + " deliveries");
+        } else {
+            throw new RejectException(451, "4.3.0 Delivery failed for "
+                    + failed + " of " + deliveries.size() + " deliveries");
+        }
+    }
+}
@@ -39,7 +39,10 @@ public interface SimpleMessageListener {
      * @param from is the envelope sender in rfc822 form
      * @param recipient will be an accepted recipient in rfc822 form
      * @param data will be the smtp data stream, stripped of any extra '.'
-     * chars. The data stream is only valid for the duration of this call.
+     * chars. The data stream is only valid for the duration of this call. If
+     * the message was spooled for several deliveries, it is a
+     * {@link org.subethamail.smtp.io.SpooledInputStream}, which also gives
+     * access to the spool file channel and the buffers of the data.
      *
      * @throws TooMuchDataException if the listener can't handle that much data.
      * An error will be reported to the client.
@@ -41,6 +41,9 @@ public interface SmarterMessageListener {
          *
          * @param data will be the smtp data stream, stripped of any extra '.'
          * chars. The data stream is only valid for the duration of this call.
+         * If the message was spooled for several deliveries, it is a
+         * {@link org.subethamail.smtp.io.SpooledInputStream}, which also
+         * gives access to the spool file channel and the buffers of the data.
          *
          * @throws TooMuchDataException if the listener can't handle that much
          * data. An error will be reported to the client.
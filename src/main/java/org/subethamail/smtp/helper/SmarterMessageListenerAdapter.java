@@ -10,13 +10,19 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageDigests;
 import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SmarterMessageListener.Receiver;
+import org.subethamail.smtp.io.ChunkPool;
 import org.subethamail.smtp.io.DeferredFileOutputStream;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolFilePool;
 
 /**
  * MessageHandlerFactory implementation which adapts to a collection of
@@ -39,6 +45,36 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
     private Collection<SmarterMessageListener> listeners;
     private int dataDeferredSize;
 
+    /**
+     * Delivers messages with several deliveries concurrently, or null to
+     * deliver them one after another.
+     */
+    private ParallelDelivery parallelDelivery;
+
+    /**
+     * The size of the ring buffer of each listener in streaming deliveries, or
+     * 0 to spool the message first.
+     */
+    private int teeBufferSize;
+
+    /**
+     * The pool which provides the memory for spooled messages, or null to
+     * spool them into byte arrays.
+     */
+    private ChunkPool chunkPool;
+
+    /**
+     * True if spooled messages which exceed the data deferred size are mapped
+     * into memory for the deliveries.
+     */
+    private boolean mappedSpool;
+
+    /**
+     * The pool which provides the files for spooled messages, or null to
+     * create temp files.
+     */
+    private SpoolFilePool spoolFilePool;
+
     /**
      * Initializes this factory with a single listener.
      *
@@ -73,6 +109,85 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
         this.dataDeferredSize = dataDeferredSize;
     }
 
+    /**
+     * Enables the concurrent delivery of messages to several listeners. By
+     * default the listeners are called one after another on the session
+     * thread. With an executor, the received message is passed to all
+     * listeners at once, each reading its own stream of the spooled message,
+     * and the reply is sent when all of them are done. A message with a single
+     * delivery is still passed directly to its listener.
+     * <p>
+     * If a delivery fails or times out, the message is rejected with a
+     * temporary error for all recipients, or with a permanent error if all
+     * failed deliveries threw a {@link TooMuchDataException}.
+     *
+     * @param executor the executor which calls the listeners, or null to
+     * deliver sequentially
+     * @param timeout the time allowed for each delivery, counted from the end
+     * of the message, or 0 to wait without limit. Listeners which
+     * exceed it are interrupted.
+     * @param unit the unit of the timeout
+     */
+    public void setParallelDelivery(ExecutorService executor, long timeout, TimeUnit unit) {
+        this.parallelDelivery = executor == null ? null : new ParallelDelivery(executor, timeout, unit);
+    }
+
+    /**
+     * Streams messages to the listeners while they are received, if parallel
+     * delivery is enabled. Instead of spooling the message first, every
+     * received block is passed to all listeners at once, so they can start
+     * working before the end of the message arrives. Each listener has a ring
+     * buffer of the specified size, only the part of the message which does
+     * not fit into the ring buffer of a listener which falls behind is spilled
+     * to a file from the spool file pool, or to a temporary file. This bounds
+     * the memory used by a message. The ring buffers count against the memory
+     * budget of the server, a listener whose ring buffer the budget cannot
+     * cover receives the message through a file.
+     *
+     * @param teeBufferSize the size of the ring buffer of each listener, or 0
+     * to spool the message before it is delivered
+     * @see #setParallelDelivery(ExecutorService, long, TimeUnit)
+     */
+    public void setTeeBufferSize(int teeBufferSize) {
+        this.teeBufferSize = teeBufferSize;
+    }
+
+    /**
+     * Spools messages which are delivered to several listeners into chunks
+     * from a pool, instead of a byte array which grows with the message. The
+     * pool is typically shared with other adapters and servers.
+     *
+     * @param chunkPool the pool which provides the memory for spooled
+     * messages, or null to use byte arrays
+     */
+    public void setChunkPool(ChunkPool chunkPool) {
+        this.chunkPool = chunkPool;
+    }
+
+    /**
+     * Lets all deliveries of a message which was spooled to a file read a
+     * single memory mapping of the file, instead of reading the file through a
+     * separate buffered stream each.
+     *
+     * @param mappedSpool true to map spool files into memory
+     * @see DeferredFileOutputStream#setMapped(boolean)
+     */
+    public void setMappedSpool(boolean mappedSpool) {
+        this.mappedSpool = mappedSpool;
+    }
+
+    /**
+     * Spools messages which exceed the data deferred size, and the parts of
+     * streamed messages which are spilled, into files from a pool, which are
+     * reused, instead of creating a temp file for each message.
+     *
+     * @param spoolFilePool the pool which provides the files for spooled
+     * messages, or null to use temp files
+     */
+    public void setSpoolFilePool(SpoolFilePool spoolFilePool) {
+        this.spoolFilePool = spoolFilePool;
+    }
+
     /* (non-Javadoc)
 	 * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
      */
@@ -127,23 +242,65 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
          *
          */
         @Override
-        public void data(InputStream data) throws TooMuchDataException, IOException {
+        public void data(InputStream data) throws RejectException, TooMuchDataException, IOException {
+            this.deliver(data);
+            this.digests(data);
+        }
+
+        private void deliver(InputStream data) throws RejectException, TooMuchDataException, IOException {
             if (this.deliveries.size() == 1) {
                 this.deliveries.get(0).deliver(data);
             } else {
-                try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(SmarterMessageListenerAdapter.this.dataDeferredSize)) {
-                    int value;
-                    while ((value = data.read()) >= 0) {
-                        dfos.write(value);
-                    }
+                ParallelDelivery parallel = SmarterMessageListenerAdapter.this.parallelDelivery;
+                int teeBufferSize = SmarterMessageListenerAdapter.this.teeBufferSize;
+                if (parallel != null && teeBufferSize > 0) {
+                    parallel.stream(data, this.deliveries, teeBufferSize,
+                            SmarterMessageListenerAdapter.this.spoolFilePool,
+                            this.ctx.getSMTPServer().getMemoryBudget());
+                    return;
+                }
+
+                try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(
+                        SmarterMessageListenerAdapter.this.dataDeferredSize, this.ctx.getDeclaredMessageSize(),
+                        SmarterMessageListenerAdapter.this.chunkPool,
+                        SmarterMessageListenerAdapter.this.spoolFilePool,
+                        this.ctx.getSMTPServer().getMemoryBudget())) {
+                    dfos.setMapped(SmarterMessageListenerAdapter.this.mappedSpool);
+                    dfos.writeFrom(data);
 
-                    for (Receiver rec : this.deliveries) {
-                        rec.deliver(dfos.getInputStream());
+                    if (parallel != null) {
+                        parallel.deliver(dfos, this.deliveries);
+                    } else {
+                        for (Receiver rec : this.deliveries) {
+                            rec.deliver(dfos.getInputStream());
+                        }
                     }
                 }
             }
         }
 
+        /**
+         * Passes the digests computed by the server to the listeners which
+         * want them. The rest of the message is read first, the digests cover
+         * all of it.
+         */
+        private void digests(InputStream data) throws IOException {
+            if (this.ctx.getSMTPServer().getMessageDigests().isEmpty()) {
+                return;
+            }
+            byte[] buffer = new byte[8192];
+            while (data.read(buffer) != -1);
+            MessageDigests digests = this.ctx.getMessageDigests();
+            if (digests == null) {
+                return;
+            }
+            for (Receiver rec : this.deliveries) {
+                if (rec instanceof DigestListener) {
+                    ((DigestListener) rec).digests(digests);
+                }
+            }
+        }
+
         /**
          *
          */
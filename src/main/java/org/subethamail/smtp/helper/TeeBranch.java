@@ -0,0 +1,310 @@
+package org.subethamail.smtp.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.GuardedBy;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolFilePool;
+
+/**
+ * The stream of a single listener in a streaming delivery to several
+ * listeners. The thread receiving the message writes every block to all
+ * branches, each listener reads its branch on its own thread.
+ * <p>
+ * Writing never blocks, so a slow listener does not hold up the others. The
+ * written bytes are kept in a ring buffer of a fixed size. If the listener
+ * falls behind and the ring buffer is full, the following bytes are spilled to
+ * a file from the spool file pool, or a temporary file, until the listener has
+ * caught up. The memory used for a message is therefore bounded by the size
+ * of the ring buffers.
+ * <p>
+ * The ring buffer is reserved from the memory budget of the server. If the
+ * budget cannot cover it, the branch has no ring buffer and all bytes go
+ * straight to the spill file.
+ */
+class TeeBranch extends InputStream {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signaled when bytes are written, or the branch is finished.
+     */
+    private final Condition written = lock.newCondition();
+
+    /**
+     * The pool which provides the spill file, or null to create a temp file.
+     */
+    private final SpoolFilePool filePool;
+
+    /**
+     * The budget which covers the ring buffer, or null.
+     */
+    private final MemoryBudget budget;
+
+    @GuardedBy("lock")
+    private final byte[] ring;
+    /**
+     * Index of the first unread byte in the ring buffer.
+     */
+    @GuardedBy("lock")
+    private int head;
+    /**
+     * Number of unread bytes in the ring buffer.
+     */
+    @GuardedBy("lock")
+    private int count;
+
+    /**
+     * True while written bytes go to the spill file, because the listener has
+     * not read all spilled bytes yet. The bytes in the ring buffer precede
+     * them.
+     */
+    @GuardedBy("lock")
+    private boolean spilling;
+    @GuardedBy("lock")
+    private File spillFile;
+    @GuardedBy("lock")
+    private FileChannel spill;
+    /**
+     * The number of bytes written to and read from the spill file.
+     */
+    @GuardedBy("lock")
+    private long spillWritten;
+    @GuardedBy("lock")
+    private long spillRead;
+
+    /**
+     * True if all bytes of the message have been written.
+     */
+    @GuardedBy("lock")
+    private boolean finished;
+    /**
+     * The reason why the message cannot be received completely, or null.
+     */
+    @GuardedBy("lock")
+    private IOException failure;
+    /**
+     * True if the listener closed the stream, the written bytes are discarded.
+     */
+    @GuardedBy("lock")
+    private boolean closed;
+
+    /**
+     * @param bufferSize the size of the ring buffer
+     * @param filePool the pool which provides the spill file, or null to
+     * create a temp file
+     * @param budget the budget which covers the ring buffer, or null
+     */
+    TeeBranch(int bufferSize, SpoolFilePool filePool, MemoryBudget budget) {
+        if (budget != null && !budget.tryReserve(bufferSize)) {
+            bufferSize = 0;
+        }
+        this.ring = new byte[bufferSize];
+        this.filePool = filePool;
+        this.budget = budget;
+    }
+
+    /**
+     * Appends bytes of the message, without blocking on the listener. If
+     * spilling fails, the listener receives the exception instead of the rest
+     * of the message.
+     */
+    void write(byte[] b, int off, int len) {
+        lock.lock();
+        try {
+            if (this.closed || this.failure != null) {
+                return;
+            }
+            if (!this.spilling) {
+                if (this.ring.length > 0) {
+                    int stored = Math.min(len, this.ring.length - this.count);
+                    int tail = (this.head + this.count) % this.ring.length;
+                    int first = Math.min(stored, this.ring.length - tail);
+                    System.arraycopy(b, off, this.ring, tail, first);
+                    System.arraycopy(b, off + first, this.ring, 0, stored - first);
+                    this.count += stored;
+                    off += stored;
+                    len -= stored;
+                }
+                this.spilling = len > 0;
+            }
+            if (len > 0) {
+                try {
+                    this.spill(b, off, len);
+                } catch (IOException e) {
+                    this.failure = e;
+                }
+            }
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void spill(byte[] b, int off, int len) throws IOException {
+        if (this.spill == null) {
+            this.spillFile = this.filePool != null
+                    ? this.filePool.acquire()
+                    : File.createTempFile(DeferredFileOutputStream.TMPFILE_PREFIX,
+                            DeferredFileOutputStream.TMPFILE_SUFFIX);
+            try {
+                this.spill = new RandomAccessFile(this.spillFile, "rw").getChannel();
+            } catch (IOException e) {
+                this.releaseSpillFile();
+                throw e;
+            }
+        }
+        ByteBuffer source = ByteBuffer.wrap(b, off, len);
+        while (source.hasRemaining()) {
+            this.spillWritten += this.spill.write(source, this.spillWritten);
+        }
+    }
+
+    /**
+     * Marks the end of the message.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            this.finished = true;
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the listener fail, because the message cannot be received
+     * completely.
+     */
+    void fail(IOException e) {
+        lock.lock();
+        try {
+            if (this.failure == null) {
+                this.failure = e;
+            }
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int count = this.read(b, 0, 1);
+        return count == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        FileChannel channel;
+        long position;
+        long available;
+        lock.lock();
+        try {
+            while (this.count == 0 && this.spillRead == this.spillWritten
+                    && !this.finished && this.failure == null && !this.closed) {
+                written.await();
+            }
+            if (this.closed) {
+                throw new IOException("Stream closed");
+            } else if (this.count > 0) {
+                int result = Math.min(len, Math.min(this.count, this.ring.length - this.head));
+                System.arraycopy(this.ring, this.head, b, off, result);
+                this.head = (this.head + result) % this.ring.length;
+                this.count -= result;
+                return result;
+            } else if (this.spillRead == this.spillWritten) {
+                if (this.failure != null) {
+                    throw new IOException("The message was not received completely", this.failure);
+                }
+                return -1;
+            }
+            channel = this.spill;
+            position = this.spillRead;
+            available = this.spillWritten - this.spillRead;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the message");
+        } finally {
+            lock.unlock();
+        }
+
+        // the spill file is only appended to meanwhile
+        int result = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), position);
+
+        lock.lock();
+        try {
+            this.spillRead += result;
+            if (this.spillRead == this.spillWritten) {
+                // caught up, the ring buffer is used again
+                this.spilling = false;
+                this.spillRead = 0;
+                this.spillWritten = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return this.count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the spill file to the pool, or deletes the temp file.
+     */
+    @GuardedBy("lock")
+    private void releaseSpillFile() {
+        if (this.filePool != null) {
+            this.filePool.release(this.spillFile);
+        } else {
+            this.spillFile.delete();
+        }
+        this.spillFile = null;
+    }
+
+    /**
+     * Discards the following bytes, releases the spill file and returns the
+     * ring buffer to the budget.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            written.signalAll();
+            if (this.budget != null) {
+                this.budget.release(this.ring.length);
+            }
+            if (this.spill != null) {
+                this.spill.close();
+                this.releaseSpillFile();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -3,6 +3,8 @@ package org.subethamail.smtp.io;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Adds a getInputStream() method which does not need to make a copy of the
@@ -31,4 +33,32 @@ class BetterByteArrayOutputStream extends ByteArrayOutputStream {
     public InputStream getInputStream() {
         return new ByteArrayInputStream(this.buf, 0, this.count);
     }
+
+    /**
+     * Does not make a copy of the internal buffer.
+     *
+     * @return a read-only buffer with the written bytes
+     */
+    public ByteBuffer getBuffer() {
+        return ByteBuffer.wrap(this.buf, 0, this.count).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the size of the internal buffer
+     */
+    int capacity() {
+        return this.buf.length;
+    }
+
+    /**
+     * Enlarges the internal buffer, so the memory can be accounted for before
+     * it is allocated.
+     *
+     * @param capacity the new size of the internal buffer
+     */
+    void grow(int capacity) {
+        if (capacity > this.buf.length) {
+            this.buf = Arrays.copyOf(this.buf, capacity);
+        }
+    }
 }
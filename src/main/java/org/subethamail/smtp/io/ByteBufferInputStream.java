@@ -0,0 +1,73 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a sequence of buffers, without copying them. Reading and closing are
+ * synchronized, so no read accesses a buffer after the stream is closed, for
+ * example when the buffer is returned to a {@link ChunkPool}.
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer[] buffers;
+
+    private int index;
+
+    private boolean closed;
+
+    ByteBufferInputStream(ByteBuffer[] buffers) {
+        this.buffers = buffers;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        ByteBuffer buffer = this.current();
+        return buffer == null ? -1 : buffer.get() & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = this.current();
+        if (buffer == null) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    /**
+     * @return the buffer with the next byte, or null at the end
+     */
+    private ByteBuffer current() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        while (this.index < this.buffers.length) {
+            if (this.buffers[this.index].hasRemaining()) {
+                return this.buffers[this.index];
+            }
+            this.index++;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized int available() {
+        long result = 0;
+        for (int i = this.index; i < this.buffers.length; i++) {
+            result += this.buffers[i].remaining();
+        }
+        return (int) Math.min(result, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+    }
+}
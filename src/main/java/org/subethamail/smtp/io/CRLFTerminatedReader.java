@@ -18,6 +18,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A Reader for use with SMTP or other protocols in which lines must end with
@@ -29,11 +31,25 @@ import java.io.UnsupportedEncodingException;
  * JAMES version to throw an IOException if the line is greater than or equal to
  * MAX_LINE_LENGTH (998) which is defined in
  * <a href="http://rfc.net/rfc2822.html#s2.1.1.">RFC 2822</a>.
+ *
+ * The reader fills an internal byte buffer with bulk reads from the underlying
+ * stream and scans it for the line terminator, so it reads ahead of the
+ * current line. Bytes which follow the line, for example message content, can
+ * be read through {@link #getInputStream()}, which returns the buffered bytes
+ * first.
  */
 public class CRLFTerminatedReader extends Reader {
 
     static int MAX_LINE_LENGTH = 998;
 
+    /**
+     * Initial size of the input buffer. It must be larger than the longest
+     * accepted line including its terminator. It is kept small, because a
+     * server may have a very large number of idle sessions; bulk reads larger
+     * than the buffer bypass it.
+     */
+    private final static int INITIAL_BUFFER_SIZE = 1024 * 4;
+
     @SuppressWarnings("serial")
     public class TerminationException extends IOException {
 
@@ -66,32 +82,46 @@ public class CRLFTerminatedReader extends Reader {
         }
     }
 
+    /**
+     * The wrapped stream.
+     */
+    InputStream in;
+
     /**
      * Constructs this CRLFTerminatedReader.
      *
      * @param in an InputStream
-     * @param charsetName the String name of a supported charset. "ASCII" is
-     * common here.
-     * @throws UnsupportedEncodingException if the named charset is not
-     * supported
      */
-    InputStream in;
-
     public CRLFTerminatedReader(InputStream in) {
         this.in = in;
     }
 
+    /**
+     * Constructs this CRLFTerminatedReader.
+     *
+     * @param in an InputStream
+     * @param enc the String name of a supported charset. It is ignored, lines
+     * are always decoded as ISO-8859-1, one character per byte.
+     * @throws UnsupportedEncodingException if the named charset is not
+     * supported
+     */
     public CRLFTerminatedReader(InputStream in, String enc)
             throws UnsupportedEncodingException {
         this(in);
     }
 
-    private StringBuffer lineBuffer = new StringBuffer();
-    private final int EOF = -1,
-            CR = 13,
+    private final static byte CR = 13,
             LF = 10;
 
-    private int tainted = -1;
+    /**
+     * Bytes read from the wrapped stream but not yet consumed are between
+     * {@link #position} and {@link #limit}.
+     */
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    private final InputStream bufferedInput = new BufferedInput();
 
     /**
      * Read a line of text which is terminated by CRLF. The concluding CRLF
@@ -106,85 +136,193 @@ public class CRLFTerminatedReader extends Reader {
      * @throws IOException if an I/O error occurs.
      */
     public String readLine() throws IOException {
-        //start with the StringBuffer empty
-        this.lineBuffer.delete(0, this.lineBuffer.length());
-
-        /* This boolean tells which state we are in,
-		 * depending upon whether or not we got a CR
-		 * in the preceding read().
-         */
-        boolean cr_just_received = false;
+        // number of bytes after position which do not end the line
+        int scanned = 0;
 
         while (true) {
-            int inChar = this.read();
-
-            if (!cr_just_received) {
-                //the most common case, somewhere before the end of a line
-                switch (inChar) {
-                    case CR:
-                        cr_just_received = true;
-                        break;
-                    case EOF:
-                        return null; // premature EOF -- discards data(?)
-                    case LF: //the normal ending of a line
-                        if (this.tainted == -1) {
-                            this.tainted = this.lineBuffer.length();
-                        }
-                    // intentional fall-through
-                    default:
-                        this.lineBuffer.append((char) inChar);
-                }
-            } else {
-                // CR has been received, we may be at end of line
-                switch (inChar) {
-                    case LF: // LF without a preceding CR
-                        if (this.tainted != -1) {
-                            int pos = this.tainted;
-                            this.tainted = -1;
-                            throw new TerminationException(
-                                    "\"bare\" CR or LF in data stream", pos);
-                        }
-                        return this.lineBuffer.toString();
-                    case EOF:
-                        return null; // premature EOF -- discards data(?)
-                    case CR: //we got two (or more) CRs in a row
-                        if (this.tainted == -1) {
-                            this.tainted = this.lineBuffer.length();
-                        }
-                        this.lineBuffer.append((char) this.CR);
-                        break;
-                    default: //we got some other character following a CR
-                        if (this.tainted == -1) {
-                            this.tainted = this.lineBuffer.length();
-                        }
-                        this.lineBuffer.append((char) this.CR);
-                        this.lineBuffer.append((char) inChar);
-                        cr_just_received = false;
+            for (int i = this.position + scanned; i < this.limit; i++) {
+                if (this.buffer[i] == LF && i > this.position && this.buffer[i - 1] == CR) {
+                    return this.takeLine(i - 1 - this.position);
                 }
             }
-            if (this.lineBuffer.length() >= MAX_LINE_LENGTH) {
+            scanned = this.limit - this.position;
+
+            // a trailing CR may still turn out to be part of the terminator
+            int lineLength = scanned > 0 && this.buffer[this.limit - 1] == CR ? scanned - 1 : scanned;
+            if (lineLength >= MAX_LINE_LENGTH) {
                 throw new MaxLineLengthException("Input line length is too long!");
             }
+
+            if (this.fill() == -1) {
+                return null; // premature EOF -- discards data(?)
+            }
+        }
+    }
+
+    /**
+     * Consumes the line of the specified length and its CRLF terminator from
+     * the buffer.
+     */
+    private String takeLine(int length) throws IOException {
+        if (length >= MAX_LINE_LENGTH) {
+            throw new MaxLineLengthException("Input line length is too long!");
+        }
+
+        int start = this.position;
+        this.position += length + 2;
+
+        for (int i = 0; i < length; i++) {
+            byte b = this.buffer[start + i];
+            if (b == CR || b == LF) {
+                throw new TerminationException("\"bare\" CR or LF in data stream", i);
+            }
+        }
+
+        return new String(this.buffer, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads more bytes from the wrapped stream into the buffer, moving the
+     * unconsumed bytes to the beginning of the buffer if necessary.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    int fill() throws IOException {
+        if (this.position == this.limit) {
+            this.position = 0;
+            this.limit = 0;
+        } else if (this.limit == this.buffer.length) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        }
+
+        int count = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (count > 0) {
+            this.limit += count;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if a CRLF terminated line can be read without reading from
+     * the wrapped stream.
+     */
+    public boolean hasBufferedLine() {
+        for (int i = this.position + 1; i < this.limit; i++) {
+            if (this.buffer[i] == LF && this.buffer[i - 1] == CR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a stream which reads the bytes following the last line. Bytes
+     * already read ahead into the buffer are returned first, then the stream
+     * continues with the wrapped stream. Lines and stream reads can be mixed.
+     *
+     * @return the stream view of this reader
+     */
+    public InputStream getInputStream() {
+        return this.bufferedInput;
+    }
+
+    /**
+     * Reads bytes following the last line without copying them. The returned
+     * buffer is a read-only view of the internal buffer, it is only valid until
+     * the next read from this reader.
+     *
+     * @param maxLength the maximum number of bytes to return, it must be
+     * positive
+     * @return the buffered bytes, up to maxLength, reading from the wrapped
+     * stream first if nothing is buffered, or null at the end of the stream
+     * @throws IOException if an I/O error occurs.
+     */
+    public ByteBuffer readBuffer(int maxLength) throws IOException {
+        if (this.position == this.limit && this.fill() == -1) {
+            return null;
+        }
+        return this.takeBuffered(Math.min(maxLength, this.limit - this.position));
+    }
+
+    /**
+     * @return the number of bytes which can be read without reading from the
+     * wrapped stream
+     */
+    int buffered() {
+        return this.limit - this.position;
+    }
+
+    /**
+     * @param index the index relative to the current position, it must be less
+     * than {@link #buffered()}
+     * @return the buffered byte at index
+     */
+    byte bufferedByte(int index) {
+        return this.buffer[this.position + index];
+    }
+
+    /**
+     * Consumes buffered bytes.
+     *
+     * @param length the number of bytes, at most {@link #buffered()}
+     * @return a read-only view of the consumed bytes, only valid until the
+     * next read from this reader
+     */
+    ByteBuffer takeBuffered(int length) {
+        ByteBuffer view = ByteBuffer.wrap(this.buffer, this.position, length).slice().asReadOnlyBuffer();
+        this.position += length;
+        return view;
+    }
+
+    /**
+     * Pushes back bytes which were read through {@link #getInputStream()} in
+     * advance, so they are returned again by the next read or line.
+     *
+     * @param b the bytes to push back
+     * @param off the offset of the bytes
+     * @param len the number of bytes
+     */
+    public void unread(byte[] b, int off, int len) {
+        if (len > this.position) {
+            int buffered = this.limit - this.position;
+            byte[] target = this.buffer;
+            if (len + buffered > this.buffer.length) {
+                target = new byte[len + buffered];
+            }
+            System.arraycopy(this.buffer, this.position, target, len, buffered);
+            this.buffer = target;
+            this.position = len;
+            this.limit = len + buffered;
         }
+        this.position -= len;
+        System.arraycopy(b, off, this.buffer, this.position, len);
     }
 
     @Override
     public int read() throws IOException {
-        return this.in.read();
+        return this.bufferedInput.read();
     }
 
     @Override
     public boolean ready() throws IOException {
-        return this.in.available() > 0;
+        return this.bufferedInput.available() > 0;
     }
 
     @Override
     public int read(char[] cbuf, int off, int len) throws IOException {
-        byte[] temp = new byte[len];
-        int result = this.in.read(temp, 0, len);
+        if (len == 0) {
+            return 0;
+        }
+        if (this.position == this.limit && this.fill() == -1) {
+            return -1;
+        }
+        int result = Math.min(len, this.limit - this.position);
         for (int i = 0; i < result; i++) {
-            cbuf[i] = (char) temp[i];
+            cbuf[off + i] = (char) (this.buffer[this.position + i] & 0xff);
         }
+        this.position += result;
         return result;
     }
 
@@ -192,4 +330,62 @@ public class CRLFTerminatedReader extends Reader {
     public void close() throws IOException {
         this.in.close();
     }
+
+    /**
+     * The stream view of the buffer.
+     */
+    private class BufferedInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && fill() == -1) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit) {
+                if (len >= buffer.length) {
+                    // nothing to merge, bypass the buffer
+                    return in.read(b, off, len);
+                }
+                if (fill() == -1) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            int buffered = limit - position;
+            if (buffered > 0) {
+                int count = (int) Math.min(n, buffered);
+                position += count;
+                return count;
+            }
+            return in.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (limit - position) + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            CRLFTerminatedReader.this.close();
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package org.subethamail.smtp.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A pool of fixed size buffers, which hold the content of messages kept in
+ * memory by {@link DeferredFileOutputStream}. A message is stored in as many
+ * chunks as it needs instead of a single array which is reallocated while it
+ * grows, and the chunks are reused for following messages. This avoids the
+ * allocation of large arrays, which are expensive for the garbage collector.
+ * <p>
+ * A single pool is meant to be shared by all sessions of a server. The pool
+ * keeps at most the specified number of idle chunks, chunks which are released
+ * beyond this number are left to the garbage collector.
+ */
+public class ChunkPool {
+
+    private final int chunkSize;
+
+    private final int maxIdleChunks;
+
+    private final boolean direct;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @GuardedBy("lock")
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+
+    @GuardedBy("lock")
+    private int chunksInUse;
+
+    @GuardedBy("lock")
+    private long allocatedChunks;
+
+    /**
+     * @param chunkSize the size of each chunk in bytes
+     * @param maxIdleChunks the number of released chunks which are kept for
+     * reuse
+     * @param direct true to allocate direct buffers outside of the heap
+     */
+    public ChunkPool(int chunkSize, int maxIdleChunks, boolean direct) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.maxIdleChunks = maxIdleChunks;
+        this.direct = direct;
+    }
+
+    /**
+     * Takes an idle chunk, or allocates a new one if there is none.
+     *
+     * @return an empty chunk in write mode
+     */
+    ByteBuffer acquire() {
+        lock.lock();
+        try {
+            this.chunksInUse++;
+            ByteBuffer chunk = this.idle.pollFirst();
+            if (chunk != null) {
+                return chunk;
+            }
+            this.allocatedChunks++;
+        } finally {
+            lock.unlock();
+        }
+        return this.direct ? ByteBuffer.allocateDirect(this.chunkSize) : ByteBuffer.allocate(this.chunkSize);
+    }
+
+    /**
+     * Returns a chunk acquired from this pool. It must not be used afterwards.
+     */
+    void release(ByteBuffer chunk) {
+        chunk.clear();
+        lock.lock();
+        try {
+            this.chunksInUse--;
+            if (this.idle.size() < this.maxIdleChunks) {
+                this.idle.addFirst(chunk);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of each chunk in bytes
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * @return true if the chunks are direct buffers
+     */
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * @return the number of chunks which currently hold messages
+     */
+    public int getChunksInUse() {
+        lock.lock();
+        try {
+            return this.chunksInUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of chunks which are kept for reuse
+     */
+    public int getIdleChunks() {
+        lock.lock();
+        try {
+            return this.idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of chunks which were allocated since the pool was
+     * created, because no idle chunk was available
+     */
+    public long getAllocatedChunks() {
+        lock.lock();
+        try {
+            return this.allocatedChunks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the maximum number of chunks which are kept for reuse
+     */
+    public int getMaxIdleChunks() {
+        return this.maxIdleChunks;
+    }
+}
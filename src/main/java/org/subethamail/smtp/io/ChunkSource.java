@@ -0,0 +1,20 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of message content which hands out views of its buffer instead of
+ * copying the content like an {@link java.io.InputStream}.
+ */
+public interface ChunkSource {
+
+    /**
+     * Reads the next chunk. It blocks if no bytes are buffered.
+     *
+     * @return a read-only view of the next bytes, it is not empty and it is
+     * only valid until the next call, or null at the end of the content
+     * @throws IOException if reading fails or the content ends prematurely
+     */
+    public ByteBuffer nextChunk() throws IOException;
+}
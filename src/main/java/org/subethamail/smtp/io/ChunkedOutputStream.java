@@ -0,0 +1,125 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the written bytes in chunks taken from a {@link ChunkPool}. The
+ * content can be read any number of times without copying it into a single
+ * array. Closing the stream returns the chunks to the pool, the content is
+ * then no longer available.
+ */
+class ChunkedOutputStream extends OutputStream {
+
+    private final ChunkPool pool;
+
+    /**
+     * The chunks in write mode, only the last one may be partially filled.
+     */
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    /**
+     * The streams returned by {@link #getInputStream()}, which are closed
+     * before the chunks are released.
+     */
+    private final List<ByteBufferInputStream> readers = new ArrayList<>();
+
+    private boolean released;
+
+    ChunkedOutputStream(ChunkPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.writableChunk().put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer chunk = this.writableChunk();
+            int count = Math.min(len, chunk.remaining());
+            chunk.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    private ByteBuffer writableChunk() throws IOException {
+        if (this.released) {
+            throw new IOException("Stream closed");
+        }
+        ByteBuffer last = this.chunks.isEmpty() ? null : this.chunks.get(this.chunks.size() - 1);
+        if (last == null || !last.hasRemaining()) {
+            last = this.pool.acquire();
+            this.chunks.add(last);
+        }
+        return last;
+    }
+
+    /**
+     * @return read-only views of the content, one for each chunk
+     */
+    ByteBuffer[] getBuffers() {
+        ByteBuffer[] result = new ByteBuffer[this.chunks.size()];
+        for (int i = 0; i < result.length; i++) {
+            ByteBuffer view = this.chunks.get(i).asReadOnlyBuffer();
+            view.flip();
+            result[i] = view;
+        }
+        return result;
+    }
+
+    /**
+     * @return a new stream reading the content written so far, which fails
+     * after this stream is closed
+     */
+    synchronized InputStream getInputStream() {
+        ByteBufferInputStream reader = new ByteBufferInputStream(this.getBuffers());
+        this.readers.add(reader);
+        return reader;
+    }
+
+    /**
+     * Copies the content to another stream.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = null;
+        for (ByteBuffer chunk : this.getBuffers()) {
+            if (chunk.hasArray()) {
+                out.write(chunk.array(), chunk.arrayOffset(), chunk.remaining());
+            } else {
+                if (buffer == null) {
+                    buffer = new byte[this.pool.getChunkSize()];
+                }
+                int count = chunk.remaining();
+                chunk.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Returns the chunks to the pool, after the streams reading them are
+     * closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.released) {
+            return;
+        }
+        this.released = true;
+        for (ByteBufferInputStream reader : this.readers) {
+            reader.close();
+        }
+        for (ByteBuffer chunk : this.chunks) {
+            this.pool.release(chunk);
+        }
+        this.chunks.clear();
+    }
+}
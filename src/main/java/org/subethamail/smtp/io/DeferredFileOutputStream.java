@@ -12,6 +12,12 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This works like a ByteArrayOutputStream until a certain size is reached, then
@@ -52,6 +58,60 @@ public class DeferredFileOutputStream extends ThresholdingOutputStream {
      */
     boolean closed;
 
+    /**
+     * If true, the file is mapped into memory and shared by all readers.
+     */
+    boolean mapped;
+
+    /**
+     * The channel for reading the file, opened on first use.
+     */
+    FileChannel inChannel;
+
+    /**
+     * The read-only mapping of the whole file, created on first use. A file
+     * larger than {@link #MAX_SEGMENT_SIZE} is mapped in several segments.
+     */
+    MappedByteBuffer[] mapping;
+
+    /**
+     * The pool which provides the file, or null to create a temp file.
+     */
+    SpoolFilePool filePool;
+
+    /**
+     * The streams reading the file, which are closed before the file is
+     * returned to the pool.
+     */
+    List<InputStream> fileReaders = new ArrayList<>();
+
+    /**
+     * The budget which covers the data in memory, or null.
+     */
+    MemoryBudget budget;
+
+    /**
+     * The number of bytes reserved from the budget.
+     */
+    long reserved;
+
+    /**
+     * Allowance for the trace headers which the server adds to a message, on
+     * top of the size declared by the client.
+     */
+    static final int HEADER_ALLOWANCE = 1024;
+
+    /**
+     * Size of the buffer used by {@link #writeFrom(InputStream)}.
+     */
+    static final int COPY_BUF_SIZE = 8192;
+
+    /**
+     * The maximum size of a single mapped segment of the file, the limit of a
+     * {@link ByteBuffer}.
+     */
+    static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
     /**
      * @param transitionSize is the number of bytes at which to convert from a
      * byte array to a real file.
@@ -60,6 +120,161 @@ public class DeferredFileOutputStream extends ThresholdingOutputStream {
         super(new BetterByteArrayOutputStream(INITIAL_BUF_SIZE), transitionSize);
     }
 
+    /**
+     * Creates a stream for a message of a known approximate size, typically
+     * the SIZE parameter of the MAIL command. If it exceeds the transition
+     * size, the data goes straight to a file, otherwise the byte array is
+     * allocated large enough to avoid reallocs.
+     *
+     * @param transitionSize is the number of bytes at which to convert from a
+     * byte array to a real file.
+     * @param expectedSize the expected number of bytes, or 0 if unknown
+     * @throws java.io.IOException if the temp file cannot be created
+     */
+    public DeferredFileOutputStream(int transitionSize, int expectedSize) throws IOException {
+        this(transitionSize, expectedSize, null);
+    }
+
+    /**
+     * Creates a stream which keeps the data in chunks from a pool until the
+     * transition size is reached, instead of a single byte array. The chunks
+     * are returned to the pool when the data moves to a file or this stream
+     * is closed.
+     *
+     * @param transitionSize is the number of bytes at which to convert from
+     * memory to a real file.
+     * @param expectedSize the expected number of bytes, or 0 if unknown
+     * @param pool the pool which provides the chunks, or null to use a byte
+     * array
+     * @throws java.io.IOException if the temp file cannot be created
+     */
+    public DeferredFileOutputStream(int transitionSize, int expectedSize, ChunkPool pool) throws IOException {
+        this(transitionSize, expectedSize, pool, null);
+    }
+
+    /**
+     * Creates a stream which takes the file from a pool when the transition
+     * size is reached, instead of creating a temp file. The file is returned
+     * to the pool when this stream is closed.
+     *
+     * @param transitionSize is the number of bytes at which to convert from
+     * memory to a real file.
+     * @param expectedSize the expected number of bytes, or 0 if unknown
+     * @param pool the pool which provides the chunks, or null to use a byte
+     * array
+     * @param filePool the pool which provides the file, or null to use a temp
+     * file
+     * @throws java.io.IOException if the file cannot be created
+     */
+    public DeferredFileOutputStream(int transitionSize, int expectedSize, ChunkPool pool,
+            SpoolFilePool filePool) throws IOException {
+        this(transitionSize, expectedSize, pool, filePool, null);
+    }
+
+    /**
+     * Creates a stream whose data in memory counts against a budget shared
+     * with other streams. The transition size is lowered according to the
+     * remaining budget, and the data moves to a file early if the budget
+     * cannot cover it. The byte array is reserved from the budget before it is
+     * allocated, and whenever it grows, so a large expected size does not
+     * allocate memory beyond the budget.
+     *
+     * @param transitionSize is the number of bytes at which to convert from
+     * memory to a real file, with an unused budget.
+     * @param expectedSize the expected number of bytes, or 0 if unknown
+     * @param pool the pool which provides the chunks, or null to use a byte
+     * array
+     * @param filePool the pool which provides the file, or null to use a temp
+     * file
+     * @param budget the budget which covers the data in memory, or null
+     * @throws java.io.IOException if the file cannot be created
+     */
+    public DeferredFileOutputStream(int transitionSize, int expectedSize, ChunkPool pool,
+            SpoolFilePool filePool, MemoryBudget budget) throws IOException {
+        // the byte array is allocated once it is reserved
+        super(pool != null ? new ChunkedOutputStream(pool) : new BetterByteArrayOutputStream(0),
+                transitionSize);
+        this.filePool = filePool;
+        if (budget != null) {
+            this.budget = budget;
+            this.threshold = budget.transitionSize(transitionSize);
+        }
+        if (expectedSize > this.threshold) {
+            this.thresholdReached(0, expectedSize);
+            this.thresholdReached = true;
+        } else if (this.output instanceof BetterByteArrayOutputStream) {
+            if (!this.growBuffer(initialSize(this.threshold, expectedSize))) {
+                this.thresholdReached(0, expectedSize);
+                this.thresholdReached = true;
+            }
+        }
+    }
+
+    private static int initialSize(int transitionSize, int expectedSize) {
+        long size = (long) expectedSize + HEADER_ALLOWANCE;
+        return (int) Math.max(INITIAL_BUF_SIZE, Math.min(size, transitionSize));
+    }
+
+    /**
+     * Enlarges the byte array, reserving the additional capacity from the
+     * budget first.
+     *
+     * @return false if the budget cannot cover the capacity
+     */
+    private boolean growBuffer(int capacity) {
+        BetterByteArrayOutputStream array = (BetterByteArrayOutputStream) this.output;
+        int additional = capacity - array.capacity();
+        if (additional <= 0) {
+            return true;
+        }
+        if (this.budget != null) {
+            if (!this.budget.tryReserve(additional)) {
+                return false;
+            }
+            this.reserved += additional;
+        }
+        array.grow(capacity);
+        return true;
+    }
+
+    /* (non-Javadoc)
+	 * @see org.subethamail.smtp.io.ThresholdingOutputStream#checkThreshold(int)
+     */
+    @Override
+    protected void checkThreshold(int count) throws IOException {
+        if (this.budget != null && !this.thresholdReached && this.written + count <= this.threshold) {
+            if (!this.reserve(count)) {
+                this.thresholdReached(this.written, this.written + count);
+                this.thresholdReached = true;
+                return;
+            }
+        }
+        super.checkThreshold(count);
+    }
+
+    /**
+     * Reserves the memory for writing more bytes: the grown capacity of the
+     * byte array, which doubles up to the transition size, or the bytes
+     * themselves in chunks.
+     *
+     * @return false if the budget cannot cover the memory
+     */
+    private boolean reserve(int count) {
+        if (this.output instanceof BetterByteArrayOutputStream) {
+            int needed = this.written + count;
+            int capacity = ((BetterByteArrayOutputStream) this.output).capacity();
+            if (needed <= capacity) {
+                return true;
+            }
+            return this.growBuffer(Math.min(Math.max(capacity * 2, needed), this.threshold));
+        }
+        if (!this.budget.tryReserve(count)) {
+            return false;
+        }
+        this.reserved += count;
+        return true;
+    }
+
     /*
 	 * (non-Javadoc)
 	 * @see org.subethamail.common.io.ThresholdingOutputStream#thresholdReached(int, int)
@@ -69,47 +284,189 @@ public class DeferredFileOutputStream extends ThresholdingOutputStream {
         // Open a temp file, write the byte array version, and swap the
         // output stream to the file version.
 
-        this.outFile = File.createTempFile(TMPFILE_PREFIX, TMPFILE_SUFFIX);
+        this.outFile = this.filePool != null
+                ? this.filePool.acquire()
+                : File.createTempFile(TMPFILE_PREFIX, TMPFILE_SUFFIX);
         this.outFileStream = new FileOutputStream(this.outFile);
 
-        ((ByteArrayOutputStream) this.output).writeTo(this.outFileStream);
+        if (this.output instanceof ChunkedOutputStream) {
+            ((ChunkedOutputStream) this.output).writeTo(this.outFileStream);
+            this.output.close();
+        } else {
+            ((ByteArrayOutputStream) this.output).writeTo(this.outFileStream);
+        }
         this.output = new BufferedOutputStream(this.outFileStream);
+        this.releaseBudget();
+    }
+
+    private void releaseBudget() {
+        if (this.budget != null) {
+            this.budget.release(this.reserved);
+            this.reserved = 0;
+        }
+    }
+
+    /**
+     * Copies all remaining bytes of a stream in large blocks.
+     *
+     * @param in the stream to read until its end
+     * @return the number of bytes copied
+     * @throws java.io.IOException
+     */
+    public long writeFrom(InputStream in) throws IOException {
+        byte[] buffer = new byte[COPY_BUF_SIZE];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            this.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Makes readers of data which was moved to a file share a single memory
+     * mapping of the file, instead of reading it through separate buffered
+     * streams. This pays off for large messages which are read several times.
+     *
+     * @param mapped true to map the file into memory once it is written
+     */
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
     }
 
     /**
      * Closes the output stream and creates an InputStream on the same data.
      *
-     * @return either a BetterByteArrayOutputStream or buffered FileInputStream,
-     * depending on what state we are in.
+     * @return a {@link SpooledInputStream} reading either the data in memory,
+     * the mapped file or a buffered FileInputStream, depending on what state
+     * we are in.
      * @throws java.io.IOException
      */
     public InputStream getInputStream() throws IOException {
+        InputStream result;
         if (this.output instanceof BetterByteArrayOutputStream) {
-            return ((BetterByteArrayOutputStream) this.output).getInputStream();
+            result = ((BetterByteArrayOutputStream) this.output).getInputStream();
+        } else if (this.output instanceof ChunkedOutputStream) {
+            result = ((ChunkedOutputStream) this.output).getInputStream();
+        } else if (this.mapped) {
+            result = new ByteBufferInputStream(this.getMapping());
         } else {
-            if (!this.closed) {
-                this.output.flush();
-                this.output.close();
-                this.closed = true;
-            }
+            this.closeOutput();
 
-            return new BufferedInputStream(new FileInputStream(this.outFile));
+            result = new BufferedInputStream(new FileInputStream(this.outFile));
+            this.fileReaders.add(result);
         }
+        return new SpooledInputStream(result, this);
     }
 
-    /* (non-Javadoc)
-	 * @see org.subethamail.common.io.ThresholdingOutputStream#close()
+    /**
+     * Closes the output stream and returns a channel for reading the file, if
+     * the data was moved to a file. The channel can transfer the data to
+     * another channel directly with {@link FileChannel#transferTo}. It is
+     * shared, so only methods which take a position may be used, and it must
+     * not be closed. It may be called by several readers concurrently.
+     *
+     * @return the channel of the file, or null if the data is in memory
+     * @throws java.io.IOException
      */
-    @Override
-    public void close() throws IOException {
+    public synchronized FileChannel getFileChannel() throws IOException {
+        if (this.outFile == null) {
+            return null;
+        }
+        this.closeOutput();
+        if (this.inChannel == null) {
+            this.inChannel = new RandomAccessFile(this.outFile, "r").getChannel();
+        }
+        return this.inChannel;
+    }
+
+    /**
+     * @return new views of the mapped file, mapping it first if necessary
+     */
+    private synchronized ByteBuffer[] getMapping() throws IOException {
+        if (this.mapping == null) {
+            this.mapping = map(this.getFileChannel(), MAX_SEGMENT_SIZE);
+        }
+        ByteBuffer[] views = new ByteBuffer[this.mapping.length];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = this.mapping[i].duplicate();
+        }
+        return views;
+    }
+
+    /**
+     * Maps the whole file read-only, in consecutive segments because a single
+     * buffer cannot cover more than 2 GB.
+     *
+     * @param segmentSize the maximum size of a segment
+     */
+    static MappedByteBuffer[] map(FileChannel channel, long segmentSize) throws IOException {
+        long size = channel.size();
+        int count = (int) Math.max(1, (size + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long position = i * segmentSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(segmentSize, size - position));
+        }
+        return segments;
+    }
+
+    private void closeOutput() throws IOException {
         if (!this.closed) {
             this.output.flush();
             this.output.close();
             this.closed = true;
         }
+    }
 
+    /**
+     * Returns the data written so far without copying it, if it is in memory
+     * or in a mapped file. The buffers must not be used after this stream is
+     * closed.
+     *
+     * @return read-only buffers with the data, or null if the data is in a
+     * file which is not mapped
+     * @throws java.io.IOException if the file cannot be mapped
+     */
+    public ByteBuffer[] getBuffers() throws IOException {
+        if (this.output instanceof BetterByteArrayOutputStream) {
+            return new ByteBuffer[] { ((BetterByteArrayOutputStream) this.output).getBuffer() };
+        } else if (this.output instanceof ChunkedOutputStream) {
+            return ((ChunkedOutputStream) this.output).getBuffers();
+        } else if (this.mapped) {
+            return this.getMapping();
+        } else {
+            return null;
+        }
+    }
+
+    /* (non-Javadoc)
+	 * @see org.subethamail.common.io.ThresholdingOutputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+        this.closeOutput();
+
+        this.releaseBudget();
+        for (InputStream reader : this.fileReaders) {
+            reader.close();
+        }
+        this.fileReaders.clear();
+        if (this.inChannel != null) {
+            this.inChannel.close();
+        }
         if (this.outFile != null) {
-            this.outFile.delete();
+            if (this.filePool == null) {
+                this.outFile.delete();
+            } else if (this.mapping != null) {
+                // the mapping may still be read, the file cannot be reused
+                this.filePool.discard(this.outFile);
+            } else {
+                this.filePool.release(this.outFile);
+            }
+            this.outFile = null;
         }
     }
 
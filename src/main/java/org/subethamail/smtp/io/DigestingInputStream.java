@@ -0,0 +1,202 @@
+package org.subethamail.smtp.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import org.subethamail.smtp.MessageDigests;
+
+/**
+ * Computes digests and the length of the bytes which are read through it, so
+ * the content does not need to be read a second time to compute them. The
+ * result is available once the end of the stream has been read.
+ * <p>
+ * Besides the algorithms of {@link MessageDigest}, such as SHA-256, the
+ * checksums "CRC32" and, if the Java runtime provides it, "CRC32C" are
+ * supported.
+ */
+public class DigestingInputStream extends FilterInputStream {
+
+    private final static int BUFFER_SIZE = 1024 * 8;
+
+    private final List<String> algorithms;
+
+    private final Digest[] digests;
+
+    private final byte[] single = new byte[1];
+
+    private long length;
+
+    private volatile MessageDigests result;
+
+    /**
+     * @param in the stream to read
+     * @param algorithms the names of the algorithms
+     * @throws IllegalArgumentException if an algorithm is not supported
+     */
+    public DigestingInputStream(InputStream in, List<String> algorithms) {
+        super(in);
+        this.algorithms = algorithms;
+        this.digests = new Digest[algorithms.size()];
+        for (int i = 0; i < this.digests.length; i++) {
+            this.digests[i] = digest(algorithms.get(i));
+            if (this.digests[i] == null) {
+                throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithms.get(i));
+            }
+        }
+    }
+
+    /**
+     * @param algorithm the name of an algorithm
+     * @return true if the algorithm can be used in this runtime
+     */
+    public static boolean isSupported(String algorithm) {
+        return digest(algorithm) != null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = this.in.read();
+        if (b == -1) {
+            this.finish();
+        } else {
+            this.single[0] = (byte) b;
+            this.update(this.single, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = this.in.read(b, off, len);
+        if (count == -1) {
+            this.finish();
+        } else {
+            this.update(b, off, count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the skipped bytes, so they are included in the digests.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 1))];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = this.read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (count == -1) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void update(byte[] b, int off, int len) {
+        for (Digest digest : this.digests) {
+            digest.update(b, off, len);
+        }
+        this.length += len;
+    }
+
+    private void finish() {
+        if (this.result == null) {
+            Map<String, byte[]> values = new LinkedHashMap<>();
+            for (int i = 0; i < this.digests.length; i++) {
+                values.put(this.algorithms.get(i), this.digests[i].digest());
+            }
+            this.result = new MessageDigests(values, this.length);
+        }
+    }
+
+    /**
+     * @return the digests, or null if the end of the stream has not been read
+     * yet
+     */
+    public MessageDigests getDigests() {
+        return this.result;
+    }
+
+    /**
+     * @return the digest for the algorithm, or null if it is not supported
+     */
+    private static Digest digest(String algorithm) {
+        if ("CRC32".equals(algorithm)) {
+            return new ChecksumDigest(new CRC32());
+        } else if ("CRC32C".equals(algorithm)) {
+            // part of the runtime since Java 9
+            try {
+                return new ChecksumDigest((Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+        try {
+            return new MessageDigestDigest(MessageDigest.getInstance(algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Computes one digest.
+     */
+    private interface Digest {
+
+        void update(byte[] b, int off, int len);
+
+        byte[] digest();
+    }
+
+    private static class MessageDigestDigest implements Digest {
+
+        private final MessageDigest digest;
+
+        MessageDigestDigest(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            this.digest.update(b, off, len);
+        }
+
+        @Override
+        public byte[] digest() {
+            return this.digest.digest();
+        }
+    }
+
+    private static class ChecksumDigest implements Digest {
+
+        private final Checksum checksum;
+
+        ChecksumDigest(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            this.checksum.update(b, off, len);
+        }
+
+        @Override
+        public byte[] digest() {
+            long value = this.checksum.getValue();
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
+}
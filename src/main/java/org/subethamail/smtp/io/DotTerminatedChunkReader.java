@@ -0,0 +1,109 @@
+package org.subethamail.smtp.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the message content of the DATA command as chunks, which are views of
+ * the buffer of the {@link CRLFTerminatedReader}. Like
+ * {@link DotTerminatedUnstuffingInputStream} it ends at the line consisting
+ * of a single dot and removes the dot at the beginning of the other lines, but
+ * instead of copying the content it splits it into chunks at the removed dots.
+ * A chunk spans as many lines as possible.
+ * <p>
+ * The bytes following the terminating dot line, for example a pipelined
+ * command, remain in the reader.
+ */
+public class DotTerminatedChunkReader implements ChunkSource {
+
+    private final CRLFTerminatedReader reader;
+
+    /**
+     * True if the next byte is the first one of a line. The data begins with a
+     * line, this makes it possible to receive empty data.
+     */
+    private boolean lineStart = true;
+
+    /**
+     * True if the last byte returned was CR.
+     */
+    private boolean lastCR;
+
+    /**
+     * True if the reader has reached the end of its stream.
+     */
+    private boolean eof;
+
+    /**
+     * True if the terminating dot line was read.
+     */
+    private boolean endReached;
+
+    /**
+     * @param reader the reader of the session, it is positioned after the DATA
+     * command line
+     */
+    public DotTerminatedChunkReader(CRLFTerminatedReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public ByteBuffer nextChunk() throws IOException {
+        while (!this.endReached) {
+            if (this.lineStart) {
+                // three bytes are needed to recognize the terminating line
+                if (this.reader.buffered() < 3 && !this.eof) {
+                    this.fill();
+                    continue;
+                }
+
+                this.lineStart = false;
+                int buffered = this.reader.buffered();
+                if (buffered > 0 && this.reader.bufferedByte(0) == '.') {
+                    if (buffered >= 3
+                            && this.reader.bufferedByte(1) == '\r'
+                            && this.reader.bufferedByte(2) == '\n') {
+                        this.reader.takeBuffered(3);
+                        this.endReached = true;
+                        return null;
+                    }
+                    // skip this '.' because it should have been stuffed
+                    this.reader.takeBuffered(1);
+                }
+            }
+
+            int buffered = this.reader.buffered();
+            if (buffered == 0) {
+                if (this.eof) {
+                    // End of stream reached without seeing the terminator
+                    throw new EOFException("Pre-mature end of <CRLF>.<CRLF> terminated data");
+                }
+                this.fill();
+                continue;
+            }
+
+            // extend the chunk up to a line which may begin with a dot
+            int length = buffered;
+            for (int i = 0; i < buffered; i++) {
+                if (this.reader.bufferedByte(i) == '\n'
+                        && (i > 0 ? this.reader.bufferedByte(i - 1) == '\r' : this.lastCR)
+                        && (buffered - i <= 3 || this.reader.bufferedByte(i + 1) == '.')) {
+                    length = i + 1;
+                    this.lineStart = true;
+                    break;
+                }
+            }
+
+            this.lastCR = this.reader.bufferedByte(length - 1) == '\r';
+            return this.reader.takeBuffered(length);
+        }
+        return null;
+    }
+
+    private void fill() throws IOException {
+        if (this.reader.fill() == -1) {
+            this.eof = true;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.subethamail.smtp.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the message content of the DATA command. It does the work of a
+ * {@link DotTerminatedInputStream} wrapped by a
+ * {@link DotUnstuffingInputStream} in a single pass: it terminates the stream
+ * at a line consisting of a single dot and removes the dot at the beginning of
+ * the other lines. Instead of processing the content byte by byte, it reads
+ * blocks into a buffer and copies whole lines with array copies.
+ * <p>
+ * The block read from the {@link CRLFTerminatedReader} may extend beyond the
+ * terminating dot line, for example if the client pipelines the next command.
+ * These bytes are pushed back into the reader when the end of the data is
+ * reached.
+ */
+public class DotTerminatedUnstuffingInputStream extends InputStream {
+
+    private final static int BUFFER_SIZE = 1024 * 8;
+
+    private final CRLFTerminatedReader reader;
+    private final InputStream in;
+
+    /**
+     * Bytes read from the reader but not yet processed are between
+     * {@link #position} and {@link #limit}.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    /**
+     * True if the next byte is the first one of a line. The data begins with a
+     * line, this makes it possible to receive empty data.
+     */
+    private boolean lineStart = true;
+
+    /**
+     * True if the last byte returned was CR.
+     */
+    private boolean lastCR;
+
+    /**
+     * True if the reader has reached the end of its stream.
+     */
+    private boolean eof;
+
+    /**
+     * True if the terminating dot line was read.
+     */
+    private boolean endReached;
+
+    private final byte[] single = new byte[1];
+
+    /**
+     * @param reader the reader of the session, it is positioned after the DATA
+     * command line
+     */
+    public DotTerminatedUnstuffingInputStream(CRLFTerminatedReader reader) {
+        this.reader = reader;
+        this.in = reader.getInputStream();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int count = this.read(this.single, 0, 1);
+        return count == -1 ? -1 : this.single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        } else if (this.endReached) {
+            return -1;
+        }
+        return this.transfer(b, off, len);
+    }
+
+    /**
+     * Skips the content without copying it, which makes discarding the rest of
+     * a message cheap.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || this.endReached) {
+            return 0;
+        }
+        int count = this.transfer(null, 0, (int) Math.min(n, Integer.MAX_VALUE));
+        return count == -1 ? 0 : count;
+    }
+
+    /**
+     * Copies up to len bytes of content into b, or skips them if b is null.
+     *
+     * @return the number of bytes, or -1 at the end of the content
+     */
+    private int transfer(byte[] b, int off, int len) throws IOException {
+        int count = 0;
+        while (count < len) {
+            if (this.lineStart) {
+                // three bytes are needed to recognize the terminating line
+                if (this.limit - this.position < 3 && !this.eof) {
+                    if (count > 0) {
+                        break;
+                    }
+                    this.fill();
+                    continue;
+                }
+
+                this.lineStart = false;
+                if (this.limit > this.position && this.buffer[this.position] == '.') {
+                    if (this.limit - this.position >= 3
+                            && this.buffer[this.position + 1] == '\r'
+                            && this.buffer[this.position + 2] == '\n') {
+                        this.position += 3;
+                        this.endReached = true;
+                        this.reader.unread(this.buffer, this.position, this.limit - this.position);
+                        this.position = this.limit;
+                        return count > 0 ? count : -1;
+                    }
+                    // skip this '.' because it should have been stuffed
+                    this.position++;
+                }
+            }
+
+            if (this.position == this.limit) {
+                if (count > 0) {
+                    break;
+                } else if (this.eof) {
+                    // End of stream reached without seeing the terminator
+                    throw new EOFException("Pre-mature end of <CRLF>.<CRLF> terminated data");
+                }
+                this.fill();
+                continue;
+            }
+
+            // copy up to and including the next LF
+            int end = this.position + Math.min(this.limit - this.position, len - count);
+            int i = this.position;
+            while (i < end && this.buffer[i] != '\n') {
+                i++;
+            }
+            if (i < end) {
+                this.lineStart = i > this.position ? this.buffer[i - 1] == '\r' : this.lastCR;
+                i++;
+            }
+
+            int copied = i - this.position;
+            if (b != null) {
+                System.arraycopy(this.buffer, this.position, b, off + count, copied);
+            }
+            count += copied;
+            this.position = i;
+            this.lastCR = this.buffer[i - 1] == '\r';
+        }
+        return count;
+    }
+
+    /**
+     * Moves the unprocessed bytes to the beginning of the buffer and reads more
+     * bytes from the reader.
+     */
+    private void fill() throws IOException {
+        if (this.position > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        }
+
+        int count = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (count == -1) {
+            this.eof = true;
+        } else {
+            this.limit += count;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.subethamail.smtp.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import org.subethamail.smtp.MessageHeaders;
+
+/**
+ * Reads the header block at the beginning of a message with bulk reads, so the
+ * header fields can be examined before the body is read. The bytes read
+ * beyond the header block are kept, {@link #getMessage()} returns the complete
+ * message again, {@link #getBody()} the part after the header block.
+ */
+public class HeaderBlockReader {
+
+    /**
+     * The length after which the server cuts off header blocks passed to
+     * handlers.
+     */
+    public final static int DEFAULT_MAX_LENGTH = 1024 * 64;
+
+    private final static int BUFFER_SIZE = 1024 * 8;
+
+    private final InputStream in;
+
+    private final int maxLength;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * The number of bytes read into the buffer.
+     */
+    private int count;
+
+    /**
+     * The length of the header block, once it has been read.
+     */
+    private int length = -1;
+
+    /**
+     * @param in the message
+     * @param maxLength the number of bytes after which the header block is cut
+     * off, if it does not end before
+     */
+    public HeaderBlockReader(InputStream in, int maxLength) {
+        this.in = in;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Reads until the end of the header block, the end of the message or the
+     * maximum length.
+     *
+     * @return the header fields
+     * @throws IOException if reading the message fails
+     */
+    public MessageHeaders read() throws IOException {
+        int end;
+        int searched = 0;
+        while ((end = this.endOfBlock(searched)) == -1 && this.count < this.maxLength) {
+            // the end of the block may overlap the previous read
+            searched = Math.max(0, this.count - 2);
+            if (this.count == this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer,
+                        Math.min(this.buffer.length * 2, Math.max(this.maxLength, this.buffer.length + 1)));
+            }
+            int read = this.in.read(this.buffer, this.count, this.buffer.length - this.count);
+            if (read == -1) {
+                break;
+            }
+            this.count += read;
+        }
+        if (end == -1 || end > this.maxLength) {
+            end = Math.min(this.count, this.maxLength);
+        }
+        this.length = end;
+        return MessageHeaders.parse(this.buffer, end);
+    }
+
+    /**
+     * @return the offset after the empty line which ends the header block, or
+     * -1 if it is not read yet
+     */
+    private int endOfBlock(int from) {
+        if (this.count > 0 && this.buffer[0] == '\n') {
+            return 1;
+        } else if (this.count > 1 && this.buffer[0] == '\r' && this.buffer[1] == '\n') {
+            return 2;
+        }
+        for (int i = Math.max(from, 1); i < this.count; i++) {
+            if (this.buffer[i - 1] == '\n') {
+                if (this.buffer[i] == '\n') {
+                    return i + 1;
+                } else if (this.buffer[i] == '\r' && i + 1 < this.count && this.buffer[i + 1] == '\n') {
+                    return i + 2;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the complete message, including the bytes which were read for
+     * the header block
+     */
+    public InputStream getMessage() {
+        return new SequenceInputStream(new ByteArrayInputStream(this.buffer, 0, this.count), this.in);
+    }
+
+    /**
+     * @return the rest of the message after the header block, which begins
+     * with the body, unless the header block was cut off
+     * @throws IllegalStateException if the header block has not been read
+     */
+    public InputStream getBody() {
+        if (this.length == -1) {
+            throw new IllegalStateException("Header block not read");
+        }
+        return new SequenceInputStream(
+                new ByteArrayInputStream(this.buffer, this.length, this.count - this.length), this.in);
+    }
+}
@@ -0,0 +1,91 @@
+package org.subethamail.smtp.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the memory which all {@link DeferredFileOutputStream}s of a server
+ * use together for messages, along with the ring buffers of streaming
+ * deliveries. Each stream reserves the memory it allocates before allocating
+ * it, and moves its data to a file as soon as the budget cannot cover it. The transition size of new streams shrinks with the remaining budget,
+ * so that under load large messages go to files earlier, before the budget is
+ * exhausted.
+ * <p>
+ * When the budget is exhausted, the server rejects new messages with a
+ * temporary error, until streams release their memory.
+ */
+public class MemoryBudget {
+
+    private final long maxBytes;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * @param maxBytes the number of bytes which may be kept in memory
+     */
+    public MemoryBudget(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Budget must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserves memory, if enough of the budget remains.
+     *
+     * @param bytes the number of bytes to reserve
+     * @return true if the bytes are reserved and must be released later
+     */
+    public boolean tryReserve(long bytes) {
+        while (true) {
+            long used = this.usedBytes.get();
+            if (used + bytes > this.maxBytes) {
+                return false;
+            }
+            if (this.usedBytes.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases memory reserved with {@link #tryReserve(long)}.
+     *
+     * @param bytes the number of bytes to release
+     */
+    public void release(long bytes) {
+        this.usedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Scales a transition size down in proportion to the remaining budget.
+     *
+     * @param transitionSize the transition size with an unused budget
+     * @return the transition size for a new stream
+     */
+    int transitionSize(int transitionSize) {
+        long remaining = Math.max(0, this.maxBytes - this.usedBytes.get());
+        return (int) (transitionSize * (double) remaining / this.maxBytes);
+    }
+
+    /**
+     * @return true if the remaining memory does not even cover the initial
+     * buffer of a new message
+     */
+    public boolean isExhausted() {
+        return this.maxBytes - this.usedBytes.get() < DeferredFileOutputStream.INITIAL_BUF_SIZE;
+    }
+
+    /**
+     * @return the number of bytes which may be kept in memory
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return the number of bytes which are currently kept in memory
+     */
+    public long getUsedBytes() {
+        return this.usedBytes.get();
+    }
+}
@@ -35,7 +35,25 @@ public class ReceivedHeaderStream extends FilterInputStream {
     public ReceivedHeaderStream(InputStream in, String heloHost, InetAddress host, String whoami, String softwareName,
             String id, String singleRecipient) {
         super(in);
+        this.header = new ByteArrayInputStream(TextUtils.getAsciiBytes(
+                formatHeader(heloHost, host, whoami, softwareName, id, singleRecipient)));
+    }
 
+    /**
+     * Formats the Received: header which is prepended by this stream.
+     *
+     * @param heloHost
+     * @param host
+     * @param whoami
+     * @param softwareName A software name and version, or null if this
+     * information should not be printed
+     * @param id
+     * @param singleRecipient The single recipient of the message. If there are
+     * more than one recipients then this must be null.
+     * @return the header, including the terminating CRLF
+     */
+    public static String formatHeader(String heloHost, InetAddress host, String whoami, String softwareName,
+            String id, String singleRecipient) {
         /* Looks like:
 Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
         by mx.google.com with SMTP id 32si2669129wfa.13.2009.05.27.18.27.31;
@@ -58,7 +76,7 @@ Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
         sb.append(";\r\n");
         sb.append("        ").append(timestamp).append("\r\n");
 
-        this.header = new ByteArrayInputStream(TextUtils.getAsciiBytes(sb.toString()));
+        return sb.toString();
     }
 
     /**
@@ -69,7 +87,7 @@ Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
      * @param host the address of the remote SMTP client.
      * @return the formatted TCP-info element as defined by RFC 5321
      */
-    private String constructTcpInfo(InetAddress host) {
+    private static String constructTcpInfo(InetAddress host) {
         // if it is not successful it just returns the address
         String domain = host.getCanonicalHostName();
         String address = host.getHostAddress();
@@ -125,7 +143,7 @@ Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
                 int remainder = len - countRead;
                 int additionalRead = super.read(b, off + countRead, remainder);
 
-                return countRead + additionalRead;
+                return additionalRead == -1 ? countRead : countRead + additionalRead;
             } else {
                 return countRead;
             }
@@ -0,0 +1,53 @@
+package org.subethamail.smtp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * Passes chunks up to the specified total size. A chunk which would exceed it
+ * is not passed, reading fails with a {@link TooMuchDataException} instead,
+ * and the rest of the content remains in the underlying source.
+ */
+public class SizeLimitedChunkSource implements ChunkSource {
+
+    private final ChunkSource source;
+
+    private final long maxSize;
+
+    private long count;
+
+    private boolean exceeded;
+
+    /**
+     * @param source the underlying source
+     * @param maxSize the maximum number of bytes
+     */
+    public SizeLimitedChunkSource(ChunkSource source, long maxSize) {
+        this.source = source;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public ByteBuffer nextChunk() throws IOException {
+        if (!this.exceeded) {
+            ByteBuffer chunk = this.source.nextChunk();
+            if (chunk == null) {
+                return null;
+            }
+            this.count += chunk.remaining();
+            if (this.count <= this.maxSize) {
+                return chunk;
+            }
+            this.exceeded = true;
+        }
+        throw new TooMuchDataException("Message size exceeds the limit of " + this.maxSize + " bytes");
+    }
+
+    /**
+     * @return true if the underlying source contained more bytes than allowed
+     */
+    public boolean isExceeded() {
+        return this.exceeded;
+    }
+}
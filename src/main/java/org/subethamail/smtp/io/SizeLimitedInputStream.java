@@ -0,0 +1,88 @@
+package org.subethamail.smtp.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * Passes at most the specified number of bytes. If the underlying stream
+ * contains more, reading fails with a {@link TooMuchDataException} instead of
+ * returning them, and the rest remains in the underlying stream, so the server
+ * can discard it without involving the message handler.
+ */
+public class SizeLimitedInputStream extends FilterInputStream {
+
+    private final long maxSize;
+
+    private long count;
+
+    private boolean exceeded;
+
+    /**
+     * @param in the underlying stream
+     * @param maxSize the maximum number of bytes
+     */
+    public SizeLimitedInputStream(InputStream in, long maxSize) {
+        super(in);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        this.checkExceeded();
+        int b = this.in.read();
+        if (b != -1) {
+            this.count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        this.checkExceeded();
+        if (len == 0) {
+            return 0;
+        }
+        // one byte beyond the limit shows that it is exceeded
+        int result = this.in.read(b, off, (int) Math.min(len, this.maxSize - this.count + 1));
+        if (result != -1) {
+            this.count(result);
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        this.checkExceeded();
+        long result = this.in.skip(Math.min(n, this.maxSize - this.count + 1));
+        this.count(result);
+        return result;
+    }
+
+    private void count(long bytes) throws TooMuchDataException {
+        this.count += bytes;
+        if (this.count > this.maxSize) {
+            this.exceeded = true;
+            this.checkExceeded();
+        }
+    }
+
+    private void checkExceeded() throws TooMuchDataException {
+        if (this.exceeded) {
+            throw new TooMuchDataException("Message size exceeds the limit of " + this.maxSize + " bytes");
+        }
+    }
+
+    /**
+     * @return true if the underlying stream contained more bytes than allowed
+     */
+    public boolean isExceeded() {
+        return this.exceeded;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
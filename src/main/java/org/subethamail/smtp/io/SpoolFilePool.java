@@ -0,0 +1,302 @@
+package org.subethamail.smtp.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of spool files for {@link DeferredFileOutputStream}, in a directory
+ * which belongs to the pool. Instead of creating and deleting a temp file for
+ * every large message, released files are truncated and reused for following
+ * messages. New files are spread over a number of subdirectories, so no single
+ * directory gets large.
+ * <p>
+ * All spool files in the directory which are left over from a previous run,
+ * for example after a crash, are deleted when the pool is created. Two pools
+ * must therefore never share a directory.
+ */
+public class SpoolFilePool {
+
+    private final static Logger log = LoggerFactory.getLogger(SpoolFilePool.class);
+
+    /**
+     * The maximum number of subdirectories.
+     */
+    public static final int MAX_SHARDS = 256;
+
+    private final File directory;
+
+    private final File[] shards;
+
+    private final int maxIdleFiles;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The released files, which are empty.
+     */
+    @GuardedBy("lock")
+    private final ArrayDeque<File> idle = new ArrayDeque<>();
+
+    /**
+     * The subdirectory of the next new file.
+     */
+    @GuardedBy("lock")
+    private int nextShard;
+
+    @GuardedBy("lock")
+    private int filesInUse;
+
+    @GuardedBy("lock")
+    private long createdFiles;
+
+    @GuardedBy("lock")
+    private long reusedFiles;
+
+    /**
+     * Creates the directory and its subdirectories if necessary, and deletes
+     * the spool files left in them.
+     *
+     * @param directory the directory of the spool files
+     * @param shards the number of subdirectories, at most {@link #MAX_SHARDS}
+     * @param maxIdleFiles the number of released files which are kept for
+     * reuse
+     * @throws IOException if a directory cannot be created
+     */
+    public SpoolFilePool(File directory, int shards, int maxIdleFiles) throws IOException {
+        if (shards < 1 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Number of shards out of range: " + shards);
+        }
+        this.directory = directory;
+        this.shards = new File[shards];
+        this.maxIdleFiles = maxIdleFiles;
+
+        for (int i = 0; i < shards; i++) {
+            File shard = new File(directory, String.format("%02x", i));
+            if (!shard.isDirectory() && !shard.mkdirs()) {
+                throw new IOException("Cannot create spool directory " + shard);
+            }
+            this.shards[i] = shard;
+            this.deleteOrphans(shard);
+        }
+    }
+
+    private void deleteOrphans(File shard) {
+        File[] files = shard.listFiles();
+        if (files == null) {
+            return;
+        }
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(DeferredFileOutputStream.TMPFILE_PREFIX)
+                    && name.endsWith(DeferredFileOutputStream.TMPFILE_SUFFIX)) {
+                if (file.delete()) {
+                    count++;
+                } else {
+                    log.warn("Cannot delete orphaned spool file {}", file);
+                }
+            }
+        }
+        if (count > 0) {
+            log.info("Deleted {} orphaned spool files in {}", count, shard);
+        }
+    }
+
+    /**
+     * Creates empty files in advance, up to the maximum number of idle files.
+     *
+     * @param count the number of files to create
+     * @throws IOException if a file cannot be created
+     */
+    public void preallocate(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            File file = this.create();
+            lock.lock();
+            try {
+                if (this.idle.size() < this.maxIdleFiles) {
+                    this.idle.addFirst(file);
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            this.delete(file);
+            return;
+        }
+    }
+
+    /**
+     * Takes an idle file, or creates a new one if there is none. It must be
+     * returned with {@link #release(File)} or {@link #discard(File)}.
+     *
+     * @return an empty file
+     * @throws IOException if a new file cannot be created
+     */
+    public File acquire() throws IOException {
+        lock.lock();
+        try {
+            File file = this.idle.pollFirst();
+            if (file != null) {
+                this.reusedFiles++;
+                this.filesInUse++;
+                return file;
+            }
+        } finally {
+            lock.unlock();
+        }
+        File file = this.create();
+        lock.lock();
+        try {
+            this.filesInUse++;
+        } finally {
+            lock.unlock();
+        }
+        return file;
+    }
+
+    private File create() throws IOException {
+        File shard;
+        lock.lock();
+        try {
+            shard = this.shards[this.nextShard];
+            this.nextShard = (this.nextShard + 1) % this.shards.length;
+            this.createdFiles++;
+        } finally {
+            lock.unlock();
+        }
+        return File.createTempFile(DeferredFileOutputStream.TMPFILE_PREFIX,
+                DeferredFileOutputStream.TMPFILE_SUFFIX, shard);
+    }
+
+    /**
+     * Returns a file acquired from this pool, which is truncated to free its
+     * space. It must not be used afterwards. Files which cannot be truncated
+     * or which exceed the number of idle files are deleted.
+     */
+    public void release(File file) {
+        boolean keep;
+        lock.lock();
+        try {
+            this.filesInUse--;
+            keep = this.idle.size() < this.maxIdleFiles;
+        } finally {
+            lock.unlock();
+        }
+
+        if (keep) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(0);
+            } catch (IOException e) {
+                log.debug("Cannot truncate spool file {}", file, e);
+                keep = false;
+            }
+        }
+
+        if (keep) {
+            lock.lock();
+            try {
+                this.idle.addFirst(file);
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            this.delete(file);
+        }
+    }
+
+    /**
+     * Returns a file acquired from this pool, which is deleted instead of
+     * reused, because it may still be accessed.
+     */
+    public void discard(File file) {
+        lock.lock();
+        try {
+            this.filesInUse--;
+        } finally {
+            lock.unlock();
+        }
+        this.delete(file);
+    }
+
+    private void delete(File file) {
+        if (!file.delete()) {
+            log.debug("Cannot delete spool file {}", file);
+        }
+    }
+
+    /**
+     * Deletes the idle files.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (File file : this.idle) {
+                this.delete(file);
+            }
+            this.idle.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the directory of the spool files
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * @return the number of files which currently hold messages
+     */
+    public int getFilesInUse() {
+        lock.lock();
+        try {
+            return this.filesInUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of empty files which are kept for reuse
+     */
+    public int getIdleFiles() {
+        lock.lock();
+        try {
+            return this.idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of files created since the pool was created
+     */
+    public long getCreatedFiles() {
+        lock.lock();
+        try {
+            return this.createdFiles;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times an idle file was reused for a message
+     */
+    public long getReusedFiles() {
+        lock.lock();
+        try {
+            return this.reusedFiles;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.subethamail.smtp.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A stream on the data of a {@link DeferredFileOutputStream}, returned by
+ * {@link DeferredFileOutputStream#getInputStream()}. Instead of reading the
+ * stream, a consumer can use the spooled data directly: transfer the spool file
+ * to another channel with {@link FileChannel#transferTo}, or process the
+ * buffers of data which is kept in memory or in a mapped file without copying
+ * it.
+ * <p>
+ * Like the stream, the channel and the buffers are only valid until the
+ * spooled data is released.
+ */
+public class SpooledInputStream extends FilterInputStream {
+
+    private final DeferredFileOutputStream spool;
+
+    SpooledInputStream(InputStream in, DeferredFileOutputStream spool) {
+        super(in);
+        this.spool = spool;
+    }
+
+    /**
+     * Returns the channel of the spool file. It is shared by all readers of
+     * the data, so only methods which take a position may be used, and it must
+     * not be closed.
+     *
+     * @return the channel of the file, or null if the data is in memory
+     * @throws IOException if the file cannot be opened
+     * @see DeferredFileOutputStream#getFileChannel()
+     */
+    public FileChannel getFileChannel() throws IOException {
+        return this.spool.getFileChannel();
+    }
+
+    /**
+     * @return read-only buffers with the data, or null if the data is in a
+     * file which is not mapped
+     * @throws IOException if the file cannot be mapped
+     * @see DeferredFileOutputStream#getBuffers()
+     */
+    public ByteBuffer[] getBuffers() throws IOException {
+        return this.spool.getBuffers();
+    }
+}
@@ -0,0 +1,275 @@
+package org.subethamail.smtp.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the parts of a multipart body (RFC 2046) one after the other. The
+ * stream ends at the end of the current part, {@link #nextPart()} moves to the
+ * next one. Before the first call of {@link #nextPart()} the stream reads the
+ * preamble.
+ * <p>
+ * The delimiter lines are found while the content is read, so the memory used
+ * does not depend on the size of the parts. The line break before a delimiter
+ * belongs to the delimiter, it is not part of the content. Bare LF line breaks
+ * are accepted as well as CRLF.
+ */
+class BoundaryInputStream extends InputStream {
+
+    private final static int BUFFER_SIZE = 1024 * 8;
+
+    private final InputStream in;
+
+    /**
+     * The dash-boundary, i.e. "--" followed by the boundary.
+     */
+    private final byte[] delimiter;
+
+    private final byte[] buffer;
+
+    private int position;
+
+    private int limit;
+
+    /**
+     * The end of the bytes from the position on which are known to be
+     * content.
+     */
+    private int safe;
+
+    /**
+     * The offset of a delimiter which was found by the last scan, or -1.
+     */
+    private int delimiterAt = -1;
+
+    /**
+     * The length of that delimiter, including the line break before it.
+     */
+    private int delimiterLength;
+
+    /**
+     * True until the first scan, the first delimiter may start the body
+     * without a line break before it.
+     */
+    private boolean atStart = true;
+
+    /**
+     * True if the end of the underlying stream has been read into the buffer.
+     */
+    private boolean eof;
+
+    /**
+     * True while the content of the current part (or the preamble) is read.
+     */
+    private boolean inPart = true;
+
+    /**
+     * True after the close delimiter or the end of the underlying stream.
+     */
+    private boolean closed;
+
+    /**
+     * @param in the body of the multipart entity
+     * @param boundary the boundary parameter of its content type
+     */
+    BoundaryInputStream(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        this.buffer = new byte[Math.max(BUFFER_SIZE, this.delimiter.length * 2 + 4)];
+    }
+
+    /**
+     * Skips the rest of the current part and moves to the next one.
+     *
+     * @return false if there is no further part
+     */
+    boolean nextPart() throws IOException {
+        while (this.skip(Long.MAX_VALUE) > 0);
+        if (this.closed) {
+            return false;
+        }
+        this.inPart = true;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (this.inPart && this.position < this.safe) {
+            return this.buffer[this.position++] & 0xff;
+        }
+        byte[] b = new byte[1];
+        return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!this.inPart) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (this.position == this.safe) {
+            if (this.delimiterAt == this.position) {
+                this.consumeDelimiter();
+                return -1;
+            }
+            if (this.eof && this.position == this.limit) {
+                // the multipart entity is truncated
+                this.inPart = false;
+                this.closed = true;
+                return -1;
+            }
+            this.fill();
+            this.scan();
+        }
+        int count = Math.min(len, this.safe - this.position);
+        System.arraycopy(this.buffer, this.position, b, off, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (this.inPart && this.position < this.safe) {
+                int count = (int) Math.min(n - skipped, this.safe - this.position);
+                this.position += count;
+                skipped += count;
+            } else if (this.read() == -1) {
+                break;
+            } else {
+                skipped++;
+            }
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return this.inPart ? this.safe - this.position : 0;
+    }
+
+    /**
+     * Reads more bytes into the buffer, after moving the unread bytes to its
+     * beginning.
+     */
+    private void fill() throws IOException {
+        if (this.position > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.safe -= this.position;
+            this.position = 0;
+        }
+        int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (read == -1) {
+            this.eof = true;
+        } else {
+            this.limit += read;
+        }
+    }
+
+    /**
+     * Finds the content which can be returned from the position on, up to the
+     * next delimiter or up to a line break which cannot be decided yet.
+     */
+    private void scan() {
+        this.delimiterAt = -1;
+        int i = this.position;
+        if (this.atStart) {
+            int match = this.matchDelimiter(i, false);
+            if (match == -1) {
+                this.safe = i;
+                return;
+            }
+            this.atStart = false;
+            if (match > 0) {
+                this.found(i, match);
+                return;
+            }
+        }
+        for (; i < this.limit; i++) {
+            byte c = this.buffer[i];
+            if (c == '\r' || c == '\n') {
+                int match = this.matchDelimiter(i, true);
+                if (match == -1) {
+                    this.safe = i;
+                    return;
+                } else if (match > 0) {
+                    this.found(i, match);
+                    return;
+                }
+            }
+        }
+        this.safe = this.limit;
+    }
+
+    private void found(int offset, int length) {
+        this.safe = offset;
+        this.delimiterAt = offset;
+        this.delimiterLength = length;
+    }
+
+    /**
+     * @return the length of the delimiter at the offset, 0 if there is none,
+     * or -1 if more bytes are needed to decide
+     */
+    private int matchDelimiter(int offset, boolean lineBreak) {
+        int i = offset;
+        if (lineBreak) {
+            if (this.buffer[i] == '\r') {
+                i++;
+                if (i == this.limit) {
+                    return this.eof ? 0 : -1;
+                } else if (this.buffer[i] != '\n') {
+                    return 0;
+                }
+            }
+            i++;
+        }
+        for (byte d : this.delimiter) {
+            if (i == this.limit) {
+                return this.eof ? 0 : -1;
+            } else if (this.buffer[i] != d) {
+                return 0;
+            }
+            i++;
+        }
+        return i - offset;
+    }
+
+    /**
+     * Reads the delimiter line and ends the current part.
+     */
+    private void consumeDelimiter() throws IOException {
+        this.position += this.delimiterLength;
+        this.delimiterAt = -1;
+        this.safe = this.position;
+        this.inPart = false;
+
+        while (this.limit - this.position < 2 && !this.eof) {
+            this.fill();
+        }
+        if (this.limit - this.position >= 2
+                && this.buffer[this.position] == '-' && this.buffer[this.position + 1] == '-') {
+            // the close delimiter, the rest is the epilogue
+            this.closed = true;
+            return;
+        }
+        // skip transport padding up to the end of the line
+        while (true) {
+            if (this.position == this.limit) {
+                if (this.eof) {
+                    this.closed = true;
+                    break;
+                }
+                this.fill();
+            } else if (this.buffer[this.position++] == '\n') {
+                break;
+            }
+        }
+        this.safe = this.position;
+    }
+}
@@ -0,0 +1,118 @@
+package org.subethamail.smtp.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.io.HeaderBlockReader;
+
+/**
+ * Walks the MIME structure (RFC 2045, RFC 2046) of a message while it is read,
+ * for example from the stream passed to
+ * {@link org.subethamail.smtp.MessageHandler#data(InputStream)}. The content
+ * of each part is decoded on the fly and written to a stream supplied by the
+ * {@link MimePartHandler}, so the memory used does not depend on the size of
+ * the message or of its attachments.
+ * <p>
+ * Nested multipart entities are walked as well, up to {@link #MAX_DEPTH}. A
+ * message/rfc822 part is passed to the handler as a whole, its own parts are
+ * not walked.
+ */
+public class MimeParser {
+
+    /**
+     * The number of nested multipart entities which are walked. Deeper
+     * multipart entities are passed to the handler like any other part.
+     */
+    public static final int MAX_DEPTH = 16;
+
+    private final static int BUFFER_SIZE = 1024 * 8;
+
+    private final MimePartHandler handler;
+
+    /**
+     * @param handler receives the content of the parts
+     */
+    public MimeParser(MimePartHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parses a message and reads it to the end.
+     *
+     * @param message the message, beginning with its header block
+     * @throws IOException if reading the message or writing to a stream of the
+     * handler fails
+     */
+    public void parse(InputStream message) throws IOException {
+        HeaderBlockReader reader = new HeaderBlockReader(message, HeaderBlockReader.DEFAULT_MAX_LENGTH);
+        MessageHeaders headers = reader.read();
+        this.parse(headers, reader.getBody());
+    }
+
+    /**
+     * Parses a message of which the header block has already been parsed, for
+     * example by the server, see
+     * {@link org.subethamail.smtp.MessageContext#getMessageHeaders()}.
+     *
+     * @param headers the header fields of the message
+     * @param body the body of the message, which is read to the end
+     * @throws IOException if reading the message or writing to a stream of the
+     * handler fails
+     */
+    public void parse(MessageHeaders headers, InputStream body) throws IOException {
+        this.parse(new MimePart(headers, null, 0), body);
+    }
+
+    private void parse(MimePart part, InputStream body) throws IOException {
+        String boundary = part.isMultipart() ? part.getContentTypeParameter("boundary") : null;
+        if (boundary != null && !boundary.isEmpty() && part.getDepth() < MAX_DEPTH) {
+            BoundaryInputStream parts = new BoundaryInputStream(body, boundary);
+            for (int index = 0; parts.nextPart(); index++) {
+                HeaderBlockReader reader = new HeaderBlockReader(parts, HeaderBlockReader.DEFAULT_MAX_LENGTH);
+                MessageHeaders headers = reader.read();
+                this.parse(new MimePart(headers, part, index), reader.getBody());
+            }
+        } else {
+            OutputStream out = this.handler.part(part);
+            if (out != null) {
+                try {
+                    copy(decode(part, body), out);
+                } finally {
+                    out.close();
+                }
+            }
+        }
+        // the epilogue, or whatever the decoder left unread
+        drain(body);
+    }
+
+    /**
+     * @return a stream which decodes the content transfer encoding of the
+     * part, base64 and quoted-printable are decoded, others are passed as is
+     */
+    private static InputStream decode(MimePart part, InputStream body) {
+        switch (part.getTransferEncoding()) {
+            case "base64":
+                return Base64.getMimeDecoder().wrap(body);
+            case "quoted-printable":
+                return new QuotedPrintableInputStream(body);
+            default:
+                return body;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) != -1);
+    }
+}
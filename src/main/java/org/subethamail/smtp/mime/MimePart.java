@@ -0,0 +1,176 @@
+package org.subethamail.smtp.mime;
+
+import java.util.Locale;
+import org.subethamail.smtp.MessageHeaders;
+
+/**
+ * A MIME entity (RFC 2045) found by {@link MimeParser}: the message itself or
+ * one of the parts of a multipart entity. The values are taken from its header
+ * fields, with the defaults of RFC 2045 where a field is missing.
+ */
+public final class MimePart {
+
+    private final MessageHeaders headers;
+    private final MimePart parent;
+    private final int index;
+
+    MimePart(MessageHeaders headers, MimePart parent, int index) {
+        this.headers = headers;
+        this.parent = parent;
+        this.index = index;
+    }
+
+    /**
+     * @return the header fields of the part
+     */
+    public MessageHeaders getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * @return the multipart entity which contains this part, or null if this
+     * is the message itself
+     */
+    public MimePart getParent() {
+        return this.parent;
+    }
+
+    /**
+     * @return the position of this part in its parent, starting with 0
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return the number of multipart entities which contain this part
+     */
+    public int getDepth() {
+        return this.parent == null ? 0 : this.parent.getDepth() + 1;
+    }
+
+    /**
+     * @return the media type and subtype in lower case, without parameters,
+     * for example "text/plain"
+     */
+    public String getContentType() {
+        String value = this.headers.get("Content-Type");
+        if (value != null) {
+            int end = value.indexOf(';');
+            String type = (end == -1 ? value : value.substring(0, end)).trim();
+            if (type.indexOf('/') > 0) {
+                return type.toLowerCase(Locale.ENGLISH);
+            }
+        }
+        if (this.parent != null && "multipart/digest".equals(this.parent.getContentType())) {
+            return "message/rfc822";
+        }
+        return "text/plain";
+    }
+
+    /**
+     * @return true if the content type is multipart
+     */
+    public boolean isMultipart() {
+        return this.getContentType().startsWith("multipart/");
+    }
+
+    /**
+     * @param name the name of the parameter, case insensitive
+     * @return the value of the parameter of the Content-Type field, or null
+     */
+    public String getContentTypeParameter(String name) {
+        return parameter(this.headers.get("Content-Type"), name);
+    }
+
+    /**
+     * @return the charset parameter of the content type, or null
+     */
+    public String getCharset() {
+        return this.getContentTypeParameter("charset");
+    }
+
+    /**
+     * @return the content transfer encoding in lower case, "7bit" if it is not
+     * specified
+     */
+    public String getTransferEncoding() {
+        String value = this.headers.get("Content-Transfer-Encoding");
+        return value == null || value.isEmpty() ? "7bit" : value.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return true if the Content-Disposition field declares the part as an
+     * attachment
+     */
+    public boolean isAttachment() {
+        String value = this.headers.get("Content-Disposition");
+        return value != null && value.toLowerCase(Locale.ENGLISH).startsWith("attachment");
+    }
+
+    /**
+     * Returns the file name suggested by the filename parameter of the
+     * Content-Disposition field, or by the name parameter of the Content-Type
+     * field. It is taken as is, a handler which stores the part in a file must
+     * not use it as a path.
+     *
+     * @return the file name, or null
+     */
+    public String getFileName() {
+        String name = parameter(this.headers.get("Content-Disposition"), "filename");
+        return name != null ? name : this.getContentTypeParameter("name");
+    }
+
+    /**
+     * Finds a parameter in a structured header field value, such as
+     * <code>text/plain; charset="utf-8"</code>. Quoted strings are unquoted.
+     * Parameters encoded according to RFC 2231 are not decoded.
+     *
+     * @return the value of the parameter, or null
+     */
+    static String parameter(String value, String name) {
+        if (value == null) {
+            return null;
+        }
+        int i = value.indexOf(';');
+        while (i != -1 && i < value.length()) {
+            int equals = value.indexOf('=', i + 1);
+            if (equals == -1) {
+                return null;
+            }
+            String key = value.substring(i + 1, equals).trim();
+            int start = equals + 1;
+            while (start < value.length() && value.charAt(start) == ' ') {
+                start++;
+            }
+            String parameterValue;
+            int end;
+            if (start < value.length() && value.charAt(start) == '"') {
+                StringBuilder quoted = new StringBuilder();
+                end = start + 1;
+                while (end < value.length() && value.charAt(end) != '"') {
+                    if (value.charAt(end) == '\\' && end + 1 < value.length()) {
+                        end++;
+                    }
+                    quoted.append(value.charAt(end));
+                    end++;
+                }
+                parameterValue = quoted.toString();
+                end = value.indexOf(';', end);
+            } else {
+                end = value.indexOf(';', start);
+                parameterValue = (end == -1 ? value.substring(start) : value.substring(start, end)).trim();
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return parameterValue;
+            }
+            i = end;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return this.getContentType() + " (" + this.getDepth() + "." + this.index + ")";
+    }
+}
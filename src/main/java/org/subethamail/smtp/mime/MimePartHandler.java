@@ -0,0 +1,25 @@
+package org.subethamail.smtp.mime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Receives the content of the parts found by a {@link MimeParser}.
+ */
+public interface MimePartHandler {
+
+    /**
+     * Called for each part which is not a multipart entity, in the order of
+     * the message. The content is written to the returned stream as it is
+     * read from the message, already decoded from base64 or quoted-printable.
+     * A file can be used as well as any other stream, for example a channel
+     * wrapped by {@link java.nio.channels.Channels#newOutputStream}.
+     *
+     * @param part the part, the header fields of which are already parsed
+     * @return the stream which receives the content, it is closed by the
+     * parser at the end of the part. Null skips the content.
+     * @throws IOException if the stream cannot be opened. The parser does not
+     * continue.
+     */
+    public OutputStream part(MimePart part) throws IOException;
+}
@@ -0,0 +1,91 @@
+package org.subethamail.smtp.mime;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Decodes the quoted-printable content transfer encoding (RFC 2045) while the
+ * content is read. Soft line breaks are removed, invalid escape sequences are
+ * passed through unchanged.
+ */
+class QuotedPrintableInputStream extends FilterInputStream {
+
+    QuotedPrintableInputStream(InputStream in) {
+        super(new PushbackInputStream(in, 2));
+    }
+
+    @Override
+    public int read() throws IOException {
+        PushbackInputStream pin = (PushbackInputStream) this.in;
+        while (true) {
+            int c = pin.read();
+            if (c != '=') {
+                return c;
+            }
+            int first = pin.read();
+            if (first == '\n') {
+                continue; // soft line break
+            } else if (first == '\r') {
+                int second = pin.read();
+                if (second == '\n') {
+                    continue; // soft line break
+                }
+                unread(pin, second);
+                unread(pin, first);
+                return c;
+            }
+            int second = pin.read();
+            int high = Character.digit(first, 16);
+            int low = Character.digit(second, 16);
+            if (first != -1 && second != -1 && high != -1 && low != -1) {
+                return high << 4 | low;
+            }
+            unread(pin, second);
+            unread(pin, first);
+            return c;
+        }
+    }
+
+    private static void unread(PushbackInputStream pin, int b) throws IOException {
+        if (b != -1) {
+            pin.unread(b);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < len) {
+            int c = this.read();
+            if (c == -1) {
+                break;
+            }
+            b[off + count++] = (byte) c;
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && this.read() != -1) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,268 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.BodyPublisher;
+import org.subethamail.smtp.BodySubscriber;
+import org.subethamail.smtp.BodySubscription;
+import org.subethamail.smtp.io.ChunkSource;
+import org.subethamail.smtp.io.ReceivedHeaderStream;
+import org.subethamail.smtp.util.TextUtils;
+
+/**
+ * Publishes the message content read by a {@link ChunkSource} to the
+ * subscriber of a {@link org.subethamail.smtp.StreamingMessageHandler}. The
+ * chunks are pushed by the session thread in {@link #publish}, which only
+ * reads the next chunk from the client when the subscriber has demand.
+ * Unless it is disabled, the Received: header is passed as the first chunk.
+ */
+public final class ChunkPublisher implements BodyPublisher {
+
+    private final static Logger log = LoggerFactory.getLogger(ChunkPublisher.class);
+
+    private final ChunkSource source;
+
+    /**
+     * The Received: header, or null.
+     */
+    private ByteBuffer header;
+
+    /**
+     * The time to wait for demand in milliseconds, or 0 to wait forever.
+     */
+    private final int demandTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signaled when the demand, the subscription or the stage changes.
+     */
+    private final Condition changed = lock.newCondition();
+
+    @GuardedBy("lock")
+    private BodySubscriber subscriber;
+    /**
+     * True after {@link BodySubscriber#onSubscribe} has returned, chunks are
+     * not pushed before.
+     */
+    @GuardedBy("lock")
+    private boolean subscribed;
+    @GuardedBy("lock")
+    private long demand;
+    @GuardedBy("lock")
+    private boolean cancelled;
+    /**
+     * The error caused by a request of a non-positive number of chunks, or
+     * null.
+     */
+    @GuardedBy("lock")
+    private IllegalArgumentException invalidRequest;
+    /**
+     * True if the stage returned by the message handler has completed.
+     */
+    @GuardedBy("lock")
+    private boolean stageCompleted;
+
+    /**
+     * @param sess the session receiving the message
+     * @param source the message content, positioned at its beginning
+     */
+    public ChunkPublisher(Session sess, ChunkSource source) {
+        this.source = source;
+        this.demandTimeout = sess.getServer().getConnectionTimeout();
+        if (!sess.getServer().getDisableReceivedHeaders()) {
+            String received = ReceivedHeaderStream.formatHeader(sess.getHelo(),
+                    sess.getRemoteAddress().getAddress(), sess.getServer().getHostName(),
+                    sess.getServer().getSoftwareName(), sess.getSessionId(),
+                    sess.getSingleRecipient());
+            this.header = ByteBuffer.wrap(TextUtils.getAsciiBytes(received)).asReadOnlyBuffer();
+        }
+    }
+
+    @Override
+    public void subscribe(BodySubscriber subscriber) {
+        lock.lock();
+        boolean first;
+        try {
+            first = this.subscriber == null;
+            if (first) {
+                this.subscriber = subscriber;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (!first) {
+            subscriber.onSubscribe(new BodySubscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The message content has already been subscribed to"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Subscription());
+        lock.lock();
+        try {
+            this.subscribed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pushes the chunks to the subscriber until the end of the content, until
+     * the subscription is cancelled or until the stage completes. The content
+     * which is not pushed remains in the source.
+     *
+     * @param stage the stage returned by the message handler
+     * @throws IOException if reading from the client fails, or if the
+     * subscriber has no demand for longer than the connection timeout. The
+     * subscriber receives the exception as well.
+     */
+    public void publish(CompletionStage<?> stage) throws IOException {
+        stage.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object value, Throwable failure) {
+                lock.lock();
+                try {
+                    stageCompleted = true;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+
+        BodySubscriber target;
+        while ((target = this.awaitDemand()) != null) {
+            ByteBuffer chunk;
+            try {
+                chunk = this.header != null ? this.header : this.source.nextChunk();
+                this.header = null;
+            } catch (IOException e) {
+                target.onError(e);
+                throw e;
+            }
+            if (chunk == null) {
+                target.onComplete();
+                return;
+            }
+
+            try {
+                target.onNext(chunk);
+            } catch (RuntimeException e) {
+                log.warn("The subscriber of the message content failed, the rest of the message is discarded", e);
+                this.cancel();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits until a chunk may be pushed, and takes it from the demand.
+     *
+     * @return the subscriber, or null if the delivery is stopped
+     */
+    private BodySubscriber awaitDemand() throws IOException {
+        Exception failure = null;
+        BodySubscriber target = null;
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(this.demandTimeout);
+            while (!this.cancelled && !this.stageCompleted
+                    && !(this.subscribed && (this.demand > 0 || this.invalidRequest != null))) {
+                if (this.demandTimeout <= 0) {
+                    changed.await();
+                } else if (remaining > 0) {
+                    remaining = changed.awaitNanos(remaining);
+                } else {
+                    failure = new IOException("The message handler did not request the message content in time");
+                    break;
+                }
+            }
+            if (this.subscribed) {
+                target = this.subscriber;
+            }
+            if (failure == null) {
+                if (this.cancelled || this.stageCompleted) {
+                    return null;
+                } else if (this.invalidRequest != null) {
+                    // the subscriber is in error, it receives nothing else
+                    this.cancelled = true;
+                    failure = this.invalidRequest;
+                } else {
+                    if (this.demand != Long.MAX_VALUE) {
+                        this.demand--;
+                    }
+                    return target;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException("Interrupted while waiting for the message handler");
+        } finally {
+            lock.unlock();
+        }
+
+        if (target != null) {
+            target.onError(failure);
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        return null;
+    }
+
+    private void cancel() {
+        lock.lock();
+        try {
+            this.cancelled = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The subscription of the single subscriber.
+     */
+    private class Subscription implements BodySubscription {
+
+        @Override
+        public void request(long n) {
+            lock.lock();
+            try {
+                if (n <= 0) {
+                    if (invalidRequest == null) {
+                        invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+                    }
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            ChunkPublisher.this.cancel();
+        }
+    }
+}
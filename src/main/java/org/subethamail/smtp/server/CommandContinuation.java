@@ -0,0 +1,24 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import org.subethamail.smtp.DropConnectionException;
+
+/**
+ * The part of a command which is executed after a stage returned by an
+ * {@link org.subethamail.smtp.AsyncMessageHandler} has completed, see
+ * {@link Session#whenComplete}. It usually sends the reply to the command.
+ *
+ * @param <T> the type of the result of the stage
+ */
+public interface CommandContinuation<T> {
+
+    /**
+     * Continues the command. It is called on the session thread, or on a
+     * worker thread of the non-blocking transport.
+     *
+     * @param result the outcome of the stage
+     * @throws IOException if sending to or receiving from the client fails.
+     * @throws DropConnectionException if the connection should be dropped
+     */
+    public void proceed(CompletionResult<T> result) throws IOException, DropConnectionException;
+}
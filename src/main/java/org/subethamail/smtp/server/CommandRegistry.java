@@ -5,6 +5,7 @@
 package org.subethamail.smtp.server;
 
 import org.subethamail.smtp.command.AuthCommand;
+import org.subethamail.smtp.command.BdatCommand;
 import org.subethamail.smtp.command.DataCommand;
 import org.subethamail.smtp.command.EhloCommand;
 import org.subethamail.smtp.command.ExpandCommand;
@@ -25,6 +26,8 @@ import org.subethamail.smtp.command.VerifyCommand;
  */
 public enum CommandRegistry {
     AUTH(new AuthCommand(), true, false),
+    // BDAT must always consume its chunk, the MAIL command checks TLS and auth
+    BDAT(new BdatCommand(), false, false),
     DATA(new DataCommand(), true, true),
     EHLO(new EhloCommand(), false, false),
     HELO(new HelloCommand(), true, false),
@@ -0,0 +1,57 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import org.subethamail.smtp.RejectException;
+
+/**
+ * The outcome of a completed stage, passed to a {@link CommandContinuation}.
+ * The failure of the stage is thrown again by {@link #get()}, so it can be
+ * handled like the exceptions of a synchronous
+ * {@link org.subethamail.smtp.MessageHandler}.
+ *
+ * @param <T> the type of the result
+ */
+public final class CompletionResult<T> {
+
+    private final T value;
+    private final Throwable failure;
+
+    CompletionResult(T value, Throwable failure) {
+        this.value = value;
+        this.failure = unwrap(failure);
+    }
+
+    /**
+     * @return the result of the stage
+     * @throws RejectException if the stage completed with a RejectException
+     * @throws IOException if the stage completed with an IOException
+     */
+    public T get() throws RejectException, IOException {
+        if (this.failure == null) {
+            return this.value;
+        } else if (this.failure instanceof RejectException) {
+            throw (RejectException) this.failure;
+        } else if (this.failure instanceof IOException) {
+            throw (IOException) this.failure;
+        } else if (this.failure instanceof RuntimeException) {
+            throw (RuntimeException) this.failure;
+        } else if (this.failure instanceof Error) {
+            throw (Error) this.failure;
+        } else {
+            throw new RuntimeException("Unexpected exception", this.failure);
+        }
+    }
+
+    /**
+     * Removes the wrappers added by the composition of stages.
+     */
+    private static Throwable unwrap(Throwable failure) {
+        while ((failure instanceof CompletionException || failure instanceof ExecutionException)
+                && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure;
+    }
+}
@@ -0,0 +1,101 @@
+package org.subethamail.smtp.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the connections of a server. It is shared by all
+ * {@link ServerThread}s of the server, so the connection limit is enforced
+ * globally, without a common monitor.
+ */
+class ConnectionLimit {
+
+    private final int maxConnections;
+
+    /**
+     * A semaphore which is used to prevent accepting new connections by
+     * blocking the accepting threads if the allowed count of open connections
+     * is already reached.
+     */
+    private final Semaphore connectionPermits;
+
+    /**
+     * The number of registered sessions.
+     */
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    /**
+     * The number of connections which were rejected because the limit was
+     * reached.
+     */
+    private final AtomicLong shedCount = new AtomicLong();
+
+    ConnectionLimit(int maxConnections) {
+        this.maxConnections = maxConnections;
+        // reserve a few places for graceful disconnects with informative
+        // messages
+        this.connectionPermits = new Semaphore(maxConnections + 10);
+    }
+
+    /**
+     * Blocks until a new connection may be accepted, or the timeout elapses.
+     *
+     * @return false if the timeout elapsed
+     */
+    boolean acquirePermit(long timeout, TimeUnit unit) throws InterruptedException {
+        return connectionPermits.tryAcquire(timeout, unit);
+    }
+
+    /**
+     * Releases the permit acquired for a connection which could not be
+     * accepted.
+     */
+    void releasePermit() {
+        connectionPermits.release();
+    }
+
+    /**
+     * Counts a session which is about to be started, unless the limit is
+     * already reached.
+     *
+     * @return false if the connection must be rejected
+     */
+    boolean sessionStarting() {
+        int count;
+        do {
+            count = sessionCount.get();
+            if (count >= maxConnections) {
+                return false;
+            }
+        } while (!sessionCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Reverts {@link #sessionStarting()} and releases the permit of the
+     * connection.
+     */
+    void sessionEnded() {
+        sessionCount.decrementAndGet();
+        connectionPermits.release();
+    }
+
+    /**
+     * Counts a connection which was rejected because
+     * {@link #sessionStarting()} returned false, and releases its permit.
+     */
+    void connectionShed() {
+        shedCount.incrementAndGet();
+        connectionPermits.release();
+    }
+
+    int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    long getShedCount() {
+        return shedCount.get();
+    }
+}
@@ -0,0 +1,32 @@
+package org.subethamail.smtp.server;
+
+import java.util.concurrent.CompletionStage;
+import org.subethamail.smtp.AsyncHeaderCheckingMessageHandler;
+import org.subethamail.smtp.HeaderCheckingMessageHandler;
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.RejectException;
+
+/**
+ * Presents a {@link HeaderCheckingMessageHandler} as an
+ * {@link AsyncHeaderCheckingMessageHandler}.
+ */
+class HeaderCheckingMessageHandlerAdapter extends MessageHandlerAdapter
+        implements AsyncHeaderCheckingMessageHandler {
+
+    private final HeaderCheckingMessageHandler handler;
+
+    HeaderCheckingMessageHandlerAdapter(HeaderCheckingMessageHandler handler) {
+        super(handler);
+        this.handler = handler;
+    }
+
+    @Override
+    public CompletionStage<Void> headers(MessageHeaders headers) {
+        try {
+            this.handler.headers(headers);
+            return ACCEPTED;
+        } catch (RejectException e) {
+            return failed(e);
+        }
+    }
+}
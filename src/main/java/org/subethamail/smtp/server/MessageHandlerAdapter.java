@@ -0,0 +1,70 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.subethamail.smtp.AsyncMessageHandler;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+
+/**
+ * Presents a {@link MessageHandler} as an {@link AsyncMessageHandler}. The
+ * methods of the handler are called on the session thread, and the returned
+ * stages are already completed, so the session continues without suspending.
+ */
+class MessageHandlerAdapter implements AsyncMessageHandler {
+
+    static final CompletableFuture<Void> ACCEPTED = CompletableFuture.completedFuture(null);
+
+    private final MessageHandler handler;
+
+    MessageHandlerAdapter(MessageHandler handler) {
+        this.handler = handler;
+    }
+
+    MessageHandler getHandler() {
+        return this.handler;
+    }
+
+    @Override
+    public CompletionStage<Void> from(String from) {
+        try {
+            this.handler.from(from);
+            return ACCEPTED;
+        } catch (RejectException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> recipient(String recipient) {
+        try {
+            this.handler.recipient(recipient);
+            return ACCEPTED;
+        } catch (RejectException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> data(InputStream data) {
+        try {
+            this.handler.data(data);
+            return ACCEPTED;
+        } catch (RejectException | IOException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public void done() {
+        this.handler.done();
+    }
+
+    static CompletableFuture<Void> failed(Exception e) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+}
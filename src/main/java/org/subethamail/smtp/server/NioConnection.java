@@ -0,0 +1,550 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client connection on the non-blocking transport. The event loop thread
+ * reads the incoming bytes into its shared read buffer and keeps the unread
+ * part in a buffer of this object, and the {@link Session} is only dispatched
+ * to the executor of the server when a complete command line is available.
+ * Between commands no thread is occupied by the connection, and an idle
+ * connection does not hold an input buffer.
+ * <p>
+ * Commands executed by the session read the buffered input through a blocking
+ * {@link InputStream} view. If the buffer runs dry, for example while the
+ * message content is received in the DATA command, the worker thread waits
+ * until the event loop delivers the next chunk.
+ */
+class NioConnection implements Runnable {
+
+    private final static Logger log = LoggerFactory.getLogger(NioConnection.class);
+
+    /**
+     * Maximum size of the input buffer. It must be larger than the maximum line
+     * length, so a full buffer always contains a complete or an overlong line.
+     */
+    final static int BUFFER_SIZE = 1024 * 32;
+
+    private final SMTPServer server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final Input input = new Input();
+    private final Output output = new Output();
+
+    private Session session;
+
+    /**
+     * The registration of the channel with the selector of the event loop.
+     * Only accessed by the event loop thread.
+     */
+    private SelectionKey key;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signaled when new input arrives or the connection is closed.
+     */
+    private final Condition inputChanged = lock.newCondition();
+
+    /**
+     * The received bytes which have not been read by the session yet. It is
+     * allocated when input arrives, grows up to {@link #BUFFER_SIZE}, and is
+     * released when the session becomes idle with nothing left to read.
+     */
+    @GuardedBy("lock")
+    private byte[] buffer;
+    /**
+     * Index of the first unread byte in the buffer.
+     */
+    @GuardedBy("lock")
+    private int start;
+    /**
+     * Index after the last received byte in the buffer.
+     */
+    @GuardedBy("lock")
+    private int end;
+    /**
+     * True if the client closed the connection or reading failed.
+     */
+    @GuardedBy("lock")
+    private boolean eof;
+    /**
+     * True if the session closed the connection.
+     */
+    @GuardedBy("lock")
+    private boolean closed;
+    /**
+     * True if the idle timeout of the connection expired.
+     */
+    @GuardedBy("lock")
+    private boolean timedOut;
+    /**
+     * True while the session is running on a worker thread.
+     */
+    @GuardedBy("lock")
+    private boolean dispatched;
+    /**
+     * True if the event loop stopped reading because the buffer is full.
+     */
+    @GuardedBy("lock")
+    private boolean suspended;
+    /**
+     * The time of the last received input or of the last dispatch, in
+     * milliseconds.
+     */
+    @GuardedBy("lock")
+    private long lastActivity = System.currentTimeMillis();
+
+    /**
+     * Selector used to wait until the channel becomes writable, created when it
+     * is first needed.
+     */
+    private Selector writeSelector;
+
+    NioConnection(SMTPServer server, NioEventLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+    }
+
+    /**
+     * Sets the session driven by this connection and marks it as dispatched,
+     * the first dispatch sends the welcome message.
+     */
+    void setSession(Session session) {
+        this.session = session;
+        lock.lock();
+        try {
+            this.dispatched = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Socket getSocket() {
+        return channel.socket();
+    }
+
+    InputStream getInputStream() {
+        return input;
+    }
+
+    OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Registers the channel with the selector. Called by the event loop
+     * thread.
+     */
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Passes the session to the executor of the server.
+     */
+    void dispatch() {
+        try {
+            server.getExecutorService().execute(this);
+        } catch (RejectedExecutionException e) {
+            log.error("Error while executing a session", e);
+            session.quit();
+            // the session will not run again, release it here
+            session.resume();
+        }
+    }
+
+    /**
+     * Runs the buffered commands of the session on a worker thread, and
+     * returns the connection to the event loop when more input is necessary.
+     */
+    @Override
+    public void run() {
+        while (session.resume()) {
+            if (session.isSuspended()) {
+                // dispatched again when the message handler completes
+                return;
+            }
+            lock.lock();
+            try {
+                if (!hasBufferedLineLocked()) {
+                    dispatched = false;
+                    lastActivity = System.currentTimeMillis();
+                    if (start == end) {
+                        buffer = null;
+                        start = end = 0;
+                    }
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns true if reading a line would not block, because a line
+     * terminator, the end of the input or a full buffer is reached.
+     */
+    boolean hasBufferedLine() {
+        lock.lock();
+        try {
+            return hasBufferedLineLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean hasBufferedLineLocked() {
+        if (eof || closed || timedOut || end - start == BUFFER_SIZE) {
+            return true;
+        }
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the available bytes from the channel. Called by the event loop
+     * thread when the channel is readable.
+     *
+     * @param readBuffer the read buffer of the event loop
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        boolean dispatchNow = false;
+        boolean hangUp = false;
+        lock.lock();
+        try {
+            readBuffer.clear();
+            readBuffer.limit(BUFFER_SIZE - (end - start));
+
+            int count;
+            try {
+                count = channel.read(readBuffer);
+            } catch (IOException e) {
+                log.debug("Error reading from client", e);
+                count = -1;
+            }
+
+            if (count < 0) {
+                eof = true;
+                setInterest(0);
+            } else {
+                append(readBuffer.array(), count);
+                lastActivity = System.currentTimeMillis();
+                if (end - start == BUFFER_SIZE) {
+                    suspended = true;
+                    setInterest(0);
+                }
+            }
+            inputChanged.signalAll();
+
+            if (!dispatched && hasBufferedLineLocked()) {
+                dispatched = true;
+                dispatchNow = true;
+            } else if (dispatched && eof && start == end) {
+                hangUp = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // a session waiting for its message handler does not read, it must
+        // not wait for the stage after the client has gone without leaving
+        // pipelined commands
+        if (dispatchNow || (hangUp && session.abortPendingCommand())) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Appends received bytes to the input buffer, allocating or growing it as
+     * necessary.
+     */
+    @GuardedBy("lock")
+    private void append(byte[] b, int count) {
+        if (count == 0) {
+            return;
+        }
+        int pending = end - start;
+        if (buffer == null || buffer.length < pending + count) {
+            int size = buffer == null ? 0 : buffer.length * 2;
+            byte[] grown = new byte[Math.min(BUFFER_SIZE, Math.max(size, pending + count))];
+            if (pending > 0) {
+                System.arraycopy(buffer, start, grown, 0, pending);
+            }
+            buffer = grown;
+            start = 0;
+            end = pending;
+        } else if (buffer.length - end < count) {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+            start = 0;
+            end = pending;
+        }
+        System.arraycopy(b, 0, buffer, end, count);
+        end += count;
+    }
+
+    /**
+     * Dispatches the session if it has been idle longer than the connection
+     * timeout, or if it has been waiting longer than the connection timeout for
+     * a stage returned by the message handler. Called periodically by the
+     * event loop thread.
+     */
+    void checkTimeout(long now) {
+        int timeout = server.getConnectionTimeout();
+        boolean running;
+        lock.lock();
+        try {
+            running = dispatched;
+            if (!running) {
+                if (timeout <= 0 || now - lastActivity < timeout) {
+                    return;
+                }
+                timedOut = true;
+                dispatched = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (!running || session.expirePendingCommand(now)) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Resumes reading from the channel after a full buffer was consumed. Called
+     * by the event loop thread.
+     */
+    private void resumeReading() {
+        lock.lock();
+        try {
+            if (!eof && suspended) {
+                suspended = false;
+                setInterest(SelectionKey.OP_READ);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the interest set of the selection key, unless the channel has
+     * been closed in the meantime. Called by the event loop thread.
+     */
+    private void setInterest(int ops) {
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            // the session closed the channel, nothing to wait for
+        }
+    }
+
+    /**
+     * Removes the channel from the event loop and configures it for blocking
+     * I/O. Called by the worker thread which runs the session.
+     */
+    void detach() throws IOException {
+        final CountDownLatch deregistered = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop.deregister(NioConnection.this, key);
+                } finally {
+                    deregistered.countDown();
+                }
+            }
+        });
+        try {
+            deregistered.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while switching to blocking mode");
+        }
+        closeWriteSelector();
+        channel.configureBlocking(true);
+    }
+
+    /**
+     * Closes the connection. If the session is not running, it is dispatched,
+     * so it can notice that it must quit.
+     */
+    private void close() throws IOException {
+        boolean dispatchNow = false;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            inputChanged.signalAll();
+            if (!dispatched) {
+                dispatched = true;
+                dispatchNow = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        closeWriteSelector();
+        channel.close();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                loop.deregister(NioConnection.this, key);
+            }
+        });
+
+        if (dispatchNow) {
+            dispatch();
+        }
+    }
+
+    private void closeWriteSelector() throws IOException {
+        if (writeSelector != null) {
+            writeSelector.close();
+            writeSelector = null;
+        }
+    }
+
+    /**
+     * Blocking view of the input buffer.
+     */
+    private class Input extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = read(b, 0, 1);
+            return count == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            boolean resume;
+            int count;
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(server.getConnectionTimeout());
+                while (start == end) {
+                    if (closed) {
+                        throw new SocketException("Socket closed");
+                    } else if (eof) {
+                        return -1;
+                    } else if (timedOut || (server.getConnectionTimeout() > 0 && nanos <= 0)) {
+                        timedOut = false;
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+
+                    if (server.getConnectionTimeout() > 0) {
+                        nanos = inputChanged.awaitNanos(nanos);
+                    } else {
+                        inputChanged.await();
+                    }
+                }
+
+                count = Math.min(len, end - start);
+                System.arraycopy(buffer, start, b, off, count);
+                start += count;
+                resume = suspended;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+
+            if (resume) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeReading();
+                    }
+                });
+            }
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            lock.lock();
+            try {
+                return end - start;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            NioConnection.this.close();
+        }
+    }
+
+    /**
+     * Writes to the non-blocking channel, waiting for the channel to become
+     * writable if the send buffer of the socket is full.
+     */
+    private class Output extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer source = ByteBuffer.wrap(b, off, len);
+            while (source.hasRemaining()) {
+                if (channel.write(source) == 0) {
+                    awaitWritable();
+                }
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            if (writeSelector == null) {
+                writeSelector = Selector.open();
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
+            }
+            if (writeSelector.select(server.getConnectionTimeout()) == 0) {
+                throw new SocketTimeoutException("Write timed out");
+            }
+            writeSelector.selectedKeys().clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            NioConnection.this.close();
+        }
+    }
+}
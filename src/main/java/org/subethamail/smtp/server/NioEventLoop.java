@@ -0,0 +1,176 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread which waits for input on the channels of many
+ * {@link NioConnection}s using a single {@link Selector}. The connections of
+ * the non-blocking transport are distributed among a small number of such
+ * threads.
+ * <p>
+ * The selector and the registered connections are only accessed by this
+ * thread, other threads submit tasks with {@link #execute(Runnable)}.
+ */
+class NioEventLoop extends Thread {
+
+    private final static Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+    /**
+     * The interval of checking the idle timeout of the connections, in
+     * milliseconds.
+     */
+    private final static long TIMEOUT_CHECK_INTERVAL = 1000;
+
+    private final Selector selector;
+
+    /**
+     * The buffer which receives the input of all connections, only accessed by
+     * this thread. The connections keep only the bytes which the session has
+     * not read yet.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(NioConnection.BUFFER_SIZE);
+
+    /**
+     * Tasks submitted by other threads, executed by this thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The registered connections, only accessed by this thread.
+     */
+    private final Set<NioConnection> connections = new HashSet<>();
+
+    private volatile boolean shuttingDown;
+
+    NioEventLoop(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Executes the task on this thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Starts watching the channel of the connection.
+     */
+    void register(final NioConnection connection) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.register(selector);
+                    connections.add(connection);
+                } catch (ClosedChannelException e) {
+                    // the session has already ended
+                    log.debug("Channel closed before registration");
+                } catch (IOException e) {
+                    log.error("Cannot register channel", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops watching the channel of the connection. Called by this thread.
+     */
+    void deregister(NioConnection connection, SelectionKey key) {
+        connections.remove(connection);
+        if (key != null) {
+            key.cancel();
+            try {
+                // complete the deregistration of the cancelled key
+                selector.selectNow();
+            } catch (IOException e) {
+                log.debug("Cannot flush cancelled keys", e);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextTimeoutCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL;
+        while (!shuttingDown) {
+            try {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+            } catch (IOException e) {
+                log.error("Error while waiting for client input", e);
+                continue;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (key.isValid() && key.isReadable()) {
+                    ((NioConnection) key.attachment()).onReadable(readBuffer);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextTimeoutCheck) {
+                nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+                for (NioConnection connection : connections.toArray(new NioConnection[0])) {
+                    connection.checkTimeout(now);
+                }
+            }
+        }
+
+        runTasks();
+        closeSelector();
+    }
+
+    private void closeSelector() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Cannot close selector", e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception in event loop task", e);
+            }
+        }
+    }
+
+    /**
+     * Stops this thread and waits for its termination. The sessions must have
+     * been ended already.
+     */
+    void shutdown() {
+        if (getState() == State.NEW) {
+            closeSelector();
+            return;
+        }
+        shuttingDown = true;
+        selector.wakeup();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link NioEventLoop} threads of a server, shared by all of its
+ * {@link NioServerThread}s.
+ */
+class NioEventLoopGroup {
+
+    private final NioEventLoop[] eventLoops;
+
+    /**
+     * The index of the event loop which receives the next connection.
+     */
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /**
+     * @param server the server
+     * @throws IOException if opening a selector fails
+     */
+    NioEventLoopGroup(SMTPServer server) throws IOException {
+        this.eventLoops = new NioEventLoop[Math.max(1, server.getEventLoopCount())];
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop(NioEventLoop.class.getName() + "-" + i + " "
+                        + server.getDisplayableLocalSocketAddress());
+            }
+        } catch (IOException e) {
+            shutdown();
+            throw e;
+        }
+    }
+
+    void start() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+    }
+
+    /**
+     * @return the event loop which should receive the next connection, the
+     * connections are distributed round-robin
+     */
+    NioEventLoop next() {
+        int index = nextEventLoop.getAndIncrement() & Integer.MAX_VALUE;
+        return eventLoops[index % eventLoops.length];
+    }
+
+    /**
+     * Stops the event loop threads. The sessions must have been ended already.
+     */
+    void shutdown() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+            }
+        }
+    }
+}
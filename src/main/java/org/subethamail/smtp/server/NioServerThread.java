@@ -0,0 +1,63 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ServerThread of the non-blocking transport. It accepts connections like its
+ * superclass, but instead of running a thread for each {@link Session}, it
+ * hands over the connections to a few {@link NioEventLoop} threads. Sessions
+ * only occupy a thread of the executor while a command is executed.
+ */
+class NioServerThread extends ServerThread {
+
+    private final Logger log = LoggerFactory.getLogger(NioServerThread.class);
+
+    private final NioEventLoopGroup eventLoops;
+
+    /**
+     * @param server the server
+     * @param serverSocket a server socket which was created by a
+     * {@link java.nio.channels.ServerSocketChannel}
+     * @param connectionLimit the connection accounting shared by the
+     * acceptors of the server
+     * @param eventLoops the event loops shared by the acceptors of the server
+     */
+    public NioServerThread(SMTPServer server, ServerSocket serverSocket,
+            ConnectionLimit connectionLimit, NioEventLoopGroup eventLoops) {
+        super(server, serverSocket, connectionLimit);
+        if (serverSocket.getChannel() == null) {
+            throw new IllegalStateException(
+                    "The non-blocking transport requires a server socket created by a ServerSocketChannel");
+        }
+        this.eventLoops = eventLoops;
+    }
+
+    @Override
+    void startSession(Socket socket) {
+        NioEventLoop eventLoop = eventLoops.next();
+
+        SocketChannel channel = socket.getChannel();
+        NioConnection connection = new NioConnection(getServer(), eventLoop, channel);
+        Session session;
+        try {
+            channel.configureBlocking(false);
+            session = new Session(getServer(), this, connection);
+        } catch (IOException e) {
+            connectionFailed();
+            log.error("Error while starting a connection", e);
+            closeSocket(socket);
+            return;
+        }
+
+        connection.setSession(session);
+        sessionStarting(session);
+        eventLoop.register(connection);
+        // the first dispatch sends the welcome message
+        connection.dispatch();
+    }
+}
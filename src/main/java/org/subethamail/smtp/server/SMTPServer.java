@@ -5,17 +5,28 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.concurrent.GuardedBy;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.AsyncMessageHandlerFactory;
 import org.subethamail.smtp.AuthenticationHandlerFactory;
 import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.Version;
+import org.subethamail.smtp.io.DigestingInputStream;
+import org.subethamail.smtp.io.MemoryBudget;
 
 /**
  * Main SMTPServer class. Construct this object, set the hostName, port, and
@@ -47,6 +58,18 @@ public class SMTPServer {
      */
     private final static String UNKNOWN_HOSTNAME = "localhost";
 
+    /**
+     * How often {@link #drain(long, TimeUnit)} checks the number of sessions,
+     * in milliseconds.
+     */
+    private final static long DRAIN_POLL_INTERVAL = 100;
+
+    /**
+     * How often {@link #drain(long, TimeUnit)} logs its progress, in
+     * nanoseconds.
+     */
+    private final static long DRAIN_REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
     private InetAddress bindAddress = null;	// default to all interfaces
     private int port = 25;	// default to 25
     private String hostName;	// defaults to a lookup of the local address
@@ -54,16 +77,50 @@ public class SMTPServer {
     private String softwareName = "SubEthaSMTP " + Version.getSpecification();
 
     private MessageHandlerFactory messageHandlerFactory;
+    private AsyncMessageHandlerFactory asyncMessageHandlerFactory;
     private AuthenticationHandlerFactory authenticationHandlerFactory;
     private ExecutorService executorService;
+    /**
+     * True if the executor service was created by this object, not supplied to
+     * the constructor.
+     */
+    private final boolean defaultExecutorService;
 
     private final CommandHandler commandHandler;
 
     /**
-     * The thread listening on the server socket.
+     * The threads accepting connections, null if the server is not running.
+     */
+    @GuardedBy("this")
+    private List<ServerThread> serverThreads;
+
+    /**
+     * The listening sockets of the acceptors, null if the server is not
+     * running.
+     */
+    @GuardedBy("this")
+    private List<ServerSocket> serverSockets;
+
+    /**
+     * True if the server sockets were handed over to another server by
+     * {@link #takeOver(SMTPServer)}, this server must not close them.
+     */
+    @GuardedBy("this")
+    private boolean serverSocketsHandedOver;
+
+    /**
+     * The event loops of the non-blocking transport, null if the server is not
+     * running or it uses blocking I/O.
      */
     @GuardedBy("this")
-    private ServerThread serverThread;
+    private NioEventLoopGroup eventLoops;
+
+    /**
+     * The connection accounting of the acceptors, null if the server has not
+     * been started yet. It is kept after the server is stopped, so its
+     * counters remain available.
+     */
+    private volatile ConnectionLimit connectionLimit;
 
     /**
      * True if this SMTPServer was started. It remains true even if the
@@ -121,14 +178,63 @@ public class SMTPServer {
      * The maximum size of a message that the server will accept. This value is
      * advertised during the EHLO phase if it is larger than 0. If the message
      * size specified by the client during the MAIL phase, the message will be
-     * rejected at that time. (RFC 1870) Default is 0. Note this doesn't
-     * actually enforce any limits on the message being read; you must do that
-     * yourself when reading data.
+     * rejected at that time. (RFC 1870) Default is 0. DATA and BDAT enforce it
+     * as well: the message handler receives a TooMuchDataException instead
+     * of the bytes beyond the limit, the rest of the message is discarded and
+     * the client receives a 552 reply.
      */
     private int maxMessageSize = 0;
 
+    /**
+     * Limits the memory used by messages which are buffered by all sessions,
+     * or null if there is no limit. New messages are rejected with a temporary
+     * error while it is exhausted.
+     */
+    private MemoryBudget memoryBudget;
+
+    /**
+     * If true, the header block of each message is parsed before the message
+     * is passed to the handler.
+     */
+    private boolean parseHeaders;
+
+    /**
+     * The algorithms of the digests which are computed for each message while
+     * it is received.
+     */
+    private List<String> messageDigests = Collections.emptyList();
+
     private SessionIdFactory sessionIdFactory = new TimeBasedSessionIdFactory();
 
+    /**
+     * If true, connections are served by the non-blocking transport: a few
+     * event loop threads wait for client input, and a session only occupies a
+     * thread of the ExecutorService while it executes a command.
+     */
+    private boolean nonBlocking = false;
+
+    /**
+     * The number of event loop threads of the non-blocking transport. Defaults
+     * to the number of available processors.
+     */
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * True if each session runs in its own virtual thread.
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * The number of threads accepting connections.
+     */
+    private int acceptorCount = 1;
+
+    /**
+     * True while the server sockets of the acceptors are created with
+     * SO_REUSEPORT, each acceptor getting its own socket.
+     */
+    private boolean reusePort;
+
     /**
      * Simple constructor.
      *
@@ -170,8 +276,10 @@ public class SMTPServer {
 
         if (executorService != null) {
             this.executorService = executorService;
+            this.defaultExecutorService = false;
         } else {
             this.executorService = Executors.newCachedThreadPool();
+            this.defaultExecutorService = true;
         }
 
         try {
@@ -269,7 +377,7 @@ public class SMTPServer {
      * @return true if server is running
      */
     public synchronized boolean isRunning() {
-        return this.serverThread != null;
+        return this.serverThreads != null;
     }
 
     /**
@@ -308,44 +416,284 @@ public class SMTPServer {
         if (log.isInfoEnabled()) {
             log.info("SMTP server {} starting", getDisplayableLocalSocketAddress());
         }
+        this.checkNotStarted();
+
+        // Create our server sockets here, one for each acceptor if the
+        // operating system can balance connections among them.
+        this.reusePort = this.acceptorCount > 1 && isReusePortSupported();
+        List<ServerSocket> serverSockets = new ArrayList<>();
+        try {
+            do {
+                serverSockets.add(this.createServerSocket());
+            } while (this.reusePort && serverSockets.size() < this.acceptorCount);
+
+            this.startAcceptors(serverSockets);
+        } catch (IOException | RuntimeException e) {
+            for (ServerSocket serverSocket : serverSockets) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e1) {
+                    log.debug("Cannot close server socket after exception", e1);
+                }
+            }
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Starts this server on the listening sockets of a running server, so a
+     * new configuration can be deployed without refusing any connection. This
+     * server starts accepting connections before the predecessor stops
+     * accepting them. The bind address and the port are taken over from the
+     * predecessor, and the server sockets are owned by this server from now
+     * on, they are closed when this server stops.
+     * <p>
+     * The sessions of the predecessor keep running, it should be stopped with
+     * {@link #drain(long, TimeUnit)} afterwards.
+     *
+     * @param predecessor a running server
+     * @throws IllegalStateException if this server was already started, or if
+     * the predecessor is not running or already handed over its sockets
+     */
+    public synchronized void takeOver(SMTPServer predecessor) {
+        if (log.isInfoEnabled()) {
+            log.info("SMTP server {} taking over", predecessor.getDisplayableLocalSocketAddress());
+        }
+        this.checkNotStarted();
 
+        List<ServerSocket> serverSockets = predecessor.getServerSocketsForHandOver();
+        this.bindAddress = predecessor.getBindAddress();
+        this.port = predecessor.getPort();
+        try {
+            this.startAcceptors(serverSockets);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        predecessor.handOverServerSockets();
+    }
+
+    private void checkNotStarted() {
         if (this.started) {
             throw new IllegalStateException(
                     "SMTPServer can only be started once. "
                     + "Restarting is not allowed even after a proper shutdown.");
         }
+    }
 
-        // Create our server socket here.
-        ServerSocket serverSocket;
+    /**
+     * Starts the acceptors on the bound server sockets. Without SO_REUSEPORT
+     * the acceptors share a single socket.
+     */
+    private void startAcceptors(List<ServerSocket> serverSockets) throws IOException {
+        List<ServerThread> threads = new ArrayList<>();
         try {
-            serverSocket = this.createServerSocket();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            for (ServerSocket serverSocket : serverSockets) {
+                if (serverSocket.getChannel() != null) {
+                    // the acceptors wait with selectors
+                    serverSocket.getChannel().configureBlocking(false);
+                } else {
+                    serverSocket.setSoTimeout(ServerThread.ACCEPT_TIMEOUT);
+                }
+            }
+            ConnectionLimit connectionLimit = new ConnectionLimit(this.maxConnections);
+            this.connectionLimit = connectionLimit;
+            if (this.nonBlocking) {
+                this.eventLoops = new NioEventLoopGroup(this);
+            }
+            for (int i = 0; i < this.acceptorCount; i++) {
+                ServerSocket serverSocket = serverSockets.get(i % serverSockets.size());
+                ServerThread thread;
+                if (this.nonBlocking) {
+                    thread = new NioServerThread(this, serverSocket, connectionLimit, this.eventLoops);
+                } else {
+                    thread = new ServerThread(this, serverSocket, connectionLimit);
+                }
+                if (this.acceptorCount > 1) {
+                    thread.setName(thread.getName() + " #" + i);
+                }
+                threads.add(thread);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (this.eventLoops != null) {
+                this.eventLoops.shutdown();
+                this.eventLoops = null;
+            }
+            throw e;
         }
 
-        this.serverThread = new ServerThread(this, serverSocket);
-        this.serverThread.start();
+        if (this.eventLoops != null) {
+            this.eventLoops.start();
+        }
+        for (ServerThread thread : threads) {
+            thread.start();
+        }
+        this.serverSockets = serverSockets;
+        this.serverThreads = threads;
         this.started = true;
     }
 
+    /**
+     * @return the server sockets, which are about to be handed over to
+     * another server
+     */
+    private synchronized List<ServerSocket> getServerSocketsForHandOver() {
+        if (this.serverThreads == null) {
+            throw new IllegalStateException("The SMTPServer to take over is not running");
+        }
+        if (this.serverSocketsHandedOver) {
+            throw new IllegalStateException("The SMTPServer has already been taken over");
+        }
+        return this.serverSockets;
+    }
+
+    /**
+     * Stops the acceptors without closing the server sockets, which are owned
+     * by another server from now on.
+     */
+    private synchronized void handOverServerSockets() {
+        this.serverSocketsHandedOver = true;
+        for (ServerThread thread : this.serverThreads) {
+            thread.stopAccepting(false);
+        }
+        log.info("SMTP server {} handed over its server sockets", getDisplayableLocalSocketAddress());
+    }
+
     /**
      * Shut things down gracefully.
      */
     public synchronized void stop() {
         log.info("SMTP server {} stopping...", getDisplayableLocalSocketAddress());
-        if (this.serverThread == null) {
+        if (this.serverThreads == null) {
             return;
         }
 
-        this.serverThread.shutdown();
-        this.serverThread = null;
+        // First make sure we aren't accepting any new connections
+        this.stopAccepting();
+        // Shut down any open connections.
+        this.quitSessions();
+        this.terminate(Long.MAX_VALUE);
 
         log.info("SMTP server {} stopped", getDisplayableLocalSocketAddress());
     }
 
+    /**
+     * Stops the server without breaking mail transactions, for example before
+     * a redeployment. The server stops accepting connections, and the open
+     * sessions are closed with a 421 reply at their next command boundary
+     * outside of a mail transaction. Idle sessions are closed immediately,
+     * transactions in progress, including the transfer of the message content,
+     * may complete until the deadline. Then the remaining sessions are closed
+     * like in {@link #stop()}. The progress is logged.
+     *
+     * @param timeout the maximum time to wait for the sessions to end
+     * @param unit the unit of the timeout
+     * @return true if all sessions ended before the deadline, false if some of
+     * them had to be closed
+     */
+    public boolean drain(long timeout, TimeUnit unit) {
+        log.info("SMTP server {} draining...", getDisplayableLocalSocketAddress());
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        ConnectionLimit connectionLimit;
+        synchronized (this) {
+            if (this.serverThreads == null) {
+                return true;
+            }
+            this.stopAccepting();
+            for (ServerThread thread : this.serverThreads) {
+                thread.drainSessions();
+            }
+            connectionLimit = this.connectionLimit;
+        }
+
+        // wait without the monitor, so isRunning() and stop() do not block
+        int remaining;
+        long nextReport = System.nanoTime() + DRAIN_REPORT_INTERVAL;
+        while ((remaining = connectionLimit.getSessionCount()) > 0) {
+            long now = System.nanoTime();
+            if (now - deadline >= 0) {
+                break;
+            }
+            if (now - nextReport >= 0) {
+                log.info("SMTP server {} draining, {} sessions remaining",
+                        getDisplayableLocalSocketAddress(), remaining);
+                nextReport = now + DRAIN_REPORT_INTERVAL;
+            }
+            try {
+                Thread.sleep(Math.min(DRAIN_POLL_INTERVAL,
+                        TimeUnit.NANOSECONDS.toMillis(deadline - now) + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        synchronized (this) {
+            // the server may have been stopped meanwhile
+            if (this.serverThreads != null) {
+                if (remaining > 0) {
+                    log.warn("SMTP server {} drain deadline expired, closing {} sessions",
+                            getDisplayableLocalSocketAddress(), remaining);
+                    this.quitSessions();
+                }
+                // give the closed sessions a moment even if the deadline has passed
+                this.terminate(Math.max(deadline - System.nanoTime(), TimeUnit.SECONDS.toNanos(1)));
+            }
+        }
+
+        log.info("SMTP server {} drained", getDisplayableLocalSocketAddress());
+        return remaining == 0;
+    }
+
+    /**
+     * Stops the acceptors, closing the server sockets unless they were handed
+     * over to another server.
+     */
+    @GuardedBy("this")
+    private void stopAccepting() {
+        for (ServerThread thread : this.serverThreads) {
+            thread.stopAccepting(!this.serverSocketsHandedOver);
+        }
+    }
+
+    @GuardedBy("this")
+    private void quitSessions() {
+        for (ServerThread thread : this.serverThreads) {
+            thread.quitSessions();
+        }
+    }
+
+    /**
+     * Shuts down the executor and the event loops after the sessions were
+     * asked to quit.
+     *
+     * @param timeoutNanos the maximum time to wait for the termination of the
+     * session threads
+     */
+    @GuardedBy("this")
+    private void terminate(long timeoutNanos) {
+        this.executorService.shutdown();
+        try {
+            if (!this.executorService.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                log.warn("SMTP server {} session threads did not terminate",
+                        getDisplayableLocalSocketAddress());
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted waiting for termination of session threads", e);
+            Thread.currentThread().interrupt();
+        }
+        if (this.eventLoops != null) {
+            this.eventLoops.shutdown();
+            this.eventLoops = null;
+        }
+        this.serverThreads = null;
+        this.serverSockets = null;
+    }
+
     /**
      * Override this method if you want to create your own server sockets. You
-     * must return a bound ServerSocket instance
+     * must return a bound ServerSocket instance. If the non-blocking transport
+     * is enabled, the server socket must be created by a
+     * {@link ServerSocketChannel}.
      *
      * @return new instance of a server socket
      * @throws IOException Signals that an I/O exception of some sort has
@@ -360,7 +708,16 @@ public class SMTPServer {
             isa = new InetSocketAddress(this.bindAddress, this.port);
         }
 
-        ServerSocket serverSocket = new ServerSocket();
+        ServerSocket serverSocket;
+        if (this.nonBlocking || this.reusePort) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            if (this.reusePort) {
+                channel.setOption(getReusePortOption(), true);
+            }
+            serverSocket = channel.socket();
+        } else {
+            serverSocket = new ServerSocket();
+        }
         serverSocket.bind(isa, this.backlog);
 
         if (this.port == 0) {
@@ -415,6 +772,24 @@ public class SMTPServer {
         this.messageHandlerFactory = fact;
     }
 
+    /**
+     * @return the factory for asynchronous message handlers, or null if the
+     * {@link #getMessageHandlerFactory()} is used
+     */
+    public AsyncMessageHandlerFactory getAsyncMessageHandlerFactory() {
+        return this.asyncMessageHandlerFactory;
+    }
+
+    /**
+     * Sets a factory of asynchronous message handlers. If it is not null, it
+     * is used instead of the {@link MessageHandlerFactory}.
+     *
+     * @param fact asynchronous message handler factory to use
+     */
+    public void setAsyncMessageHandlerFactory(AsyncMessageHandlerFactory fact) {
+        this.asyncMessageHandlerFactory = fact;
+    }
+
     /**
      * @return the factory for auth handlers, or null if no such factory has
      * been set.
@@ -462,6 +837,27 @@ public class SMTPServer {
         this.maxConnections = maxConnections;
     }
 
+    /**
+     * @return the number of currently open connections
+     */
+    public int getNumberOfConnections() {
+        ConnectionLimit limit = this.connectionLimit;
+        return limit == null ? 0 : limit.getSessionCount();
+    }
+
+    /**
+     * Returns the number of connections which were rejected with a 421 reply
+     * because {@link #getMaxConnections()} connections were already open.
+     * These connections are refused by the accepting thread, no session is
+     * created for them.
+     *
+     * @return the number of rejected connections since the server was started
+     */
+    public long getNumberOfShedConnections() {
+        ConnectionLimit limit = this.connectionLimit;
+        return limit == null ? 0 : limit.getShedCount();
+    }
+
     /**
      *
      * @return client connection timeout
@@ -611,6 +1007,77 @@ public class SMTPServer {
         this.maxMessageSize = maxMessageSize;
     }
 
+    /**
+     * @return the budget of the memory used by buffered messages, or null
+     */
+    public MemoryBudget getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Sets a budget for the memory which buffered messages may use across all
+     * sessions. The message listener adapters account for their buffers
+     * against it, and DATA and BDAT are rejected with 452 while it is
+     * exhausted.
+     *
+     * @param memoryBudget the budget, or null for no limit
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return true if the header block of each message is parsed
+     */
+    public boolean isParseHeaders() {
+        return this.parseHeaders;
+    }
+
+    /**
+     * Parses the header block of each message received by DATA or BDAT
+     * before the message is passed to the handler, so the handler can look at
+     * the header fields through
+     * {@link org.subethamail.smtp.MessageContext#getMessageHeaders()} without
+     * parsing the message itself. Streaming handlers receive the
+     * message as it arrives, the header block is never parsed for them.
+     *
+     * @param parseHeaders true to parse the header block of each message
+     */
+    public void setParseHeaders(boolean parseHeaders) {
+        this.parseHeaders = parseHeaders;
+    }
+
+    /**
+     * @return the algorithms of the digests which are computed for each
+     * message, an empty list if none are
+     */
+    public List<String> getMessageDigests() {
+        return this.messageDigests;
+    }
+
+    /**
+     * Computes digests and the length of each message received by DATA or
+     * BDAT while the content streams through the server. Handlers find them
+     * through {@link org.subethamail.smtp.MessageContext#getMessageDigests()}
+     * once they have read the message to its end, the listener adapters pass
+     * them to listeners which implement
+     * {@link org.subethamail.smtp.helper.DigestListener}. Streaming handlers
+     * receive the message as it arrives, no digests are computed for them.
+     *
+     * @param algorithms the names of {@link java.security.MessageDigest}
+     * algorithms such as "SHA-256", or "CRC32", or "CRC32C" on Java 9 and
+     * later. None to turn the digests off.
+     * @throws IllegalArgumentException if an algorithm is not supported
+     */
+    public void setMessageDigests(String... algorithms) {
+        for (String algorithm : algorithms) {
+            if (!DigestingInputStream.isSupported(algorithm)) {
+                throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+            }
+        }
+        this.messageDigests = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(algorithms)));
+    }
+
     /**
      *
      * @return whether or not received headers are disabled
@@ -644,4 +1111,162 @@ public class SMTPServer {
     public void setSessionIdFactory(SessionIdFactory sessionIdFactory) {
         this.sessionIdFactory = sessionIdFactory;
     }
+
+    /**
+     *
+     * @return whether the non-blocking transport is used
+     */
+    public boolean getNonBlocking() {
+        return this.nonBlocking;
+    }
+
+    /**
+     * If set to true, the server uses a non-blocking transport based on
+     * {@link java.nio.channels.Selector}. Idle connections do not occupy a
+     * thread; a session is only passed to the ExecutorService when a complete
+     * command is received, and it keeps the thread only while the command,
+     * including the reception of the message content in DATA, is executed.
+     * Commands, command handlers and message handlers work without changes. A
+     * session is switched to blocking I/O when it starts TLS. Default is false.
+     *
+     * @param nonBlocking true to use the non-blocking transport
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        if (this.isRunning()) {
+            throw new RuntimeException("Server is already running. It isn't possible to change the transport. Please stop the server first.");
+        }
+
+        this.nonBlocking = nonBlocking;
+    }
+
+    /**
+     *
+     * @return the number of event loop threads of the non-blocking transport
+     */
+    public int getEventLoopCount() {
+        return this.eventLoopCount;
+    }
+
+    /**
+     * Sets the number of threads which wait for client input if the
+     * non-blocking transport is enabled. Defaults to the number of available
+     * processors.
+     *
+     * @param eventLoopCount number of event loop threads
+     */
+    public void setEventLoopCount(int eventLoopCount) {
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    /**
+     *
+     * @return whether sessions run in virtual threads
+     */
+    public boolean getVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * If set to true, each session runs in a virtual thread instead of a
+     * thread of the default cached thread pool. Blocked sessions then do not
+     * occupy a platform thread, so the number of concurrent sessions is limited
+     * by memory rather than by the number of threads. Requires Java 21 or
+     * later, and it is only possible if no ExecutorService was passed to the
+     * constructor. It can be combined with the non-blocking transport. Default
+     * is false.
+     *
+     * @param virtualThreads true to run sessions in virtual threads
+     * @throws UnsupportedOperationException if the running Java version does
+     * not support virtual threads
+     * @throws IllegalStateException if the ExecutorService was supplied to the
+     * constructor
+     * @see #isVirtualThreadsSupported()
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (this.isRunning()) {
+            throw new RuntimeException("Server is already running. It isn't possible to change the threads of sessions. Please stop the server first.");
+        }
+        if (!this.defaultExecutorService) {
+            throw new IllegalStateException("An ExecutorService was passed to the constructor, it cannot be replaced by virtual threads");
+        }
+        if (virtualThreads == this.virtualThreads) {
+            return;
+        }
+
+        ExecutorService replaced = this.executorService;
+        if (virtualThreads) {
+            this.executorService = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        } else {
+            this.executorService = Executors.newCachedThreadPool();
+        }
+        replaced.shutdown();
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     *
+     * @return true if the running Java version supports virtual threads, see
+     * {@link #setVirtualThreads(boolean)}
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    /**
+     *
+     * @return the number of threads accepting connections
+     */
+    public int getAcceptorCount() {
+        return this.acceptorCount;
+    }
+
+    /**
+     * Sets the number of threads accepting connections. If the operating
+     * system supports SO_REUSEPORT (Linux, running on Java 9 or later), each
+     * thread listens on its own server socket bound to the same port, and the
+     * kernel distributes the incoming connections among them. Otherwise the
+     * threads share a single server socket. The maximum number of connections
+     * applies to the server as a whole. Default is 1.
+     *
+     * @param acceptorCount number of accepting threads
+     */
+    public void setAcceptorCount(int acceptorCount) {
+        if (this.isRunning()) {
+            throw new RuntimeException("Server is already running. It isn't possible to change the number of acceptors. Please stop the server first.");
+        }
+        if (acceptorCount < 1) {
+            throw new IllegalArgumentException("At least one acceptor is required");
+        }
+
+        this.acceptorCount = acceptorCount;
+    }
+
+    /**
+     * @return true if server sockets can be bound to the same port with
+     * SO_REUSEPORT
+     */
+    private static boolean isReusePortSupported() {
+        SocketOption<Boolean> option = getReusePortOption();
+        if (option == null) {
+            return false;
+        }
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(option);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the SO_REUSEPORT socket option, or null before Java 9, which
+     * does not know it
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+    }
 }
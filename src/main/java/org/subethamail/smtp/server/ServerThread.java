@@ -3,14 +3,16 @@ package org.subethamail.smtp.server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import javax.annotation.concurrent.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -18,44 +20,71 @@ import org.slf4j.MDC;
 /**
  * ServerThread accepts TCP connections to the server socket and starts a new
  * {@link Session} thread for each connection which will handle the connection.
- * On shutdown it terminates not only this thread, but the session threads too.
+ * A server may run several ServerThreads, each keeps track of the sessions it
+ * started, while the connections are counted by a {@link ConnectionLimit}
+ * shared by all of them.
  */
 class ServerThread extends Thread {
 
     private final Logger log = LoggerFactory.getLogger(ServerThread.class);
+    /**
+     * The reply to connections over the limit, encoded once.
+     */
+    private static final byte[] TOO_MANY_CONNECTIONS =
+            "421 Too many connections, try again later\r\n".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * The accepting threads wake up this often, in milliseconds, to check
+     * whether they have to stop, because a server socket handed over to
+     * another server is not closed. It is the SO_TIMEOUT of server sockets
+     * which were not created by a {@link ServerSocketChannel}, and the timeout
+     * of waiting for a connection permit.
+     */
+    static final int ACCEPT_TIMEOUT = 1000;
     private final SMTPServer server;
     private final ServerSocket serverSocket;
     /**
-     * A semaphore which is used to prevent accepting new connections by
-     * blocking this thread if the allowed count of open connections is already
-     * reached.
+     * Counts the connections of all ServerThreads of the server.
      */
-    private final Semaphore connectionPermits;
+    private final ConnectionLimit connectionLimit;
     /**
-     * The list of currently running sessions.
+     * The list of currently running sessions started by this thread. It is a
+     * concurrent set, so registering and removing sessions does not contend
+     * on a lock.
      */
-    @GuardedBy("this")
     private final Set<Session> sessionThreads;
     /**
      * A flag which indicates that this SMTP port and all of its open
      * connections are being shut down.
      */
     private volatile boolean shuttingDown;
+    /**
+     * The selector which waits for connections if the server socket was
+     * created by a {@link ServerSocketChannel}, it is in non-blocking mode.
+     * A channel must not be accepted from by a thread which may be
+     * interrupted, because the interrupt would close the shared channel, and
+     * the timed accept of the socket adaptor cannot be used by several threads
+     * on Java 8.
+     */
+    private volatile Selector acceptSelector;
 
-    public ServerThread(SMTPServer server, ServerSocket serverSocket) {
+    /**
+     * @param server the server
+     * @param serverSocket the bound server socket, it may be shared with other
+     * ServerThreads
+     * @param connectionLimit the connection accounting shared by the
+     * ServerThreads of the server
+     */
+    public ServerThread(SMTPServer server, ServerSocket serverSocket, ConnectionLimit connectionLimit) {
         super(ServerThread.class.getName() + " " + server.getDisplayableLocalSocketAddress());
         this.server = server;
         this.serverSocket = serverSocket;
-        // reserve a few places for graceful disconnects with informative
-        // messages
-        int countOfConnectionPermits = server.getMaxConnections() + 10;
-        this.connectionPermits = new Semaphore(countOfConnectionPermits);
-        this.sessionThreads = new HashSet<>(countOfConnectionPermits * 4 / 3 + 1);
+        this.connectionLimit = connectionLimit;
+        this.sessionThreads = ConcurrentHashMap.newKeySet();
     }
 
     /**
      * This method is called by this thread when it starts up. To safely cause
-     * this to exit, call {@link #shutdown()}.
+     * this to exit, call {@link #stopAccepting(boolean)}.
      */
     @Override
     public void run() {
@@ -63,6 +92,18 @@ class ServerThread extends Thread {
         log.info("SMTP server {} started", server.getDisplayableLocalSocketAddress());
 
         try {
+            ServerSocketChannel channel = this.serverSocket.getChannel();
+            if (channel != null) {
+                try {
+                    this.acceptSelector = Selector.open();
+                    channel.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    if (!this.shuttingDown) {
+                        log.error("Cannot wait for connections, server thread is stopped", e);
+                    }
+                    return;
+                }
+            }
             runAcceptLoop();
             log.info("SMTP server {} stopped accepting connections",
                     server.getDisplayableLocalSocketAddress());
@@ -73,6 +114,7 @@ class ServerThread extends Thread {
             log.error("Unexpected error in server socket thread, server is stopped", e);
             throw e;
         } finally {
+            closeAcceptSelector();
             MDC.remove("smtpServerLocalSocketAddress");
         }
     }
@@ -84,17 +126,27 @@ class ServerThread extends Thread {
         while (!this.shuttingDown) {
             try {
                 // block if too many connections are open
-                connectionPermits.acquire();
+                if (!connectionLimit.acquirePermit(ACCEPT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    continue; // exit or retry
+                }
             } catch (InterruptedException consumed) {
                 continue; // exit or retry
             }
 
             Socket socket;
             try {
-                socket = this.serverSocket.accept();
+                socket = accept();
+                if (socket == null) {
+                    connectionLimit.releasePermit();
+                    continue; // exit or retry
+                }
             } catch (IOException e) {
-                connectionPermits.release();
-                // it also happens during shutdown, when the socket is closed
+                connectionLimit.releasePermit();
+                // it also happens during shutdown, when the socket is closed,
+                // possibly by another thread sharing it
+                if (this.serverSocket.isClosed()) {
+                    break;
+                }
                 if (!this.shuttingDown) {
                     log.error("Error accepting connection", e);
                     // prevent a possible loop causing 100% processor usage
@@ -107,57 +159,158 @@ class ServerThread extends Thread {
                 continue;
             }
 
-            Session session;
-            try {
-                session = new Session(server, this, socket);
-            } catch (IOException e) {
-                connectionPermits.release();
-                log.error("Error while starting a connection", e);
-                try {
-                    socket.close();
-                } catch (IOException e1) {
-                    log.debug("Cannot close socket after exception", e1);
-                }
+            if (!connectionLimit.sessionStarting()) {
+                shedConnection(socket);
                 continue;
             }
+            startSession(socket);
+        }
+    }
 
-            // add thread before starting it,
-            // because it will check the count of sessions
-            synchronized (this) {
-                this.sessionThreads.add(session);
+    /**
+     * Waits for the next connection, or until it is time to check whether this
+     * thread must stop.
+     *
+     * @return the accepted socket, or null if there is none
+     */
+    private Socket accept() throws IOException {
+        Selector selector = this.acceptSelector;
+        if (selector == null) {
+            try {
+                return this.serverSocket.accept();
+            } catch (SocketTimeoutException e) {
+                return null;
             }
+        }
+
+        selector.select(ACCEPT_TIMEOUT);
+        selector.selectedKeys().clear();
+        if (this.shuttingDown) {
+            return null;
+        }
+        // another thread sharing the socket may have been faster
+        SocketChannel channel = this.serverSocket.getChannel().accept();
+        return channel == null ? null : channel.socket();
+    }
 
+    private void closeAcceptSelector() {
+        Selector selector = this.acceptSelector;
+        if (selector != null) {
             try {
-                server.getExecutorService().execute(session);
-            } catch (RejectedExecutionException e) {
-                connectionPermits.release();
-                synchronized (this) {
-                    this.sessionThreads.remove(session);
-                }
-                log.error("Error while executing a session", e);
-                try {
-                    socket.close();
-                } catch (IOException e1) {
-                    log.debug("Cannot close socket after exception", e1);
-                }
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Cannot close selector", e);
             }
         }
     }
 
     /**
-     * Closes the server socket and all client sockets.
+     * Rejects a connection over the limit right on the accepting thread,
+     * without creating a {@link Session}. The short reply fits into the empty
+     * send buffer of the new socket, so writing it does not block.
+     *
+     * @param socket the newly accepted client socket
+     */
+    private void shedConnection(Socket socket) {
+        connectionLimit.connectionShed();
+        log.debug("SMTP Too many connections, rejecting {}", socket.getRemoteSocketAddress());
+        try {
+            socket.getOutputStream().write(TOO_MANY_CONNECTIONS);
+        } catch (IOException e) {
+            log.debug("Cannot send the rejection to the client", e);
+        }
+        closeSocket(socket);
+    }
+
+    /**
+     * Creates a {@link Session} for the accepted and already counted socket,
+     * registers it and passes it to the executor. On failure the socket is
+     * closed and the connection is uncounted.
+     *
+     * @param socket the newly accepted client socket
+     */
+    void startSession(Socket socket) {
+        Session session;
+        try {
+            session = new Session(server, this, socket);
+        } catch (IOException e) {
+            connectionFailed();
+            log.error("Error while starting a connection", e);
+            closeSocket(socket);
+            return;
+        }
+
+        sessionStarting(session);
+
+        try {
+            server.getExecutorService().execute(session);
+        } catch (RejectedExecutionException e) {
+            sessionRejected(session);
+            log.error("Error while executing a session", e);
+            closeSocket(socket);
+        }
+    }
+
+    /**
+     * Reverts the registration of a session which could not be started.
+     */
+    void sessionRejected(Session session) {
+        this.sessionThreads.remove(session);
+        connectionLimit.sessionEnded();
+    }
+
+    /**
+     * Registers a session which is about to be started. Its connection was
+     * counted by the accept loop.
+     */
+    void sessionStarting(Session session) {
+        this.sessionThreads.add(session);
+    }
+
+    /**
+     * Closes a client socket, logging but otherwise ignoring failures.
+     */
+    void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e1) {
+            log.debug("Cannot close socket after exception", e1);
+        }
+    }
+
+    /**
+     * @return the server which owns this thread
      */
-    public void shutdown() {
-        // First make sure we aren't accepting any new connections
-        shutdownServerThread();
-        // Shut down any open connections.
-        shutdownSessions();
+    SMTPServer getServer() {
+        return this.server;
     }
 
-    private void shutdownServerThread() {
+    /**
+     * Uncounts a connection which was accepted but failed before a session
+     * could be registered.
+     */
+    void connectionFailed() {
+        connectionLimit.sessionEnded();
+    }
+
+    /**
+     * Stops accepting connections and waits for the termination of this
+     * thread.
+     *
+     * @param closeSocket true if the server socket is closed, false if it is
+     * left open for another server, in this case a thread waiting for a plain
+     * server socket or for a connection permit stops within
+     * {@link #ACCEPT_TIMEOUT}
+     */
+    void stopAccepting(boolean closeSocket) {
         shuttingDown = true;
-        closeServerSocket();
-        interrupt();
+        if (closeSocket) {
+            closeServerSocket();
+        }
+        Selector selector = this.acceptSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
         try {
             join();
         } catch (InterruptedException e) {
@@ -177,37 +330,43 @@ class ServerThread extends Thread {
         }
     }
 
-    private void shutdownSessions() {
-        // Copy the sessionThreads collection so the guarding lock on this
-        // instance can be released before calling the Session.shutdown methods.
-        // This is necessary to avoid a deadlock, because the terminating
-        // session threads call back the sessionEnded function in this instance,
-        // which locks this instance.
-        List<Session> sessionsToBeClosed;
-        synchronized (this) {
-            sessionsToBeClosed = new ArrayList<>(sessionThreads);
-        }
-        for (Session sessionThread : sessionsToBeClosed) {
+    /**
+     * Asks the sessions started by this thread to quit. It does not wait for
+     * their termination, that is done by shutting down the executor.
+     */
+    void quitSessions() {
+        // The iteration is weakly consistent, it neither blocks nor is
+        // disturbed by the terminating sessions which remove themselves.
+        // Sessions started after the acceptor stopped cannot exist.
+        for (Session sessionThread : sessionThreads) {
             sessionThread.quit();
         }
+    }
 
-        server.getExecutorService().shutdown();
-        try {
-            server.getExecutorService().awaitTermination(Long.MAX_VALUE,
-                    TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            log.warn("Interrupted waiting for termination of session threads",
-                    e);
-            Thread.currentThread().interrupt();
+    /**
+     * Asks the sessions started by this thread to close at their next command
+     * boundary outside of a mail transaction. It does not wait for their
+     * termination.
+     */
+    void drainSessions() {
+        for (Session sessionThread : sessionThreads) {
+            sessionThread.drain();
         }
     }
 
-    public synchronized boolean hasTooManyConnections() {
-        return sessionThreads.size() > server.getMaxConnections();
+    /**
+     * @return the number of open connections of the server
+     */
+    public int getNumberOfConnections() {
+        return connectionLimit.getSessionCount();
     }
 
-    public synchronized int getNumberOfConnections() {
-        return sessionThreads.size();
+    /**
+     * @return the number of connections of the server which were rejected
+     * because the connection limit was reached
+     */
+    public long getNumberOfShedConnections() {
+        return connectionLimit.getShedCount();
     }
 
     /**
@@ -215,9 +374,7 @@ class ServerThread extends Thread {
      * threads must call this function.
      */
     public void sessionEnded(Session session) {
-        synchronized (this) {
-            sessionThreads.remove(session);
-        }
-        connectionPermits.release();
+        sessionThreads.remove(session);
+        connectionLimit.sessionEnded();
     }
 }
@@ -2,22 +2,39 @@ package org.subethamail.smtp.server;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
+import org.subethamail.smtp.AsyncMessageHandler;
+import org.subethamail.smtp.AsyncMessageHandlerFactory;
 import org.subethamail.smtp.AuthenticationHandler;
 import org.subethamail.smtp.DropConnectionException;
+import org.subethamail.smtp.HeaderCheckingMessageHandler;
 import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageDigests;
 import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHeaders;
 import org.subethamail.smtp.io.CRLFTerminatedReader;
+import org.subethamail.smtp.io.DigestingInputStream;
 
 /**
  * The thread that handles a connection. This class passes most of it's
@@ -59,13 +76,67 @@ public class Session implements Runnable, MessageContext {
      */
     private volatile boolean quitting = false;
 
+    /**
+     * The reply which closes an idle session when the server is drained.
+     */
+    private static final String SHUTTING_DOWN = "421 4.3.2 Service shutting down, closing transmission channel";
+
+    /**
+     * States of {@link #commandState}.
+     */
+    private static final int RUNNING = 0, IDLE = 1, DRAINED = 2;
+
+    /**
+     * IDLE while the session waits for the next command outside of a mail
+     * transaction, DRAINED if {@link #drain()} closed the session in this
+     * state, RUNNING otherwise. Only the session sets IDLE and RUNNING, so
+     * the one who changes IDLE owns the connection.
+     */
+    private final AtomicInteger commandState = new AtomicInteger(RUNNING);
+
+    /**
+     * Set this true when the server is drained, the session closes at the next
+     * command boundary outside of a mail transaction.
+     */
+    private volatile boolean draining = false;
+
+    /**
+     * The non-blocking connection which drives this session, or null if the
+     * session runs in its own thread using blocking I/O.
+     */
+    private NioConnection nioConnection;
+
+    /**
+     * True after the welcome message was sent by {@link #resume()}.
+     */
+    private boolean greeted;
+
+    /**
+     * A command of the non-blocking transport which waits for the completion
+     * of a stage, or null. It is read by the event loop thread to expire the
+     * command.
+     */
+    private volatile PendingCommand<?> pendingCommand;
+
+    /**
+     * True if the last {@link #resume()} returned to wait for the
+     * {@link #pendingCommand}.
+     */
+    private boolean suspended;
+
     /**
      * I/O to the client
      */
     private Socket socket;
     private InputStream input;
     private CRLFTerminatedReader reader;
-    private PrintWriter writer;
+    private OutputStream output;
+    /**
+     * Responses which are queued but not yet sent to the client. A
+     * PrintWriter is not used, because it holds its monitor while writing to
+     * the socket, which pins the carrier of a virtual thread.
+     */
+    private final StringBuilder pendingResponses = new StringBuilder();
 
     /**
      * Might exist if the client has successfully authenticated
@@ -74,9 +145,10 @@ public class Session implements Runnable, MessageContext {
 
     /**
      * It exists if a mail transaction is in progress (from the MAIL command up
-     * to the end of the DATA command).
+     * to the end of the DATA command). A synchronous {@link MessageHandler} is
+     * wrapped by a {@link MessageHandlerAdapter}.
      */
-    private MessageHandler messageHandler;
+    private AsyncMessageHandler messageHandler;
 
     /**
      * Some state information
@@ -98,6 +170,24 @@ public class Session implements Runnable, MessageContext {
      */
     private int declaredMessageSize = 0;
 
+    /**
+     * The header fields of the message, if the DATA or BDAT command parsed
+     * them.
+     */
+    private MessageHeaders messageHeaders;
+
+    /**
+     * The stream which computes the digests of the message, if the server
+     * computes them.
+     */
+    private DigestingInputStream messageDigester;
+
+    /**
+     * True if the client declared BODY=BINARYMIME in the MAIL command, such a
+     * message can only be transferred with BDAT.
+     */
+    private boolean binaryMime;
+
     /**
      * Some more state information
      */
@@ -121,6 +211,28 @@ public class Session implements Runnable, MessageContext {
         this.setSocket(socket);
     }
 
+    /**
+     * Creates a Session which is driven by the non-blocking transport. Its
+     * commands are executed by {@link #resume()} instead of {@link #run()}.
+     *
+     * @param server a link to our parent
+     * @param serverThread current server thread
+     * @param connection the non-blocking connection to the client
+     * @throws IOException Signals that an I/O exception of some sort has
+     * occurred.
+     */
+    Session(SMTPServer server, ServerThread serverThread, NioConnection connection)
+            throws IOException {
+        this.server = server;
+        this.serverThread = serverThread;
+        this.nioConnection = connection;
+
+        this.socket = connection.getSocket();
+        this.input = connection.getInputStream();
+        this.reader = new CRLFTerminatedReader(this.input);
+        this.output = connection.getOutputStream();
+    }
+
     /**
      * @return a reference to the master server object
      */
@@ -134,60 +246,120 @@ public class Session implements Runnable, MessageContext {
      */
     @Override
     public void run() {
+        final String originalName = this.enterContext();
+        try {
+            runCommandLoop();
+        } catch (IOException e1) {
+            this.handleIOException(e1);
+        } catch (Throwable e) {
+            this.handleUnexpectedError(e);
+        } finally {
+            this.endSession();
+            this.leaveContext(originalName);
+        }
+    }
+
+    /**
+     * Executes the client commands which are already buffered by the
+     * non-blocking transport, without waiting for more input. On the first call
+     * the welcome message is sent.
+     *
+     * @return true if the session is still open and waits for more input, false
+     * if the session has ended.
+     */
+    boolean resume() {
+        final String originalName = this.enterContext();
+        boolean open = false;
+        try {
+            open = runBufferedCommands();
+        } catch (IOException e1) {
+            this.handleIOException(e1);
+        } catch (Throwable e) {
+            this.handleUnexpectedError(e);
+        } finally {
+            if (!open) {
+                this.endSession();
+            }
+            this.leaveContext(originalName);
+        }
+        return open;
+    }
+
+    /**
+     * Sets up the logging context and the thread name for the current thread.
+     *
+     * @return the original name of the current thread
+     */
+    private String enterContext() {
         MDC.setContextMap(parentLoggingMdcContext);
-        sessionId = server.getSessionIdFactory().create();
+        boolean firstEntry = sessionId == null;
+        if (firstEntry) {
+            sessionId = server.getSessionIdFactory().create();
+        }
         MDC.put("SessionId", sessionId);
         final String originalName = Thread.currentThread().getName();
         Thread.currentThread().setName(
                 Session.class.getName() + "-" + socket.getInetAddress() + ":"
                 + socket.getPort());
 
-        if (log.isDebugEnabled()) {
+        if (firstEntry && log.isDebugEnabled()) {
             InetAddress remoteInetAddress = this.getRemoteAddress().getAddress();
             remoteInetAddress.getHostName();	// Causes future toString() to print the name too
 
             log.debug("SMTP connection from {}, new connection count: {}", remoteInetAddress,
                     this.serverThread.getNumberOfConnections());
         }
+        return originalName;
+    }
 
-        try {
-            runCommandLoop();
-        } catch (IOException e1) {
-            if (!this.quitting) {
-                try {
-                    // Send a temporary failure back so that the server will try to resend
-                    // the message later.
-                    this.sendResponse("421 4.4.0 Problem attempting to execute commands. Please try again later.");
-                } catch (IOException e) {
-                }
+    /**
+     * Restores the state of the current thread after {@link #enterContext()}.
+     */
+    private void leaveContext(String originalName) {
+        Thread.currentThread().setName(originalName);
+        MDC.clear();
+    }
 
-                if (log.isWarnEnabled()) {
-                    log.warn("Exception during SMTP transaction", e1);
-                }
-            }
-        } catch (Throwable e) {
-            log.error("Unexpected error in the SMTP handler thread", e);
+    private void handleIOException(IOException e1) {
+        if (!this.quitting) {
             try {
-                this.sendResponse("421 4.3.0 Mail system failure, closing transmission channel");
-            } catch (IOException e1) {
-                // just swallow this, the outer exception is the real problem.
+                // Send a temporary failure back so that the server will try to resend
+                // the message later.
+                this.sendResponse("421 4.4.0 Problem attempting to execute commands. Please try again later.");
+            } catch (IOException e) {
             }
-            if (e instanceof RuntimeException) {
-                throw (RuntimeException) e;
-            } else if (e instanceof Error) {
-                throw (Error) e;
-            } else {
-                throw new RuntimeException("Unexpected exception", e);
+
+            if (log.isWarnEnabled()) {
+                log.warn("Exception during SMTP transaction", e1);
             }
-        } finally {
-            this.closeConnection();
-            this.endMessageHandler();
-            serverThread.sessionEnded(this);
-            Thread.currentThread().setName(originalName);
-            MDC.clear();
+        }
+    }
+
+    private void handleUnexpectedError(Throwable e) {
+        log.error("Unexpected error in the SMTP handler thread", e);
+        try {
+            this.sendResponse("421 4.3.0 Mail system failure, closing transmission channel");
+        } catch (IOException e1) {
+            // just swallow this, the outer exception is the real problem.
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else {
+            throw new RuntimeException("Unexpected exception", e);
         }
     }
 
+    /**
+     * Releases all resources of the session and notifies the server thread.
+     */
+    private void endSession() {
+        this.closeConnection();
+        this.endMessageHandler();
+        serverThread.sessionEnded(this);
+    }
+
     /**
      * Sends the welcome message and starts receiving and processing client
      * commands. It quits when {@link #quitting} becomes true or when it can be
@@ -197,65 +369,366 @@ public class Session implements Runnable, MessageContext {
      * @throws IOException if sending to or receiving from the client fails.
      */
     private void runCommandLoop() throws IOException {
-        if (this.serverThread.hasTooManyConnections()) {
-            log.debug("SMTP Too many connections!");
+        this.greet();
 
-            this.sendResponse("421 Too many connections, try again later");
-            return;
+        while (!this.quitting) {
+            if (!this.processNextCommand()) {
+                return;
+            }
         }
+    }
 
-        this.sendResponse("220 " + this.server.getHostName() + " ESMTP " + this.server.getSoftwareName());
+    /**
+     * The non-blocking counterpart of {@link #runCommandLoop()}, it only
+     * executes commands while a complete command line is available. If the
+     * connection was switched to blocking mode by a command, then it continues
+     * with the blocking loop.
+     *
+     * @return true if the session waits for more input
+     * @throws IOException if sending to or receiving from the client fails.
+     */
+    private boolean runBufferedCommands() throws IOException {
+        this.suspended = false;
+        if (!this.greeted) {
+            this.greeted = true;
+            if (this.quitting) {
+                return false;
+            }
+            this.greet();
+        } else if (this.pendingCommand != null) {
+            if (!this.proceedPendingCommand()) {
+                return false;
+            }
+        } else if (!this.leaveCommandBoundary()) {
+            return false;
+        }
 
-        while (!this.quitting) {
-            try {
-                String line;
-                try {
-                    line = this.reader.readLine();
-                } catch (SocketException ex) {
-                    // Lots of clients just "hang up" rather than issuing QUIT,
-                    // which would
-                    // fill our logs with the warning in the outer catch.
-                    if (log.isDebugEnabled()) {
-                        log.debug("Error reading client command: " + ex.getMessage(), ex);
-                    }
+        while (true) {
+            while (!this.quitting && this.nioConnection != null
+                    && this.pendingCommand == null && this.hasBufferedCommand()) {
+                if (!this.processNextCommand()) {
+                    return false;
+                }
+            }
+            if (this.quitting || this.pendingCommand == null) {
+                break;
+            }
+            // release the thread until the stage completes, unless it has
+            // completed in the meantime
+            this.flushResponses();
+            if (this.pendingCommand.suspend()) {
+                this.suspended = true;
+                return true;
+            }
+            if (!this.proceedPendingCommand()) {
+                return false;
+            }
+        }
 
-                    return;
+        if (this.nioConnection == null) {
+            while (!this.quitting) {
+                if (!this.processNextCommand()) {
+                    return false;
                 }
+            }
+        }
+
+        this.flushResponses();
+        return !this.quitting && this.enterCommandBoundary();
+    }
+
+    /**
+     * @return true if the session waits for the completion of a stage returned
+     * by the message handler, it is dispatched again by the stage
+     */
+    boolean isSuspended() {
+        return this.suspended;
+    }
+
+    /**
+     * Fails the command waiting for a stage if the stage has not completed
+     * within the connection timeout. The command drops the connection. Called
+     * periodically by the event loop thread of the non-blocking transport.
+     *
+     * @param now the current time in milliseconds
+     * @return true if the session was suspended and must be dispatched
+     */
+    boolean expirePendingCommand(long now) {
+        PendingCommand<?> pending = this.pendingCommand;
+        int timeout = this.server.getConnectionTimeout();
+        if (pending == null || timeout <= 0 || now - pending.getStartTime() < timeout) {
+            return false;
+        }
+        return pending.complete(handlerTimeout());
+    }
+
+    /**
+     * Fails the command waiting for a stage because the client closed the
+     * connection, so the session ends without waiting for the stage. Called
+     * by the event loop thread of the non-blocking transport.
+     *
+     * @return true if the session was suspended and must be dispatched
+     */
+    boolean abortPendingCommand() {
+        PendingCommand<?> pending = this.pendingCommand;
+        if (pending == null) {
+            return false;
+        }
+        return pending.complete(new DropConnectionException(421, "Connection closed by the client."));
+    }
 
-                if (line == null) {
-                    log.debug("no more lines from client");
-                    return;
+    /**
+     * Executes the continuation of the command which waited for a stage.
+     *
+     * @return false if the session must be closed
+     * @throws IOException if sending to or receiving from the client fails.
+     */
+    private boolean proceedPendingCommand() throws IOException {
+        PendingCommand<?> pending = this.pendingCommand;
+        this.pendingCommand = null;
+        try {
+            pending.proceed();
+            return true;
+        } catch (DropConnectionException ex) {
+            this.sendResponse(ex.getErrorResponse());
+            return false;
+        }
+    }
+
+    /**
+     * Continues a command when a stage returned by the
+     * {@link AsyncMessageHandler} completes. In the thread per session model
+     * the current thread waits for the stage. On the non-blocking transport the
+     * continuation is executed after the command returned, and the session
+     * does not occupy a thread until the stage completes, the commands
+     * pipelined by the client wait. Stages which are already completed, like
+     * those of a synchronous {@link MessageHandler}, are continued
+     * immediately. The command must not do anything else after calling this
+     * method.
+     * <p>
+     * A stage which does not complete within the connection timeout fails the
+     * command with a {@link DropConnectionException}, so a hanging handler
+     * cannot keep the connection open forever.
+     *
+     * @param <T> the type of the result of the stage
+     * @param stage the stage returned by the message handler
+     * @param continuation the rest of the command
+     * @throws IOException if sending to or receiving from the client fails.
+     * @throws DropConnectionException if the connection should be dropped
+     */
+    public <T> void whenComplete(CompletionStage<T> stage, CommandContinuation<T> continuation)
+            throws IOException, DropConnectionException {
+        CompletableFuture<T> future = toFuture(stage);
+        if (future.isDone() || this.nioConnection == null) {
+            continuation.proceed(join(future, this.server.getConnectionTimeout()));
+            return;
+        }
+
+        final PendingCommand<T> pending = new PendingCommand<>(continuation);
+        final NioConnection connection = this.nioConnection;
+        this.pendingCommand = pending;
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable failure) {
+                if (pending.complete(new CompletionResult<>(value, failure))) {
+                    connection.dispatch();
+                }
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> toFuture(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture();
+        } catch (UnsupportedOperationException e) {
+            final CompletableFuture<T> future = new CompletableFuture<>();
+            stage.whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T value, Throwable failure) {
+                    if (failure != null) {
+                        future.completeExceptionally(failure);
+                    } else {
+                        future.complete(value);
+                    }
                 }
+            });
+            return future;
+        }
+    }
 
+    /**
+     * Waits for the completion of the future.
+     *
+     * @param timeout the maximum time to wait in milliseconds, or 0 to wait
+     * without limit
+     */
+    private static <T> CompletionResult<T> join(CompletableFuture<T> future, int timeout)
+            throws InterruptedIOException {
+        try {
+            T value = timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+            return new CompletionResult<>(value, null);
+        } catch (ExecutionException | CancellationException e) {
+            return new CompletionResult<>(null, e);
+        } catch (TimeoutException e) {
+            return new CompletionResult<>(null, handlerTimeout());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the message handler");
+        }
+    }
+
+    /**
+     * @return the failure of a stage which did not complete within the
+     * connection timeout
+     */
+    private static DropConnectionException handlerTimeout() {
+        return new DropConnectionException(421, "Timeout waiting for the message handler.");
+    }
+
+    /**
+     * Sends the welcome message. Connections over the limit do not get here,
+     * they are rejected by the {@link ServerThread}.
+     *
+     * @throws IOException if sending to the client fails.
+     */
+    private void greet() throws IOException {
+        this.sendResponse("220 " + this.server.getHostName() + " ESMTP " + this.server.getSoftwareName());
+    }
+
+    /**
+     * Reads and executes a single client command.
+     *
+     * @return false if the session must be closed
+     * @throws IOException if sending to or receiving from the client fails.
+     */
+    private boolean processNextCommand() throws IOException {
+        if (!this.enterCommandBoundary()) {
+            return false;
+        }
+        try {
+            String line;
+            try {
+                line = this.readCommandLine();
+            } catch (SocketException ex) {
+                // Lots of clients just "hang up" rather than issuing QUIT,
+                // which would
+                // fill our logs with the warning in the outer catch.
                 if (log.isDebugEnabled()) {
-                    log.debug("Client: " + line);
+                    log.debug("Error reading client command: " + ex.getMessage(), ex);
                 }
 
-                this.server.getCommandHandler().handleCommand(this, line);
-            } catch (DropConnectionException ex) {
-                this.sendResponse(ex.getErrorResponse());
-                return;
-            } catch (SocketTimeoutException ex) {
-                this.sendResponse("421 Timeout waiting for data from client.");
-                return;
-            } catch (CRLFTerminatedReader.TerminationException te) {
-                String msg = "501 Syntax error at character position " + te.position()
-                        + ". CR and LF must be CRLF paired.  See RFC 2821 #2.7.1.";
+                return false;
+            } catch (IOException ex) {
+                if (!this.leaveCommandBoundary()) {
+                    return false;
+                }
+                throw ex;
+            }
 
-                log.debug(msg);
-                this.sendResponse(msg);
+            if (!this.leaveCommandBoundary()) {
+                return false;
+            }
 
-                // if people are screwing with things, close connection
-                return;
-            } catch (CRLFTerminatedReader.MaxLineLengthException mlle) {
-                String msg = "501 " + mlle.getMessage();
+            if (line == null) {
+                log.debug("no more lines from client");
+                return false;
+            }
 
-                log.debug(msg);
-                this.sendResponse(msg);
+            if (log.isDebugEnabled()) {
+                log.debug("Client: " + line);
+            }
 
-                // if people are screwing with things, close connection
-                return;
+            this.server.getCommandHandler().handleCommand(this, line);
+            return true;
+        } catch (DropConnectionException ex) {
+            this.sendResponse(ex.getErrorResponse());
+            return false;
+        } catch (SocketTimeoutException ex) {
+            this.sendResponse("421 Timeout waiting for data from client.");
+            return false;
+        } catch (CRLFTerminatedReader.TerminationException te) {
+            String msg = "501 Syntax error at character position " + te.position()
+                    + ". CR and LF must be CRLF paired.  See RFC 2821 #2.7.1.";
+
+            log.debug(msg);
+            this.sendResponse(msg);
+
+            // if people are screwing with things, close connection
+            return false;
+        } catch (CRLFTerminatedReader.MaxLineLengthException mlle) {
+            String msg = "501 " + mlle.getMessage();
+
+            log.debug(msg);
+            this.sendResponse(msg);
+
+            // if people are screwing with things, close connection
+            return false;
+        }
+    }
+
+    /**
+     * Called at a command boundary, before the next command is read. Outside
+     * of a mail transaction a draining session is closed here with a 421
+     * reply. Otherwise, if the next command has not been received yet, the
+     * session becomes idle, so {@link #drain()} can close it while it waits.
+     *
+     * @return false if the session must be closed
+     * @throws IOException if sending to the client fails.
+     */
+    private boolean enterCommandBoundary() throws IOException {
+        if (this.isMailTransactionInProgress()) {
+            return true;
+        }
+        if (!this.draining) {
+            if (this.hasBufferedCommand()) {
+                return true;
+            }
+            // nothing may be written after the session became idle
+            this.flushResponses();
+            this.commandState.set(IDLE);
+            if (!this.draining) {
+                return true;
+            }
+            // drain() was called meanwhile, decide who closes the session
+            if (!this.commandState.compareAndSet(IDLE, RUNNING)) {
+                return false;
+            }
+        }
+        this.sendResponse(SHUTTING_DOWN);
+        return false;
+    }
+
+    /**
+     * Called when the session continues after a command boundary.
+     *
+     * @return false if {@link #drain()} closed the session while it was idle
+     */
+    private boolean leaveCommandBoundary() {
+        return this.commandState.compareAndSet(IDLE, RUNNING)
+                || this.commandState.get() == RUNNING;
+    }
+
+    /**
+     * Asks the session to close at the next command boundary outside of a mail
+     * transaction, a transaction in progress may complete first. If the session
+     * is idle, waiting for the next command, then it is closed immediately with
+     * a 421 reply. Called by the server while it is drained.
+     */
+    void drain() {
+        this.draining = true;
+        if (this.commandState.compareAndSet(IDLE, DRAINED)) {
+            // the session does not use the connection until it notices the
+            // state, so it can be closed from this thread
+            if (log.isDebugEnabled()) {
+                log.debug("Server: " + SHUTTING_DOWN);
             }
+            try {
+                this.output.write((SHUTTING_DOWN + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                this.output.flush();
+            } catch (IOException e) {
+                log.debug("Cannot send response", e);
+            }
+            this.quit();
         }
     }
 
@@ -266,7 +739,8 @@ public class Session implements Runnable, MessageContext {
     private void closeConnection() {
         try {
             try {
-                this.writer.close();
+                this.flushResponses();
+                this.output.close();
                 this.input.close();
             } finally {
                 this.closeSocket();
@@ -289,11 +763,29 @@ public class Session implements Runnable, MessageContext {
         this.socket = socket;
         this.input = this.socket.getInputStream();
         this.reader = new CRLFTerminatedReader(this.input);
-        this.writer = new PrintWriter(this.socket.getOutputStream());
+        this.output = this.socket.getOutputStream();
 
         this.socket.setSoTimeout(this.server.getConnectionTimeout());
     }
 
+    /**
+     * Switches a session running on the non-blocking transport to blocking I/O
+     * on a thread of its own, so the socket can be used directly, for example
+     * to wrap it into an SSL socket. Input which was already received but not
+     * yet processed is discarded. Does nothing if the session already uses
+     * blocking I/O.
+     *
+     * @throws java.io.IOException Signals that an I/O exception of some sort
+     * has occurred.
+     */
+    public void ensureBlockingMode() throws IOException {
+        if (this.nioConnection != null) {
+            this.nioConnection.detach();
+            this.nioConnection = null;
+            this.setSocket(this.socket);
+        }
+    }
+
     /**
      * This method is only used by the start tls command
      *
@@ -316,10 +808,14 @@ public class Session implements Runnable, MessageContext {
     }
 
     /**
+     * Returns the input stream from the client, without any SMTP specific
+     * processing. It shares the buffer of the command reader, so it first
+     * returns the bytes which were read ahead while reading the last command.
+     *
      * @return the raw input stream from the client
      */
     public InputStream getRawInput() {
-        return this.input;
+        return this.reader.getInputStream();
     }
 
     /**
@@ -337,12 +833,77 @@ public class Session implements Runnable, MessageContext {
      * has occurred.
      */
     public void sendResponse(String response) throws IOException {
+        this.queueResponse(response);
+        this.flushResponses();
+    }
+
+    /**
+     * Queues the response to the client. Queued responses are sent together
+     * with the next response sent by {@link #sendResponse(String)}, or before
+     * the session waits for the next command of the client. This way the
+     * responses to a group of commands sent by a client using PIPELINING (RFC
+     * 2920) go out in a single write. Commands which must be the last in such a
+     * group, or which wait for further client input before completing, must
+     * use {@link #sendResponse(String)}.
+     *
+     * @param response text to send to client
+     */
+    public void queueResponse(String response) {
         if (log.isDebugEnabled()) {
             log.debug("Server: " + response);
         }
 
-        this.writer.print(response + "\r\n");
-        this.writer.flush();
+        this.pendingResponses.append(response).append("\r\n");
+    }
+
+    /**
+     * Sends the queued responses. Like a PrintWriter, it does not report write
+     * errors, those are noticed when the next command is read.
+     */
+    private void flushResponses() {
+        if (this.pendingResponses.length() == 0) {
+            return;
+        }
+        byte[] bytes = this.pendingResponses.toString().getBytes(StandardCharsets.ISO_8859_1);
+        this.pendingResponses.setLength(0);
+        try {
+            this.output.write(bytes);
+            this.output.flush();
+        } catch (IOException e) {
+            log.debug("Cannot send response", e);
+        }
+    }
+
+    /**
+     * Reads the next command line from the client. Queued responses are sent
+     * first, unless the line has already been received, so pipelined commands
+     * are answered in batches.
+     *
+     * @return the line without the CRLF terminator, or null at the end of the
+     * input
+     * @throws IOException if sending to or receiving from the client fails.
+     */
+    public String readCommandLine() throws IOException {
+        this.flushResponsesBeforeWaiting();
+        return this.reader.readLine();
+    }
+
+    /**
+     * Sends the queued responses if the next command of the client has not
+     * been received yet.
+     */
+    private void flushResponsesBeforeWaiting() {
+        if (!this.hasBufferedCommand()) {
+            this.flushResponses();
+        }
+    }
+
+    /**
+     * @return true if the next command line has already been received
+     */
+    private boolean hasBufferedCommand() {
+        return this.reader.hasBufferedLine()
+                || (this.nioConnection != null && this.nioConnection.hasBufferedLine());
     }
 
     /**
@@ -372,9 +933,23 @@ public class Session implements Runnable, MessageContext {
     }
 
     /**
-     * @return the current message handler
+     * @return the current message handler, or null if there is no mail
+     * transaction in progress or the handler was created by an
+     * {@link AsyncMessageHandlerFactory}
      */
     public MessageHandler getMessageHandler() {
+        if (this.messageHandler instanceof MessageHandlerAdapter) {
+            return ((MessageHandlerAdapter) this.messageHandler).getHandler();
+        }
+        return null;
+    }
+
+    /**
+     * @return the current message handler, a synchronous handler is presented
+     * as an asynchronous one, or null if there is no mail transaction in
+     * progress
+     */
+    public AsyncMessageHandler getAsyncMessageHandler() {
         return this.messageHandler;
     }
 
@@ -461,6 +1036,7 @@ public class Session implements Runnable, MessageContext {
     /**
      * @return the maxMessageSize the set declared message size
      */
+    @Override
     public int getDeclaredMessageSize() {
         return this.declaredMessageSize;
     }
@@ -473,6 +1049,46 @@ public class Session implements Runnable, MessageContext {
         this.declaredMessageSize = declaredMessageSize;
     }
 
+    @Override
+    public MessageHeaders getMessageHeaders() {
+        return this.messageHeaders;
+    }
+
+    /**
+     * @param messageHeaders the header fields of the message being received
+     */
+    public void setMessageHeaders(MessageHeaders messageHeaders) {
+        this.messageHeaders = messageHeaders;
+    }
+
+    @Override
+    public MessageDigests getMessageDigests() {
+        DigestingInputStream digester = this.messageDigester;
+        return digester == null ? null : digester.getDigests();
+    }
+
+    /**
+     * @param messageDigester the stream which computes the digests of the
+     * message being received
+     */
+    public void setMessageDigester(DigestingInputStream messageDigester) {
+        this.messageDigester = messageDigester;
+    }
+
+    /**
+     * @return true if the client declared BODY=BINARYMIME for the message
+     */
+    public boolean isBinaryMime() {
+        return this.binaryMime;
+    }
+
+    /**
+     * @param binaryMime true if the client declared BODY=BINARYMIME
+     */
+    public void setBinaryMime(boolean binaryMime) {
+        this.binaryMime = binaryMime;
+    }
+
     /**
      * Starts a mail transaction by creating a new message handler.
      *
@@ -484,8 +1100,15 @@ public class Session implements Runnable, MessageContext {
             throw new IllegalStateException(
                     "Mail transaction is already in progress");
         }
-        this.messageHandler = this.server.getMessageHandlerFactory().create(
-                this);
+        AsyncMessageHandlerFactory asyncFactory = this.server.getAsyncMessageHandlerFactory();
+        if (asyncFactory != null) {
+            this.messageHandler = asyncFactory.create(this);
+        } else {
+            MessageHandler handler = this.server.getMessageHandlerFactory().create(this);
+            this.messageHandler = handler instanceof HeaderCheckingMessageHandler
+                    ? new HeaderCheckingMessageHandlerAdapter((HeaderCheckingMessageHandler) handler)
+                    : new MessageHandlerAdapter(handler);
+        }
     }
 
     /**
@@ -514,6 +1137,9 @@ public class Session implements Runnable, MessageContext {
         this.recipientCount = 0;
         this.singleRecipient = null;
         this.declaredMessageSize = 0;
+        this.messageHeaders = null;
+        this.messageDigester = null;
+        this.binaryMime = false;
     }
 
     /**
@@ -580,4 +1206,69 @@ public class Session implements Runnable, MessageContext {
     public Certificate[] getTlsPeerCertificates() {
         return tlsPeerCertificates;
     }
+
+    /**
+     * A command waiting for the completion of a stage on the non-blocking
+     * transport. The worker thread suspends the session only if the stage has
+     * not completed yet, otherwise it proceeds itself, so the session is never
+     * run by two threads.
+     */
+    private static class PendingCommand<T> {
+
+        private static final int PENDING = 0, SUSPENDED = 1, COMPLETED = 2;
+
+        private final CommandContinuation<T> continuation;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final AtomicReference<CompletionResult<T>> result = new AtomicReference<>();
+        private final long startTime = System.currentTimeMillis();
+
+        PendingCommand(CommandContinuation<T> continuation) {
+            this.continuation = continuation;
+        }
+
+        /**
+         * @return the time when the command started waiting, in milliseconds
+         */
+        long getStartTime() {
+            return this.startTime;
+        }
+
+        /**
+         * Called by the worker thread when the session has nothing else to
+         * do.
+         *
+         * @return true if the session must wait for the completion, false if
+         * the stage has completed already
+         */
+        boolean suspend() {
+            return this.state.compareAndSet(PENDING, SUSPENDED);
+        }
+
+        /**
+         * Called when the stage completes. Only the first result is kept, a
+         * stage completing after the command expired is ignored.
+         *
+         * @return true if the session was suspended and must be dispatched
+         */
+        boolean complete(CompletionResult<T> result) {
+            if (!this.result.compareAndSet(null, result)) {
+                return false;
+            }
+            return this.state.getAndSet(COMPLETED) == SUSPENDED;
+        }
+
+        /**
+         * Completes the command with a failure instead of the result of the
+         * stage.
+         *
+         * @return true if the session was suspended and must be dispatched
+         */
+        boolean complete(DropConnectionException failure) {
+            return this.complete(new CompletionResult<T>(null, failure));
+        }
+
+        void proceed() throws IOException, DropConnectionException {
+            this.continuation.proceed(this.result.get());
+        }
+    }
 }
@@ -0,0 +1,51 @@
+package org.subethamail.smtp.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors which run each task in a new virtual thread. Virtual
+ * threads require Java 21, the library jar contains a variant of this class
+ * for Java 21 and later, which uses the API directly. This variant is used on
+ * older Java versions, and when the classes are not loaded from the
+ * multi-release jar; it looks up the API by reflection.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the running Java version supports virtual threads
+     */
+    static boolean isSupported() {
+        return findFactoryMethod() != null;
+    }
+
+    /**
+     * @return a new executor which starts a virtual thread for each task
+     * @throws UnsupportedOperationException if virtual threads are not
+     * supported by the running Java version
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        Method method = findFactoryMethod();
+        if (method == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+        try {
+            return (ExecutorService) method.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Cannot create virtual thread executor", e);
+        }
+    }
+
+    private static Method findFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,740 @@
+package org.subethamail.smtp.store;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.io.HeaderBlockReader;
+
+/**
+ * A content-addressed message store on disk, which keeps each distinct body
+ * only once. Mailing list bursts deliver the same body to many recipients in
+ * many sessions, such deliveries only add a small record each.
+ * <p>
+ * A message is split into its header block and its body. The body is cut into
+ * chunks of a fixed size, each chunk is stored in a file named by its SHA-256
+ * hash, so equal chunks are written once. A manifest named by the hash of the
+ * whole body lists its chunks. The header block, which differs between
+ * messages because of the trace fields, is stored as a chunk of its own. Each
+ * delivery to a recipient is a record which refers to the header block and to
+ * the body.
+ * <p>
+ * Chunks and bodies are reference counted: a chunk by the manifests and
+ * records which refer to it, a body by the records. Unreferenced files are
+ * deleted when a delivery is deleted. The counts are rebuilt from the records
+ * when the store is opened, files left over by an interrupted write are
+ * deleted then.
+ * <p>
+ * The directory contains the subdirectories "chunks", "bodies" and
+ * "deliveries", each with subdirectories named by the first two characters of
+ * the file names.
+ */
+public class ContentStore {
+
+    private final static Logger log = LoggerFactory.getLogger(ContentStore.class);
+
+    /**
+     * The default size of the body chunks.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 64;
+
+    private static final String TMP_PREFIX = "tmp-";
+
+    private static final String RECORD_SUFFIX = ".properties";
+
+    private final File directory;
+    private final File chunkDir;
+    private final File bodyDir;
+    private final File deliveryDir;
+
+    private final int chunkSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The number of references to each chunk, from manifests, records and
+     * writes in progress.
+     */
+    @GuardedBy("lock")
+    private final Map<String, Integer> chunkRefs = new HashMap<>();
+
+    /**
+     * The number of records which refer to each body.
+     */
+    @GuardedBy("lock")
+    private final Map<String, Integer> bodyRefs = new HashMap<>();
+
+    /**
+     * The records by id, in the order they were stored.
+     */
+    @GuardedBy("lock")
+    private final Map<String, StoredDelivery> deliveries = new LinkedHashMap<>();
+
+    @GuardedBy("lock")
+    private long chunksWritten;
+
+    @GuardedBy("lock")
+    private long chunksReused;
+
+    /**
+     * Opens a store with the default chunk size.
+     *
+     * @param directory the directory of the store, which is created if
+     * necessary
+     * @throws IOException if the store cannot be opened
+     */
+    public ContentStore(File directory) throws IOException {
+        this(directory, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Opens a store, creating it if necessary, and rebuilds the reference
+     * counts from the records.
+     *
+     * @param directory the directory of the store
+     * @param chunkSize the size of the body chunks in bytes. Bodies stored
+     * with a different chunk size are kept, but not shared with new ones.
+     * @throws IOException if the store cannot be opened
+     */
+    public ContentStore(File directory, int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.directory = directory;
+        this.chunkDir = mkdir(new File(directory, "chunks"));
+        this.bodyDir = mkdir(new File(directory, "bodies"));
+        this.deliveryDir = mkdir(new File(directory, "deliveries"));
+        this.chunkSize = chunkSize;
+        this.load();
+    }
+
+    private static File mkdir(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create store directory " + dir);
+        }
+        return dir;
+    }
+
+    private void load() throws IOException {
+        lock.lock();
+        try {
+            for (File file : files(this.deliveryDir)) {
+                if (this.isLeftOver(file)) {
+                    continue;
+                }
+                StoredDelivery delivery = readRecord(file);
+                this.deliveries.put(delivery.getId(), delivery);
+                increment(this.bodyRefs, delivery.getBodyHash(), 1);
+                increment(this.chunkRefs, delivery.getHeadersHash(), 1);
+            }
+            for (File file : files(this.bodyDir)) {
+                if (this.isLeftOver(file)) {
+                    continue;
+                } else if (!this.bodyRefs.containsKey(file.getName())) {
+                    delete(file);
+                    continue;
+                }
+                for (String chunk : readManifest(file).chunks) {
+                    increment(this.chunkRefs, chunk, 1);
+                }
+            }
+            for (File file : files(this.chunkDir)) {
+                if (!this.isLeftOver(file) && !this.chunkRefs.containsKey(file.getName())) {
+                    delete(file);
+                }
+            }
+            log.debug("Opened store {} with {} deliveries of {} bodies", this.directory,
+                    this.deliveries.size(), this.bodyRefs.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the file if it was left over by an interrupted write.
+     */
+    private boolean isLeftOver(File file) {
+        if (file.getName().startsWith(TMP_PREFIX)) {
+            delete(file);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the files in the subdirectories of the directory
+     */
+    private static List<File> files(File dir) {
+        List<File> result = new ArrayList<>();
+        File[] shards = dir.listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] files = shard.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        result.add(file);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores a message for several recipients. The body is only written if an
+     * equal body is not stored yet.
+     *
+     * @param from the envelope sender, an empty string for the null sender
+     * @param recipients the envelope recipients, at least one
+     * @param message the message, beginning with the header block, which is
+     * read to the end
+     * @return the deliveries, one for each recipient
+     * @throws IOException if the message cannot be read or stored, nothing is
+     * stored then
+     */
+    public List<StoredDelivery> store(String from, List<String> recipients, InputStream message)
+            throws IOException {
+        if (recipients.isEmpty()) {
+            throw new IllegalArgumentException("No recipients");
+        }
+        HeaderBlockReader reader = new HeaderBlockReader(message, HeaderBlockReader.DEFAULT_MAX_LENGTH);
+        MessageHeaders headers = reader.read();
+        ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(headers.getLength());
+        copy(headers.getInputStream(), headerBlock);
+
+        String headersHash = this.putChunk(headerBlock.toByteArray(), headerBlock.size(), recipients.size());
+        int released = 0;
+        try {
+            Body body = this.putBody(reader.getBody(), recipients.size());
+
+            long received = System.currentTimeMillis();
+            List<StoredDelivery> result = new ArrayList<>();
+            for (String recipient : recipients) {
+                StoredDelivery delivery = new StoredDelivery(UUID.randomUUID().toString(), from, recipient,
+                        headersHash, body.hash, body.length, received);
+                try {
+                    this.writeRecord(delivery);
+                } catch (IOException e) {
+                    lock.lock();
+                    try {
+                        for (StoredDelivery stored : result) {
+                            this.deliveries.remove(stored.getId());
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    for (StoredDelivery stored : result) {
+                        delete(this.recordFile(stored.getId()));
+                    }
+                    this.releaseBody(body.hash, recipients.size());
+                    throw e;
+                }
+                lock.lock();
+                try {
+                    this.deliveries.put(delivery.getId(), delivery);
+                } finally {
+                    lock.unlock();
+                }
+                result.add(delivery);
+            }
+            released = recipients.size();
+            return result;
+        } finally {
+            // references of the records which were not written
+            this.releaseChunk(headersHash, recipients.size() - released);
+        }
+    }
+
+    /**
+     * The body of a message, as stored.
+     */
+    private static class Body {
+
+        final String hash;
+        final long length;
+
+        Body(String hash, long length) {
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Stores the chunks of a body, and its manifest if the body is new.
+     *
+     * @param refs the number of records which will refer to the body
+     */
+    private Body putBody(InputStream in, int refs) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[this.chunkSize];
+        List<String> chunks = new ArrayList<>();
+        long length = 0;
+        boolean done = false;
+        try {
+            int count;
+            while ((count = readFully(in, buffer)) > 0) {
+                digest.update(buffer, 0, count);
+                chunks.add(this.putChunk(buffer, count, 1));
+                length += count;
+            }
+            String hash = hex(digest.digest());
+
+            lock.lock();
+            try {
+                Integer bodyRefs = this.bodyRefs.get(hash);
+                if (bodyRefs == null) {
+                    // the references to the chunks go to the new manifest
+                    writeAtomically(this.file(this.bodyDir, hash), manifest(length, chunks));
+                    this.bodyRefs.put(hash, refs);
+                    done = true;
+                } else {
+                    this.bodyRefs.put(hash, bodyRefs + refs);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return new Body(hash, length);
+        } finally {
+            if (!done) {
+                // an equal body holds references to the same chunks
+                for (String chunk : chunks) {
+                    this.releaseChunk(chunk, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a chunk unless it is stored already, and adds references to it.
+     *
+     * @return the hash of the chunk
+     */
+    private String putChunk(byte[] b, int len, int refs) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(b, 0, len);
+        String hash = hex(digest.digest());
+        File file = this.file(this.chunkDir, hash);
+
+        boolean known;
+        lock.lock();
+        try {
+            known = increment(this.chunkRefs, hash, refs) > refs;
+            if (known) {
+                this.chunksReused++;
+            } else {
+                this.chunksWritten++;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // a concurrent write of the same chunk may not be complete yet
+        if (!known || !file.exists()) {
+            try {
+                writeAtomically(file, b, len);
+            } catch (IOException e) {
+                this.releaseChunk(hash, refs);
+                throw e;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the deliveries in the store, in the order they were stored
+     */
+    public List<StoredDelivery> getDeliveries() {
+        lock.lock();
+        try {
+            return new ArrayList<>(this.deliveries.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param recipient the envelope recipient, case insensitive
+     * @return the deliveries to the recipient, in the order they were stored
+     */
+    public List<StoredDelivery> getDeliveries(String recipient) {
+        List<StoredDelivery> result = new ArrayList<>();
+        for (StoredDelivery delivery : this.getDeliveries()) {
+            if (delivery.getRecipient().equalsIgnoreCase(recipient)) {
+                result.add(delivery);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads a stored message. It must not be deleted while it is read.
+     *
+     * @param delivery the delivery
+     * @return the message as it was received, the chunk files are opened one
+     * after the other while it is read
+     * @throws IOException if the message is not in the store
+     */
+    public InputStream open(StoredDelivery delivery) throws IOException {
+        List<File> files = new ArrayList<>();
+        files.add(this.file(this.chunkDir, delivery.getHeadersHash()));
+        for (String chunk : readManifest(this.file(this.bodyDir, delivery.getBodyHash())).chunks) {
+            files.add(this.file(this.chunkDir, chunk));
+        }
+        return new FileSequenceInputStream(files);
+    }
+
+    /**
+     * Deletes a delivery, and the header block, body and chunks which are no
+     * longer referenced.
+     *
+     * @param delivery the delivery
+     * @return false if the delivery was not in the store
+     */
+    public boolean delete(StoredDelivery delivery) {
+        lock.lock();
+        try {
+            if (this.deliveries.remove(delivery.getId()) == null) {
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        delete(this.recordFile(delivery.getId()));
+        this.releaseBody(delivery.getBodyHash(), 1);
+        this.releaseChunk(delivery.getHeadersHash(), 1);
+        return true;
+    }
+
+    private void releaseBody(String hash, int refs) {
+        List<String> chunks;
+        lock.lock();
+        try {
+            if (increment(this.bodyRefs, hash, -refs) > 0) {
+                return;
+            }
+            this.bodyRefs.remove(hash);
+            File file = this.file(this.bodyDir, hash);
+            try {
+                chunks = readManifest(file).chunks;
+            } catch (IOException e) {
+                log.warn("Cannot read manifest {}, its chunks are kept", file, e);
+                return;
+            }
+            delete(file);
+        } finally {
+            lock.unlock();
+        }
+        for (String chunk : chunks) {
+            this.releaseChunk(chunk, 1);
+        }
+    }
+
+    private void releaseChunk(String hash, int refs) {
+        if (refs == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (increment(this.chunkRefs, hash, -refs) <= 0) {
+                this.chunkRefs.remove(hash);
+                delete(this.file(this.chunkDir, hash));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the count after adding the delta
+     */
+    private static int increment(Map<String, Integer> counts, String key, int delta) {
+        Integer count = counts.get(key);
+        int result = (count == null ? 0 : count) + delta;
+        counts.put(key, result);
+        return result;
+    }
+
+    private File file(File dir, String name) {
+        return new File(new File(dir, name.substring(0, 2)), name);
+    }
+
+    private File recordFile(String id) {
+        return this.file(this.deliveryDir, id + RECORD_SUFFIX);
+    }
+
+    private void writeRecord(StoredDelivery delivery) throws IOException {
+        Properties record = new Properties();
+        record.setProperty("from", delivery.getFrom());
+        record.setProperty("recipient", delivery.getRecipient());
+        record.setProperty("headers", delivery.getHeadersHash());
+        record.setProperty("body", delivery.getBodyHash());
+        record.setProperty("length", Long.toString(delivery.getBodyLength()));
+        record.setProperty("received", Long.toString(delivery.getReceived()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            record.store(writer, null);
+        }
+        writeAtomically(this.recordFile(delivery.getId()), out.toByteArray());
+    }
+
+    private static StoredDelivery readRecord(File file) throws IOException {
+        Properties record = new Properties();
+        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            record.load(reader);
+        }
+        String name = file.getName();
+        try {
+            return new StoredDelivery(name.substring(0, name.length() - RECORD_SUFFIX.length()),
+                    record.getProperty("from"), record.getProperty("recipient"),
+                    record.getProperty("headers"), record.getProperty("body"),
+                    Long.parseLong(record.getProperty("length")), Long.parseLong(record.getProperty("received")));
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid delivery record " + file, e);
+        }
+    }
+
+    /**
+     * The content of a body manifest.
+     */
+    private static class Manifest {
+
+        long length;
+        final List<String> chunks = new ArrayList<>();
+    }
+
+    private static byte[] manifest(long length, List<String> chunks) {
+        StringBuilder manifest = new StringBuilder().append(length).append('\n');
+        for (String chunk : chunks) {
+            manifest.append(chunk).append('\n');
+        }
+        return manifest.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static Manifest readManifest(File file) throws IOException {
+        Manifest manifest = new Manifest();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Empty manifest " + file);
+            }
+            manifest.length = Long.parseLong(line);
+            while ((line = reader.readLine()) != null) {
+                manifest.chunks.add(line);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid manifest " + file, e);
+        }
+        return manifest;
+    }
+
+    private static void writeAtomically(File file, byte[] b) throws IOException {
+        writeAtomically(file, b, b.length);
+    }
+
+    /**
+     * Writes a temp file and renames it, so the file is either complete or
+     * missing.
+     */
+    private static void writeAtomically(File file, byte[] b, int len) throws IOException {
+        File dir = mkdir(file.getParentFile());
+        File tmp = File.createTempFile(TMP_PREFIX, null, dir);
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(b, 0, len);
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            if (tmp.exists()) {
+                delete(tmp);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            log.debug("Cannot delete store file {}", file);
+        }
+    }
+
+    /**
+     * @return the number of bytes read, less than the buffer size only at the
+     * end of the stream
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int read = in.read(buffer, count, buffer.length - count);
+            if (read == -1) {
+                break;
+            }
+            count += read;
+        }
+        return count;
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out) throws IOException {
+        byte[] buffer = new byte[1024 * 8];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the directory of the store
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * @return the size of the body chunks in bytes
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * @return the number of distinct bodies in the store
+     */
+    public int getBodyCount() {
+        lock.lock();
+        try {
+            return this.bodyRefs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of distinct chunks in the store, including header
+     * blocks
+     */
+    public int getChunkCount() {
+        lock.lock();
+        try {
+            return this.chunkRefs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of chunks written since the store was opened
+     */
+    public long getChunksWritten() {
+        lock.lock();
+        try {
+            return this.chunksWritten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times a chunk was found in the store instead of
+     * being written, since the store was opened
+     */
+    public long getChunksReused() {
+        lock.lock();
+        try {
+            return this.chunksReused;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads files one after the other, each file is opened when the previous
+     * one is exhausted.
+     */
+    private static class FileSequenceInputStream extends InputStream {
+
+        private final List<File> files;
+        private int next;
+        private InputStream current;
+
+        FileSequenceInputStream(List<File> files) {
+            this.files = files;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (this.current == null) {
+                    if (this.next == this.files.size()) {
+                        return -1;
+                    }
+                    this.current = new FileInputStream(this.files.get(this.next++));
+                }
+                int read = this.current.read(b, off, len);
+                if (read != -1) {
+                    return read;
+                }
+                this.current.close();
+                this.current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.current != null) {
+                this.current.close();
+                this.current = null;
+            }
+            this.next = this.files.size();
+        }
+    }
+}
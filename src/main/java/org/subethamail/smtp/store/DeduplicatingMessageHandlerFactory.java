@@ -0,0 +1,68 @@
+package org.subethamail.smtp.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+
+/**
+ * MessageHandlerFactory which stores each message in a {@link ContentStore},
+ * with one delivery for each recipient. A body which is already in the store,
+ * because it was sent before in this or another session, is not written
+ * again.
+ */
+public class DeduplicatingMessageHandlerFactory implements MessageHandlerFactory {
+
+    private final ContentStore store;
+
+    /**
+     * @param store the store which receives the messages
+     */
+    public DeduplicatingMessageHandlerFactory(ContentStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @return the store which receives the messages
+     */
+    public ContentStore getStore() {
+        return this.store;
+    }
+
+    @Override
+    public MessageHandler create(MessageContext ctx) {
+        return new Handler();
+    }
+
+    /**
+     * Collects the envelope and stores the message.
+     */
+    private class Handler implements MessageHandler {
+
+        private String from;
+        private final List<String> recipients = new ArrayList<>();
+
+        @Override
+        public void from(String from) throws RejectException {
+            this.from = from;
+        }
+
+        @Override
+        public void recipient(String recipient) throws RejectException {
+            this.recipients.add(recipient);
+        }
+
+        @Override
+        public void data(InputStream data) throws RejectException, IOException {
+            store.store(this.from == null ? "" : this.from, this.recipients, data);
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+}
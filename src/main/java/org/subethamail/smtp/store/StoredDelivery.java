@@ -0,0 +1,84 @@
+package org.subethamail.smtp.store;
+
+/**
+ * The record of a message delivered to one recipient in a
+ * {@link ContentStore}. It only refers to the header block and to the body of
+ * the message, which are shared with the other deliveries of the same
+ * content.
+ */
+public final class StoredDelivery {
+
+    private final String id;
+    private final String from;
+    private final String recipient;
+    private final String headersHash;
+    private final String bodyHash;
+    private final long bodyLength;
+    private final long received;
+
+    StoredDelivery(String id, String from, String recipient, String headersHash, String bodyHash,
+            long bodyLength, long received) {
+        this.id = id;
+        this.from = from;
+        this.recipient = recipient;
+        this.headersHash = headersHash;
+        this.bodyHash = bodyHash;
+        this.bodyLength = bodyLength;
+        this.received = received;
+    }
+
+    /**
+     * @return the unique id of the delivery
+     */
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * @return the envelope sender, an empty string for the null sender
+     */
+    public String getFrom() {
+        return this.from;
+    }
+
+    /**
+     * @return the envelope recipient
+     */
+    public String getRecipient() {
+        return this.recipient;
+    }
+
+    /**
+     * @return the SHA-256 hash of the header block, in hexadecimal
+     */
+    public String getHeadersHash() {
+        return this.headersHash;
+    }
+
+    /**
+     * @return the SHA-256 hash of the body, in hexadecimal
+     */
+    public String getBodyHash() {
+        return this.bodyHash;
+    }
+
+    /**
+     * @return the length of the body in bytes
+     */
+    public long getBodyLength() {
+        return this.bodyLength;
+    }
+
+    /**
+     * @return the time the message was stored, in milliseconds since the
+     * epoch
+     */
+    public long getReceived() {
+        return this.received;
+    }
+
+    @Override
+    public String toString() {
+        return this.id + " <" + this.from + "> to <" + this.recipient + "> body " + this.bodyHash;
+    }
+}
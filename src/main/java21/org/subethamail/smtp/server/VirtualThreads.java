@@ -0,0 +1,28 @@
+package org.subethamail.smtp.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors which run each task in a new virtual thread. This is the
+ * Java 21 variant of the class in the multi-release jar.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the running Java version supports virtual threads
+     */
+    static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * @return a new executor which starts a virtual thread for each task
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+}
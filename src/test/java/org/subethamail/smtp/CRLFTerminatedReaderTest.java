@@ -0,0 +1,116 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.subethamail.smtp.io.CRLFTerminatedReader;
+
+public class CRLFTerminatedReaderTest {
+
+    @Test
+    public void testLines() throws IOException {
+        CRLFTerminatedReader reader = reader("HELO foo\r\nMAIL FROM: <a@b.c>\r\n\r\n");
+        assertEquals("HELO foo", reader.readLine());
+        assertEquals("MAIL FROM: <a@b.c>", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void testLinesSplitAcrossReads() throws IOException {
+        CRLFTerminatedReader reader = new CRLFTerminatedReader(
+                new OneByteInputStream("HELO foo\r\nNOOP\r\n".getBytes("US-ASCII")));
+        assertEquals("HELO foo", reader.readLine());
+        assertEquals("NOOP", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void testUnterminatedLine() throws IOException {
+        CRLFTerminatedReader reader = reader("NOOP\r");
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void testBareLf() throws IOException {
+        CRLFTerminatedReader reader = reader("HELO\nfoo\r\nNOOP\r\n");
+        try {
+            reader.readLine();
+            fail();
+        } catch (CRLFTerminatedReader.TerminationException e) {
+            assertEquals(4, e.position());
+        }
+        assertEquals("NOOP", reader.readLine());
+    }
+
+    @Test
+    public void testBareCr() throws IOException {
+        CRLFTerminatedReader reader = reader("HE\rLO\r\n");
+        try {
+            reader.readLine();
+            fail();
+        } catch (CRLFTerminatedReader.TerminationException e) {
+            assertEquals(2, e.position());
+        }
+    }
+
+    @Test(expected = CRLFTerminatedReader.MaxLineLengthException.class)
+    public void testMaxLineLength() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 998; i++) {
+            line.append('a');
+        }
+        reader(line + "\r\n").readLine();
+    }
+
+    @Test
+    public void testLongestLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 997; i++) {
+            line.append('a');
+        }
+        assertEquals(line.toString(), reader(line + "\r\n").readLine());
+    }
+
+    @Test
+    public void testInputStreamReturnsReadAhead() throws IOException {
+        CRLFTerminatedReader reader = reader("DATA\r\nbody\r\n.\r\nQUIT\r\n");
+        assertEquals("DATA", reader.readLine());
+        InputStream in = reader.getInputStream();
+        byte[] body = new byte[9];
+        int count = 0;
+        while (count < body.length) {
+            count += in.read(body, count, body.length - count);
+        }
+        assertEquals("body\r\n.\r\n", new String(body, "US-ASCII"));
+        assertEquals("QUIT", reader.readLine());
+    }
+
+    private CRLFTerminatedReader reader(String data) throws IOException {
+        return new CRLFTerminatedReader(new ByteArrayInputStream(data.getBytes("ISO-8859-1")));
+    }
+
+    /**
+     * Returns at most one byte from each read call.
+     */
+    private static class OneByteInputStream extends InputStream {
+
+        private final InputStream in;
+
+        OneByteInputStream(byte[] data) {
+            this.in = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, Math.min(len, 1));
+        }
+    }
+}
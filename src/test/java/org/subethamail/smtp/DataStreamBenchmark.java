@@ -0,0 +1,92 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.subethamail.smtp.io.CRLFTerminatedReader;
+import org.subethamail.smtp.io.DotTerminatedInputStream;
+import org.subethamail.smtp.io.DotTerminatedUnstuffingInputStream;
+import org.subethamail.smtp.io.DotUnstuffingInputStream;
+
+/**
+ * Compares the throughput of {@link DotTerminatedUnstuffingInputStream} with
+ * the stack of {@link DotTerminatedInputStream} and
+ * {@link DotUnstuffingInputStream} it replaced in the DATA command. It is not
+ * run by the build, start it with the test classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes org.subethamail.smtp.DataStreamBenchmark
+ * </pre>
+ */
+public class DataStreamBenchmark {
+
+    private static final int[] SIZES = {
+        1024, 64 * 1024, 1024 * 1024, 10 * 1024 * 1024, 100 * 1024 * 1024
+    };
+
+    public static void main(String[] args) throws IOException {
+        for (int size : SIZES) {
+            byte[] data = createData(size);
+            // enough repetitions for about 200 MB per measurement
+            int repetitions = Math.max(1, 200 * 1024 * 1024 / size);
+
+            // warm up
+            measure(data, repetitions, false);
+            measure(data, repetitions, true);
+
+            double stacked = measure(data, repetitions, false);
+            double fused = measure(data, repetitions, true);
+            System.out.printf("%10d bytes: stacked %8.1f MB/s, fused %8.1f MB/s, %5.1fx%n",
+                    size, stacked, fused, fused / stacked);
+        }
+    }
+
+    /**
+     * Creates dot terminated content of 78 character lines, with a stuffed dot
+     * at the beginning of every tenth line.
+     */
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size + 3];
+        Arrays.fill(data, (byte) 'a');
+        for (int i = 78, line = 1; i + 1 < size; i += 80, line++) {
+            data[i] = '\r';
+            data[i + 1] = '\n';
+            if (line % 10 == 0 && i + 3 < size) {
+                data[i + 2] = '.';
+                data[i + 3] = '.';
+            }
+        }
+        data[size - 2] = '\r';
+        data[size - 1] = '\n';
+        data[size] = '.';
+        data[size + 1] = '\r';
+        data[size + 2] = '\n';
+        return data;
+    }
+
+    /**
+     * @return the throughput in MB/s
+     */
+    private static double measure(byte[] data, int repetitions, boolean fused) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            InputStream in = new ByteArrayInputStream(data);
+            InputStream stream;
+            if (fused) {
+                stream = new DotTerminatedUnstuffingInputStream(new CRLFTerminatedReader(in));
+            } else {
+                stream = new DotUnstuffingInputStream(new DotTerminatedInputStream(
+                        new CRLFTerminatedReader(in).getInputStream()));
+            }
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                total += count;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return total / seconds / (1024 * 1024);
+    }
+}
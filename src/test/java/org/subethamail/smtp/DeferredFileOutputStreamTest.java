@@ -0,0 +1,313 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.subethamail.smtp.io.ChunkPool;
+import org.subethamail.smtp.io.DeferredFileOutputStream;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolFilePool;
+
+public class DeferredFileOutputStreamTest {
+
+    @Test
+    public void testWriteFromInMemory() throws IOException {
+        checkRoundTrip(1000, 10000, 0);
+    }
+
+    @Test
+    public void testWriteFromOverThreshold() throws IOException {
+        checkRoundTrip(100000, 10000, 0);
+    }
+
+    @Test
+    public void testDeclaredSizeInMemory() throws IOException {
+        checkRoundTrip(5000, 100000, 5000);
+    }
+
+    /**
+     * A message larger than the declared size is still stored completely.
+     */
+    @Test
+    public void testDeclaredSizeTooSmall() throws IOException {
+        checkRoundTrip(50000, 20000, 5000);
+    }
+
+    @Test
+    public void testDeclaredSizeOverThreshold() throws IOException {
+        checkRoundTrip(50000, 10000, 50000);
+    }
+
+    @Test
+    public void testEmptyOverThreshold() throws IOException {
+        checkRoundTrip(0, 10000, 50000);
+    }
+
+    @Test
+    public void testChunksInMemory() throws IOException {
+        ChunkPool pool = new ChunkPool(1000, 10, false);
+        checkRoundTrip(5500, 10000, 0, pool);
+        assertEquals(0, pool.getChunksInUse());
+        assertEquals(6, pool.getIdleChunks());
+        assertEquals(6, pool.getAllocatedChunks());
+
+        // the chunks are reused
+        checkRoundTrip(3000, 10000, 0, pool);
+        assertEquals(6, pool.getAllocatedChunks());
+    }
+
+    @Test
+    public void testDirectChunksOverThreshold() throws IOException {
+        ChunkPool pool = new ChunkPool(1000, 2, true);
+        checkRoundTrip(50000, 10000, 0, pool);
+        assertEquals(0, pool.getChunksInUse());
+        assertEquals(2, pool.getIdleChunks());
+    }
+
+    @Test
+    public void testBuffersAreNotCopied() throws IOException {
+        ChunkPool pool = new ChunkPool(1000, 10, true);
+        try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(10000, 0, pool)) {
+            dfos.write(new byte[2500]);
+            ByteBuffer[] buffers = dfos.getBuffers();
+            assertEquals(3, buffers.length);
+            assertEquals(500, buffers[2].remaining());
+            assertTrue(buffers[0].isDirect());
+            assertTrue(buffers[0].isReadOnly());
+            assertEquals(3, pool.getChunksInUse());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testStreamFailsAfterClose() throws IOException {
+        ChunkPool pool = new ChunkPool(1000, 10, false);
+        InputStream in;
+        try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(10000, 0, pool)) {
+            dfos.write(new byte[10]);
+            in = dfos.getInputStream();
+        }
+        in.read();
+    }
+
+    @Test
+    public void testMappedFile() throws IOException {
+        byte[] content = new byte[50000];
+        new Random(1).nextBytes(content);
+        try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(10000)) {
+            dfos.setMapped(true);
+            dfos.write(content);
+            assertTrue(Arrays.equals(content, readFull(dfos.getInputStream())));
+            assertTrue(Arrays.equals(content, readFull(dfos.getInputStream())));
+
+            ByteBuffer[] buffers = dfos.getBuffers();
+            assertEquals(1, buffers.length);
+            assertTrue(buffers[0].isReadOnly());
+            assertEquals(content.length, buffers[0].remaining());
+        }
+    }
+
+    @Test
+    public void testTransferFromFileChannel() throws IOException {
+        byte[] content = new byte[50000];
+        new Random(2).nextBytes(content);
+        try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(10000)) {
+            dfos.write(content);
+            FileChannel channel = dfos.getFileChannel();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long position = 0;
+            while (position < channel.size()) {
+                position += channel.transferTo(position, channel.size() - position, Channels.newChannel(out));
+            }
+            assertTrue(Arrays.equals(content, out.toByteArray()));
+            assertNull(dfos.getBuffers());
+        }
+    }
+
+    @Test
+    public void testNoFileChannelInMemory() throws IOException {
+        try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(10000)) {
+            dfos.write(new byte[10]);
+            assertNull(dfos.getFileChannel());
+        }
+    }
+
+    @Test
+    public void testSpoolFilePool() throws IOException {
+        File directory = createDirectory();
+        try {
+            SpoolFilePool pool = new SpoolFilePool(directory, 4, 2);
+            pool.preallocate(1);
+            assertEquals(1, pool.getIdleFiles());
+
+            DeferredFileOutputStream first = new DeferredFileOutputStream(1000, 0, null, pool);
+            DeferredFileOutputStream second = new DeferredFileOutputStream(1000, 0, null, pool);
+            DeferredFileOutputStream third = new DeferredFileOutputStream(1000, 0, null, pool);
+            first.write(new byte[5000]);
+            second.write(new byte[5000]);
+            third.write(new byte[5000]);
+            assertEquals(3, pool.getFilesInUse());
+            assertEquals(3, pool.getCreatedFiles());
+            assertEquals(1, pool.getReusedFiles());
+            assertEquals(5000, readFull(second.getInputStream()).length);
+            first.close();
+            second.close();
+            third.close();
+
+            assertEquals(0, pool.getFilesInUse());
+            assertEquals(2, pool.getIdleFiles());
+            assertEquals(2, countSpoolFiles(directory));
+
+            checkRoundTrip(50000, 10000, 0, null, pool);
+            assertEquals(3, pool.getCreatedFiles());
+            assertEquals(2, pool.getReusedFiles());
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testSpoolFilePoolDeletesOrphans() throws IOException {
+        File directory = createDirectory();
+        try {
+            SpoolFilePool pool = new SpoolFilePool(directory, 2, 10);
+            DeferredFileOutputStream dfos = new DeferredFileOutputStream(1000, 5000, null, pool);
+            dfos.write(new byte[5000]);
+            pool.preallocate(3);
+            assertEquals(4, countSpoolFiles(directory));
+
+            // a restart after a crash
+            pool = new SpoolFilePool(directory, 2, 10);
+            assertEquals(0, countSpoolFiles(directory));
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws IOException {
+        MemoryBudget budget = new MemoryBudget(100000);
+        DeferredFileOutputStream first = new DeferredFileOutputStream(80000, 0, null, null, budget);
+        first.write(new byte[60000]);
+        assertEquals(60000, budget.getUsedBytes());
+        assertNull(first.getFileChannel());
+
+        // the transition size is scaled down to 40% of 80000
+        DeferredFileOutputStream second = new DeferredFileOutputStream(80000, 0, null, null, budget);
+        assertEquals(32000, second.getThreshold());
+        second.write(new byte[20000]);
+        assertEquals(80000, budget.getUsedBytes());
+
+        // the budget cannot cover this, so the data moves to a file
+        first.write(new byte[25000]);
+        // the array of the second stream doubles, up to its transition size
+        second.write(new byte[5000]);
+        assertNotNull(first.getFileChannel());
+        assertNull(second.getFileChannel());
+        assertEquals(32000, budget.getUsedBytes());
+        assertFalse(budget.isExhausted());
+
+        first.close();
+        second.close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    /**
+     * The arrays presized for the declared size are reserved before they are
+     * allocated, so streams whose array the budget cannot cover go to files
+     * right away.
+     */
+    @Test
+    public void testMemoryBudgetCoversDeclaredSize() throws IOException {
+        MemoryBudget budget = new MemoryBudget(100000);
+        List<DeferredFileOutputStream> streams = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            streams.add(new DeferredFileOutputStream(1000000, 30000, null, null, budget));
+        }
+        assertEquals(3 * 31024, budget.getUsedBytes());
+
+        int inMemory = 0;
+        for (DeferredFileOutputStream stream : streams) {
+            stream.write(new byte[30000]);
+            if (stream.getFileChannel() == null) {
+                inMemory++;
+            }
+        }
+        assertEquals(3, inMemory);
+        assertEquals(3 * 31024, budget.getUsedBytes());
+
+        for (DeferredFileOutputStream stream : streams) {
+            stream.close();
+        }
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("spool", "");
+        assertTrue(directory.delete());
+        return directory;
+    }
+
+    private static int countSpoolFiles(File directory) {
+        int count = 0;
+        for (File shard : directory.listFiles()) {
+            count += shard.listFiles().length;
+        }
+        return count;
+    }
+
+    private static void deleteDirectory(File directory) {
+        for (File shard : directory.listFiles()) {
+            for (File file : shard.listFiles()) {
+                file.delete();
+            }
+            shard.delete();
+        }
+        directory.delete();
+    }
+
+    private static void checkRoundTrip(int size, int transitionSize, int declaredSize) throws IOException {
+        checkRoundTrip(size, transitionSize, declaredSize, null);
+    }
+
+    private static void checkRoundTrip(int size, int transitionSize, int declaredSize, ChunkPool pool)
+            throws IOException {
+        checkRoundTrip(size, transitionSize, declaredSize, pool, null);
+    }
+
+    private static void checkRoundTrip(int size, int transitionSize, int declaredSize, ChunkPool pool,
+            SpoolFilePool filePool) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(transitionSize, declaredSize, pool, filePool)) {
+            assertEquals(size, dfos.writeFrom(new ByteArrayInputStream(content)));
+            // each stream is independent
+            assertTrue(Arrays.equals(content, readFull(dfos.getInputStream())));
+            assertTrue(Arrays.equals(content, readFull(dfos.getInputStream())));
+        }
+    }
+
+    private static byte[] readFull(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
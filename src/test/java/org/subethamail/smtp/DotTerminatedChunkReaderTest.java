@@ -0,0 +1,133 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.subethamail.smtp.io.CRLFTerminatedReader;
+import org.subethamail.smtp.io.DotTerminatedChunkReader;
+import org.subethamail.smtp.io.DotTerminatedUnstuffingInputStream;
+
+public class DotTerminatedChunkReaderTest {
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertEquals("", readFull(".\r\n"));
+    }
+
+    @Test
+    public void testUnstuffing() throws IOException {
+        assertEquals("a\r\n.\r\n.b\r\nc.\r\n", readFull("a\r\n..\r\n..b\r\nc.\r\n.\r\n"));
+    }
+
+    @Test
+    public void testUnstuffingFirstLine() throws IOException {
+        assertEquals(".\r\n", readFull("..\r\n.\r\n"));
+    }
+
+    @Test
+    public void testBareLineEnds() throws IOException {
+        assertEquals("a\n.\r\rb\r\n", readFull("a\n.\r\rb\r\n.\r\n"));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testMissingDotLine() throws IOException {
+        readFull("a\r\n");
+    }
+
+    @Test
+    public void testLinesAreNotSplit() throws IOException {
+        DotTerminatedChunkReader chunks = new DotTerminatedChunkReader(reader("a\r\nb\r\nc\r\n.\r\n", 100));
+        assertEquals("a\r\nb\r\nc\r\n", toString(chunks.nextChunk()));
+        assertNull(chunks.nextChunk());
+    }
+
+    @Test
+    public void testChunksAreReadOnly() throws IOException {
+        DotTerminatedChunkReader chunks = new DotTerminatedChunkReader(reader("a\r\n.\r\n", 100));
+        assertTrue(chunks.nextChunk().isReadOnly());
+    }
+
+    @Test
+    public void testPipelinedCommand() throws IOException {
+        CRLFTerminatedReader reader = reader("DATA\r\nhello\r\n.\r\nQUIT\r\n", 100);
+        assertEquals("DATA", reader.readLine());
+        assertEquals("hello\r\n", readFull(new DotTerminatedChunkReader(reader)));
+        assertEquals("QUIT", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    /**
+     * Compares the result with {@link DotTerminatedUnstuffingInputStream} on
+     * random content, which arrives in random portions.
+     */
+    @Test
+    public void testSameAsDotTerminatedUnstuffingStream() throws IOException {
+        Random random = new Random(42);
+        byte[] alphabet = "ab.\r\n".getBytes("US-ASCII");
+        for (int run = 0; run < 200; run++) {
+            StringBuilder data = new StringBuilder("x");
+            int length = random.nextInt(run < 100 ? 50 : 50000);
+            for (int i = 0; i < length; i++) {
+                data.append((char) alphabet[random.nextInt(alphabet.length)]);
+            }
+            data.append("\r\n.\r\n");
+            String content = data.toString();
+
+            InputStream expected = new DotTerminatedUnstuffingInputStream(reader(content, content.length()));
+            DotTerminatedChunkReader actual = new DotTerminatedChunkReader(
+                    reader(content, 1 + random.nextInt(100)));
+            assertEquals(content, readFull(expected), readFull(actual));
+        }
+    }
+
+    /**
+     * @param portion the maximum number of bytes returned by a read of the
+     * underlying stream
+     */
+    private static CRLFTerminatedReader reader(String content, final int portion) throws IOException {
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(content.getBytes("US-ASCII"))) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, portion));
+            }
+        };
+        return new CRLFTerminatedReader(in);
+    }
+
+    private static String readFull(String content) throws IOException {
+        return readFull(new DotTerminatedChunkReader(reader(content, 1)));
+    }
+
+    private static String readFull(DotTerminatedChunkReader chunks) throws IOException {
+        StringBuilder result = new StringBuilder();
+        ByteBuffer chunk;
+        while ((chunk = chunks.nextChunk()) != null) {
+            assertTrue(chunk.hasRemaining());
+            result.append(toString(chunk));
+        }
+        return result.toString();
+    }
+
+    private static String readFull(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while (-1 != (count = in.read(buffer))) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("US-ASCII");
+    }
+
+    private static String toString(ByteBuffer chunk) throws IOException {
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        return new String(bytes, "US-ASCII");
+    }
+}
@@ -0,0 +1,112 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.subethamail.smtp.io.CRLFTerminatedReader;
+import org.subethamail.smtp.io.DotTerminatedInputStream;
+import org.subethamail.smtp.io.DotTerminatedUnstuffingInputStream;
+import org.subethamail.smtp.io.DotUnstuffingInputStream;
+
+public class DotTerminatedUnstuffingInputStreamTest {
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertEquals("", readFull(".\r\n"));
+    }
+
+    @Test
+    public void testPreserveLastCrLf() throws IOException {
+        assertEquals("a\r\n", readFull("a\r\n.\r\n"));
+    }
+
+    @Test
+    public void testUnstuffing() throws IOException {
+        assertEquals("a\r\n.\r\n.b\r\nc.\r\n", readFull("a\r\n..\r\n..b\r\nc.\r\n.\r\n"));
+    }
+
+    @Test
+    public void testUnstuffingFirstLine() throws IOException {
+        assertEquals(".\r\n", readFull("..\r\n.\r\n"));
+    }
+
+    @Test
+    public void testBareLineEnds() throws IOException {
+        assertEquals("a\n.\r\rb\r\n", readFull("a\n.\r\rb\r\n.\r\n"));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testMissingDotLine() throws IOException {
+        readFull("a\r\n");
+    }
+
+    @Test
+    public void testPipelinedCommand() throws IOException {
+        CRLFTerminatedReader reader = reader("DATA\r\nhello\r\n.\r\nQUIT\r\n");
+        assertEquals("DATA", reader.readLine());
+        assertEquals("hello\r\n", readFull(new DotTerminatedUnstuffingInputStream(reader), 8192));
+        assertEquals("QUIT", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        CRLFTerminatedReader reader = reader("DATA\r\nhello\r\n..\r\nworld\r\n.\r\nQUIT\r\n");
+        assertEquals("DATA", reader.readLine());
+        InputStream in = new DotTerminatedUnstuffingInputStream(reader);
+        assertEquals(3, in.skip(3));
+        assertEquals('l', in.read());
+        assertEquals(13, in.skip(Long.MAX_VALUE));
+        assertEquals(0, in.skip(Long.MAX_VALUE));
+        assertEquals(-1, in.read());
+        assertEquals("QUIT", reader.readLine());
+    }
+
+    /**
+     * Compares the result with the stack of streams it replaces, on random
+     * content read in random portions.
+     */
+    @Test
+    public void testSameAsDotTerminatedAndUnstuffingStreams() throws IOException {
+        Random random = new Random(42);
+        byte[] alphabet = "ab.\r\n".getBytes("US-ASCII");
+        for (int run = 0; run < 200; run++) {
+            StringBuilder data = new StringBuilder("x");
+            int length = random.nextInt(run < 100 ? 50 : 50000);
+            for (int i = 0; i < length; i++) {
+                data.append((char) alphabet[random.nextInt(alphabet.length)]);
+            }
+            data.append("\r\n.\r\n");
+            String content = data.toString();
+
+            InputStream expected = new DotUnstuffingInputStream(new DotTerminatedInputStream(
+                    new ByteArrayInputStream(content.getBytes("US-ASCII"))));
+            InputStream actual = new DotTerminatedUnstuffingInputStream(reader(content));
+            assertEquals(content, readFull(expected, 1),
+                    readFull(actual, 1 + random.nextInt(100)));
+        }
+    }
+
+    private static CRLFTerminatedReader reader(String content) throws IOException {
+        return new CRLFTerminatedReader(new ByteArrayInputStream(content.getBytes("US-ASCII")));
+    }
+
+    private static String readFull(String content) throws IOException {
+        return readFull(new DotTerminatedUnstuffingInputStream(reader(content)), 1);
+    }
+
+    private static String readFull(InputStream in, int portion) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[portion];
+        int count;
+        while (-1 != (count = in.read(buffer))) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,81 @@
+package org.subethamail.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.subethamail.smtp.io.HeaderBlockReader;
+
+public class MessageHeadersTest {
+
+    @Test
+    public void testParse() throws IOException {
+        MessageHeaders headers = read("Received: from a\r\n"
+                + "Subject: a long\r\n\tsubject \r\n"
+                + "received : from b\r\n"
+                + "invalid line\r\n"
+                + "\r\n"
+                + "Not-A-Header: body\r\n", 1024);
+
+        assertEquals(3, headers.size());
+        assertEquals("Subject", headers.getName(1));
+        assertEquals("a long\tsubject", headers.get("subject"));
+        assertEquals(Arrays.asList("from a", "from b"), headers.getAll("Received"));
+        assertTrue(headers.contains("RECEIVED"));
+        assertFalse(headers.contains("Not-A-Header"));
+        assertNull(headers.get("From"));
+        assertEquals(Collections.<String>emptyList(), headers.getAll("From"));
+    }
+
+    @Test
+    public void testBareLineFeeds() throws IOException {
+        MessageHeaders headers = read("From: a\nTo: b\n\nbody\n", 1024);
+
+        assertEquals(2, headers.size());
+        assertEquals("b", headers.get("To"));
+        assertEquals("From: a\nTo: b\n\n", headers.toString());
+    }
+
+    @Test
+    public void testMaxLength() throws IOException {
+        MessageHeaders headers = read("Subject: test\r\nX-Long: 0123456789\r\n\r\nbody", 20);
+
+        assertEquals(20, headers.getLength());
+        assertEquals("test", headers.get("Subject"));
+    }
+
+    @Test
+    public void testMessage() throws IOException {
+        String message = "Subject: test\r\n\r\n" + new String(new char[20000]).replace('\0', 'x');
+        HeaderBlockReader reader = new HeaderBlockReader(
+                new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)), 1024);
+        assertEquals("test", reader.read().get("Subject"));
+        assertEquals(message, toString(reader.getMessage()));
+
+        reader = new HeaderBlockReader(
+                new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)), 1024);
+        reader.read();
+        assertEquals(message.substring(17), toString(reader.getBody()));
+    }
+
+    private static String toString(InputStream in) throws IOException {
+        StringBuilder content = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            content.append((char) b);
+        }
+        return content.toString();
+    }
+
+    private static MessageHeaders read(String message, int maxLength) throws IOException {
+        return new HeaderBlockReader(new ByteArrayInputStream(
+                message.getBytes(StandardCharsets.UTF_8)), maxLength).read();
+    }
+}
@@ -0,0 +1,186 @@
+package org.subethamail.smtp.command;
+
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.util.ServerTestCase;
+
+/**
+ * Tests the BDAT command of the CHUNKING extension.
+ */
+public class BdatTest extends ServerTestCase {
+
+    /**
+     *
+     */
+    public BdatTest(String name) {
+        super(name);
+    }
+
+    /**
+     *
+     */
+    public void testEhloAdvertisesChunking() throws Exception {
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250-CHUNKING");
+    }
+
+    /**
+     * The chunk is discarded, so the next command is understood.
+     */
+    public void testNeedMail() throws Exception {
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250 Ok");
+
+        this.send("BDAT 7 LAST\r\nhello");
+        this.expect("503 5.5.1 Error: need MAIL command");
+
+        this.send("NOOP");
+        this.expect("250");
+    }
+
+    /**
+     * The chunks are discarded, so the next command is understood.
+     */
+    public void testMemoryExhausted() throws Exception {
+        this.wiser.getServer().setMemoryBudget(new MemoryBudget(1));
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250 Ok");
+
+        this.send("MAIL FROM: success@subethamail.org");
+        this.expect("250");
+
+        this.send("RCPT TO: success@subethamail.org");
+        this.expect("250");
+
+        this.send("BDAT 5\r\nhelloBDAT 7 LAST\r\nworld");
+        this.expect("452 4.3.1 Insufficient system storage");
+        this.expect("503 5.5.1 Error: need MAIL command");
+
+        this.send("NOOP");
+        this.expect("250");
+    }
+
+    public void testMaxMessageSize() throws Exception {
+        this.wiser.getServer().setMaxMessageSize(10);
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250 Ok");
+
+        this.send("MAIL FROM: success@subethamail.org");
+        this.expect("250");
+
+        this.send("RCPT TO: success@subethamail.org");
+        this.expect("250");
+
+        this.send("BDAT 5\r\nhelloBDAT 7\r\nworld\r\nBDAT 7 LAST\r\nworld");
+        this.expect("250 5 octets received");
+        this.expect("552 5.3.4 Message size exceeds fixed limit");
+        this.expect("503 5.5.1 Error: need MAIL command");
+
+        this.send("MAIL FROM: success@subethamail.org");
+        this.expect("250");
+
+        this.send("RCPT TO: success@subethamail.org");
+        this.expect("250");
+
+        this.send("BDAT 12 LAST\r\nhelloworld");
+        this.expect("552 5.3.4 Message size exceeds fixed limit");
+
+        this.send("NOOP");
+        this.expect("250");
+
+        assertEquals(0, this.wiser.getMessages().size());
+    }
+
+    /**
+     *
+     */
+    public void testSyntax() throws Exception {
+        this.expect("220");
+
+        this.send("BDAT");
+        this.expect("501 Syntax: BDAT <chunk-size> [LAST]");
+
+        this.send("BDAT 1 FIRST");
+        this.expect("501 Syntax: BDAT <chunk-size> [LAST]");
+    }
+
+    /**
+     *
+     */
+    public void testChunks() throws Exception {
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250 Ok");
+
+        this.send("MAIL FROM: <success@subethamail.org> BODY=BINARYMIME");
+        this.expect("250");
+
+        this.send("RCPT TO: <success@subethamail.org>");
+        this.expect("250");
+
+        // the dot is not special in a chunk
+        this.send("BDAT 20\r\nSubject: test\r\n\r\n.");
+        this.send("BDAT 0");
+        this.send("BDAT 6 LAST\r\nbody");
+        this.expect("250 20 octets received");
+        this.expect("250 20 octets received");
+        this.expect("250 Message OK, 26 octets received");
+
+        assertEquals(1, this.wiser.getMessages().size());
+        String message = new String(this.wiser.getMessages().get(0).getData(), "ISO-8859-1");
+        assertTrue(message.endsWith("Subject: test\r\n\r\n.\r\nbody\r\n"));
+    }
+
+    /**
+     *
+     */
+    public void testDataAfterBinaryMime() throws Exception {
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250 Ok");
+
+        this.send("MAIL FROM: <success@subethamail.org> BODY=BINARYMIME");
+        this.expect("250");
+
+        this.send("RCPT TO: <success@subethamail.org>");
+        this.expect("250");
+
+        this.send("DATA");
+        this.expect("503 5.5.1 Error: BODY=BINARYMIME requires BDAT");
+    }
+
+    /**
+     * A command between the chunks aborts the message.
+     */
+    public void testRsetBetweenChunks() throws Exception {
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250 Ok");
+
+        this.send("MAIL FROM: <success@subethamail.org>");
+        this.expect("250");
+
+        this.send("RCPT TO: <success@subethamail.org>");
+        this.expect("250");
+
+        this.send("BDAT 7\r\nhello");
+        this.send("RSET");
+        this.expect("250 7 octets received");
+        this.expect("250 Ok");
+
+        this.send("BDAT 7 LAST\r\nhello");
+        this.expect("503 5.5.1 Error: need MAIL command");
+
+        assertEquals(0, this.wiser.getMessages().size());
+    }
+}
@@ -1,5 +1,14 @@
 package org.subethamail.smtp.command;
 
+import java.io.IOException;
+import java.io.InputStream;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.Client;
 import org.subethamail.smtp.util.ServerTestCase;
 
 /**
@@ -62,6 +71,131 @@ public class DataTest extends ServerTestCase {
         this.expect("354 End data with <CR><LF>.<CR><LF>");
     }
 
+    /**
+     * A budget which cannot cover a single message.
+     */
+    public void testMemoryExhausted() throws Exception {
+        this.wiser.getServer().setMemoryBudget(new MemoryBudget(1));
+        this.expect("220");
+
+        this.send("HELO foo.com");
+        this.expect("250");
+
+        this.send("MAIL FROM: success@subethamail.org");
+        this.expect("250");
+
+        this.send("RCPT TO: success@subethamail.org");
+        this.expect("250");
+
+        this.send("DATA");
+        this.expect("452 4.3.1 Insufficient system storage");
+    }
+
+    /**
+     * The rest of the message is discarded, so the next command is
+     * understood.
+     */
+    public void testMaxMessageSize() throws Exception {
+        this.wiser.getServer().setMaxMessageSize(100);
+        this.expect("220");
+
+        this.send("HELO foo.com");
+        this.expect("250");
+
+        this.send("MAIL FROM: success@subethamail.org");
+        this.expect("250");
+
+        this.send("RCPT TO: success@subethamail.org");
+        this.expect("250");
+
+        this.send("DATA");
+        this.expect("354");
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("line ").append(i).append("\r\n..stuffed\r\n");
+        }
+        this.send(body + ".");
+        this.expect("552 5.3.4 Message size exceeds fixed limit");
+
+        this.send("MAIL FROM: success@subethamail.org");
+        this.expect("250");
+
+        this.send("RCPT TO: success@subethamail.org");
+        this.expect("250");
+
+        this.send("DATA");
+        this.expect("354");
+
+        this.send("Subject: small\r\n\r\nbody\r\n.");
+        this.expect("250 Ok");
+
+        assertEquals(1, this.wiser.getMessages().size());
+    }
+
+    /**
+     * A handler which rejects the message after reading its first line. The
+     * rest of the message is discarded, so the next command is understood.
+     */
+    public void testRejectAfterFirstLine() throws Exception {
+        // Wiser reads the whole message before delivering it
+        this.wiser.stop();
+        SMTPServer server = new SMTPServer(new MessageHandlerFactory() {
+            @Override
+            public MessageHandler create(MessageContext ctx) {
+                return new MessageHandler() {
+                    @Override
+                    public void from(String from) throws RejectException {
+                    }
+
+                    @Override
+                    public void recipient(String recipient) throws RejectException {
+                    }
+
+                    @Override
+                    public void data(InputStream data) throws RejectException, IOException {
+                        int b;
+                        while ((b = data.read()) != -1 && b != '\n');
+                        throw new RejectException(554, "5.6.0 Rejected");
+                    }
+
+                    @Override
+                    public void done() {
+                    }
+                };
+            }
+        });
+        server.setPort(PORT);
+        server.setHostName("localhost");
+        server.start();
+        try {
+            Client client = new Client("localhost", PORT);
+            client.expect("220");
+            client.send("HELO foo.com");
+            client.expect("250");
+            client.send("MAIL FROM: success@subethamail.org");
+            client.expect("250");
+            client.send("RCPT TO: success@subethamail.org");
+            client.expect("250");
+            client.send("DATA");
+            client.expect("354");
+
+            StringBuilder body = new StringBuilder("Subject: test\r\n\r\n");
+            for (int i = 0; i < 1000; i++) {
+                body.append("NOOP ").append(i).append("\r\n");
+            }
+            client.send(body + ".");
+            client.expect("554 5.6.0 Rejected");
+
+            // the transaction was reset
+            client.send("MAIL FROM: success@subethamail.org");
+            client.expect("250");
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
     /**
      *
      */
@@ -88,4 +222,34 @@ public class DataTest extends ServerTestCase {
         this.send("HELO foo.com");
         this.expect("250");
     }
+
+    /**
+     *
+     */
+    public void testPipelining() throws Exception {
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250-PIPELINING");
+
+        this.send("MAIL FROM: success@subethamail.org\r\n"
+                + "RCPT TO: success@subethamail.org\r\n"
+                + "RCPT TO: failure@subethamail.org\r\n"
+                + "DATA");
+        this.expect("250 Ok");
+        this.expect("250 Ok");
+        this.expect("553");
+        this.expect("354 End data with <CR><LF>.<CR><LF>");
+
+        this.send("body\r\n.\r\n"
+                + "MAIL FROM: success@subethamail.org\r\n"
+                + "RSET\r\n"
+                + "QUIT");
+        this.expect("250 Ok");
+        this.expect("250 Ok");
+        this.expect("250 Ok");
+        this.expect("221 Bye");
+
+        assertEquals(1, this.wiser.getMessages().size());
+    }
 }
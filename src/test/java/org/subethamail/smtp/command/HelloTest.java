@@ -64,4 +64,14 @@ public class HelloTest extends ServerTestCase {
         this.send("EHLO foo.com");
         this.expectContains("250-SIZE 1000");
     }
+
+    /**
+     *
+     */
+    public void testEhloPipelining() throws Exception {
+        this.expect("220");
+
+        this.send("EHLO foo.com");
+        this.expectContains("250-PIPELINING");
+    }
 }
@@ -0,0 +1,100 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.MessageDigests;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.MessageHandlerTestCase;
+
+/**
+ * This class tests the digests which the server computes while a message is
+ * received, as they are passed to listeners.
+ */
+public class DigestListenerTest extends MessageHandlerTestCase {
+
+    private static final String MESSAGE = "Subject: test\r\n\r\nbody\r\n";
+
+    private final List<MessageDigests> digests = Collections.synchronizedList(new ArrayList<MessageDigests>());
+
+    @Before
+    public void setUp() {
+        SMTPServer server = new SMTPServer(new SimpleMessageListenerAdapter(Arrays.<SimpleMessageListener>asList(
+                new Listener(), new Listener())));
+        server.setMessageDigests("SHA-256", "CRC32");
+        start(server);
+    }
+
+    /**
+     * The digests cover the message as sent, without the Received header,
+     * even though the listeners do not read it.
+     */
+    @Test
+    public void testData() throws Exception {
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        client.send(MESSAGE + ".");
+        client.expect("250");
+        client.close();
+
+        assertDigests();
+    }
+
+    @Test
+    public void testBdat() throws Exception {
+        Client client = startTransaction();
+        client.send("BDAT 17\r\nSubject: test\r\n");
+        client.send("BDAT 6 LAST\r\nbody");
+        client.expect("250 17 octets received");
+        client.expect("250 Message OK, 23 octets received");
+        client.close();
+
+        assertDigests();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedAlgorithm() {
+        server.setMessageDigests("NO-SUCH-DIGEST");
+    }
+
+    private void assertDigests() throws Exception {
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(MESSAGE.getBytes(StandardCharsets.US_ASCII));
+        assertEquals(2, digests.size());
+        for (MessageDigests result : digests) {
+            assertEquals(MESSAGE.length(), result.getLength());
+            assertArrayEquals(sha256, result.get("SHA-256"));
+            assertEquals("dbe31b6c", result.getHex("CRC32"));
+        }
+    }
+
+    /**
+     * Collects the digests, without reading the message.
+     */
+    private class Listener implements SimpleMessageListener, DigestListener {
+
+        @Override
+        public boolean accept(String from, String recipient) {
+            return true;
+        }
+
+        @Override
+        public void deliver(String from, String recipient, InputStream data) throws IOException {
+        }
+
+        @Override
+        public void digests(MessageDigests result) {
+            digests.add(result);
+        }
+    }
+}
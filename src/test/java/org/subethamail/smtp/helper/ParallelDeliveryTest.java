@@ -0,0 +1,352 @@
+package org.subethamail.smtp.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.io.MemoryBudget;
+import org.subethamail.smtp.io.SpoolFilePool;
+import org.subethamail.smtp.io.SpooledInputStream;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.MessageHandlerTestCase;
+
+/**
+ * This class tests the concurrent delivery of messages to several listeners.
+ */
+public class ParallelDeliveryTest extends MessageHandlerTestCase {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Each listener waits until all of them have been called, which only
+     * succeeds if they are called concurrently.
+     */
+    @Test
+    public void testConcurrentDelivery() throws Exception {
+        final CountDownLatch allCalled = new CountDownLatch(3);
+        List<SimpleMessageListener> listeners = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            listeners.add(new Listener() {
+                @Override
+                void deliver(String content) throws IOException {
+                    allCalled.countDown();
+                    try {
+                        assertTrue(allCalled.await(5, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    messages.add(content);
+                }
+            });
+        }
+        startServer(listeners, 0);
+
+        sendMessage("250");
+        assertEquals(Collections.nCopies(3, "Subject: test\r\n\r\nbody\r\n"), messages);
+    }
+
+    @Test
+    public void testSmarterListeners() throws Exception {
+        List<SmarterMessageListener> listeners = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            listeners.add(new SmarterMessageListener() {
+                @Override
+                public Receiver accept(String from, String recipient) {
+                    return new Receiver() {
+                        @Override
+                        public void deliver(InputStream data) throws IOException {
+                            messages.add(read(data));
+                        }
+
+                        @Override
+                        public void done() {
+                        }
+                    };
+                }
+            });
+        }
+        SmarterMessageListenerAdapter adapter = new SmarterMessageListenerAdapter(listeners);
+        adapter.setParallelDelivery(executor, 0, TimeUnit.SECONDS);
+        startServer(new SMTPServer(adapter));
+
+        sendMessage("250");
+        assertEquals(Collections.nCopies(2, "Subject: test\r\n\r\nbody\r\n"), messages);
+    }
+
+    /**
+     * The failure of a single delivery rejects the message temporarily.
+     */
+    @Test
+    public void testFailure() throws Exception {
+        startServer(listeners(new Listener(), new Listener() {
+            @Override
+            void deliver(String content) throws IOException {
+                throw new IOException("Disk full");
+            }
+        }), 0);
+
+        sendMessage("451 4.3.0 Delivery failed for 1 of 2 deliveries");
+        assertEquals(1, messages.size());
+    }
+
+    @Test
+    public void testTooMuchData() throws Exception {
+        startServer(listeners(new Listener(), new Listener() {
+            @Override
+            void deliver(String content) throws IOException {
+                throw new TooMuchDataException();
+            }
+        }), 0);
+
+        sendMessage("552 5.3.4");
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        startServer(listeners(new Listener(), new Listener() {
+            @Override
+            void deliver(String content) throws IOException {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }), 200);
+
+        long start = System.nanoTime();
+        sendMessage("451");
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, messages.size());
+    }
+
+    /**
+     * A listener which reads slowly through a small ring buffer receives the
+     * spilled part of the message.
+     */
+    @Test
+    public void testStreamingSlowListener() throws Exception {
+        startServer(listeners(new Listener(), new SlowListener()), 0, 16);
+
+        String body = sendLargeMessage();
+        assertEquals(Collections.nCopies(2, body), messages);
+    }
+
+    /**
+     * The spill files are taken from the spool file pool of the adapter.
+     */
+    @Test
+    public void testStreamingSpillsToPool() throws Exception {
+        SpoolFilePool pool = new SpoolFilePool(folder.newFolder("spool"), 1, 4);
+        SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(
+                listeners(new Listener(), new SlowListener()));
+        adapter.setParallelDelivery(executor, 0, TimeUnit.SECONDS);
+        adapter.setTeeBufferSize(16);
+        adapter.setSpoolFilePool(pool);
+        startServer(new SMTPServer(adapter));
+
+        String body = sendLargeMessage();
+        assertEquals(Collections.nCopies(2, body), messages);
+        assertTrue(pool.getCreatedFiles() > 0);
+        assertEquals(0, pool.getFilesInUse());
+    }
+
+    /**
+     * The budget covers only one of the ring buffers, the other listener
+     * receives the message through a spill file.
+     */
+    @Test
+    public void testStreamingOverMemoryBudget() throws Exception {
+        SpoolFilePool pool = new SpoolFilePool(folder.newFolder("spool"), 1, 4);
+        SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(
+                listeners(new Listener(), new Listener()));
+        adapter.setParallelDelivery(executor, 0, TimeUnit.SECONDS);
+        adapter.setTeeBufferSize(16384);
+        adapter.setSpoolFilePool(pool);
+        SMTPServer server = new SMTPServer(adapter);
+        MemoryBudget budget = new MemoryBudget(20000);
+        server.setMemoryBudget(budget);
+        startServer(server);
+
+        // the message fits into the ring buffer, only the listener without a
+        // ring buffer needs a spill file
+        sendMessage("250");
+        assertEquals(Collections.nCopies(2, "Subject: test\r\n\r\nbody\r\n"), messages);
+        assertEquals(1, pool.getCreatedFiles());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    /**
+     * The listeners start reading before the end of the message arrives.
+     */
+    @Test
+    public void testStreamingStartsEarly() throws Exception {
+        final CountDownLatch firstRead = new CountDownLatch(2);
+        startServer(listeners(new Listener() {
+            @Override
+            public void deliver(String from, String recipient, InputStream data) throws IOException {
+                int first = data.read();
+                firstRead.countDown();
+                messages.add((char) first + read(data));
+            }
+        }, new Listener() {
+            @Override
+            public void deliver(String from, String recipient, InputStream data) throws IOException {
+                int first = data.read();
+                firstRead.countDown();
+                messages.add((char) first + read(data));
+            }
+        }), 0, 1024);
+
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        client.send("Subject: test\r\n");
+        assertTrue(firstRead.await(5, TimeUnit.SECONDS));
+        client.send("body\r\n.");
+        client.expect("250");
+        client.close();
+
+        assertEquals(Collections.nCopies(2, "Subject: test\r\n\r\nbody\r\n"), messages);
+    }
+
+    /**
+     * The listeners transfer the spool file of the message directly from its
+     * channel.
+     */
+    @Test
+    public void testSpoolFileChannel() throws Exception {
+        List<SimpleMessageListener> listeners = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            listeners.add(new Listener() {
+                @Override
+                public void deliver(String from, String recipient, InputStream data) throws IOException {
+                    FileChannel channel = ((SpooledInputStream) data).getFileChannel();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    long position = 0;
+                    while (position < channel.size()) {
+                        position += channel.transferTo(position, channel.size() - position,
+                                Channels.newChannel(out));
+                    }
+                    messages.add(out.toString("US-ASCII"));
+                }
+            });
+        }
+        SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(listeners, 10);
+        adapter.setParallelDelivery(executor, 0, TimeUnit.SECONDS);
+        startServer(new SMTPServer(adapter));
+
+        sendMessage("250");
+        assertEquals(Collections.nCopies(2, "Subject: test\r\n\r\nbody\r\n"), messages);
+    }
+
+    private void startServer(List<SimpleMessageListener> listeners, long timeout) {
+        startServer(listeners, timeout, 0);
+    }
+
+    private void startServer(List<SimpleMessageListener> listeners, long timeout, int teeBufferSize) {
+        SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(listeners);
+        adapter.setParallelDelivery(executor, timeout, TimeUnit.MILLISECONDS);
+        adapter.setTeeBufferSize(teeBufferSize);
+        startServer(new SMTPServer(adapter));
+    }
+
+    private void startServer(SMTPServer server) {
+        server.setDisableReceivedHeaders(true);
+        start(server);
+    }
+
+    private void sendMessage(String reply) throws Exception {
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        client.send("Subject: test\r\n\r\nbody\r\n.");
+        client.expect(reply);
+        client.close();
+    }
+
+    /**
+     * Sends a message which does not fit into small ring buffers.
+     *
+     * @return the message content
+     */
+    private String sendLargeMessage() throws Exception {
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        StringBuilder body = new StringBuilder("Subject: test\r\n\r\n");
+        for (int i = 0; i < 5000; i++) {
+            body.append("line ").append(i).append("\r\n");
+        }
+        client.send(body + ".");
+        client.expect("250");
+        client.close();
+        return body.toString();
+    }
+
+    private static List<SimpleMessageListener> listeners(SimpleMessageListener... listeners) {
+        List<SimpleMessageListener> list = new ArrayList<>();
+        Collections.addAll(list, listeners);
+        return list;
+    }
+
+    /**
+     * Accepts every recipient and records the message.
+     */
+    private class Listener implements SimpleMessageListener {
+
+        @Override
+        public boolean accept(String from, String recipient) {
+            return true;
+        }
+
+        @Override
+        public void deliver(String from, String recipient, InputStream data) throws IOException {
+            deliver(read(data));
+        }
+
+        void deliver(String content) throws IOException {
+            messages.add(content);
+        }
+    }
+
+    /**
+     * Starts reading the message late, so it falls behind.
+     */
+    private class SlowListener extends Listener {
+
+        @Override
+        public void deliver(String from, String recipient, InputStream data) throws IOException {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            super.deliver(from, recipient, data);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.subethamail.smtp.mime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MimeParserTest {
+
+    private final List<MimePart> parts = new ArrayList<>();
+
+    private final List<ByteArrayOutputStream> contents = new ArrayList<>();
+
+    private final MimeParser parser = new MimeParser(new MimePartHandler() {
+        @Override
+        public OutputStream part(MimePart part) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            parts.add(part);
+            contents.add(content);
+            return content;
+        }
+    });
+
+    @Test
+    public void testSinglePart() throws IOException {
+        parser.parse(stream("Subject: test\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n"
+                + "\r\n"
+                + "caf=C3=A9 =3D soft=\r\nbreak=\r\n"));
+
+        assertEquals(1, parts.size());
+        assertEquals("text/plain", parts.get(0).getContentType());
+        assertEquals("caf\u00e9 = softbreak", content(0));
+    }
+
+    @Test
+    public void testNestedMultipart() throws IOException {
+        parser.parse(stream("Content-Type: multipart/mixed; boundary=\"outer\"\n"
+                + "\n"
+                + "preamble\n"
+                + "--outer\n"
+                + "Content-Type: multipart/alternative; boundary=inner\n"
+                + "\n"
+                + "--inner\n"
+                + "\n"
+                + "plain\n"
+                + "--inner\n"
+                + "Content-Type: text/html; charset=utf-8\n"
+                + "\n"
+                + "<p>html</p>\n"
+                + "--inner--\n"
+                + "--outer\n"
+                + "Content-Type: application/octet-stream; name=a.bin\n"
+                + "Content-Disposition: attachment; filename=\"b c.bin\"\n"
+                + "Content-Transfer-Encoding: base64\n"
+                + "\n"
+                + "AAEC\n"
+                + "/w==\n"
+                + "--outer--\n"
+                + "epilogue\n"));
+
+        assertEquals(3, parts.size());
+        assertEquals("plain", content(0));
+        assertEquals("text/html", parts.get(1).getContentType());
+        assertEquals("utf-8", parts.get(1).getCharset());
+        assertEquals(2, parts.get(1).getDepth());
+        assertEquals("<p>html</p>", content(1));
+        assertTrue(parts.get(2).isAttachment());
+        assertEquals("b c.bin", parts.get(2).getFileName());
+        assertEquals(1, parts.get(2).getIndex());
+        assertArrayEquals(new byte[]{0, 1, 2, (byte) 0xff}, contents.get(2).toByteArray());
+    }
+
+    /**
+     * A large binary attachment is decoded correctly, however the delimiters
+     * fall on the reads of the message.
+     */
+    @Test
+    public void testAttachment() throws Exception {
+        byte[] attachment = new byte[300000];
+        new Random(42).nextBytes(attachment);
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject("attachment");
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("see the attachment, \u00e9t\u00e9", "utf-8");
+        MimeBodyPart file = new MimeBodyPart();
+        file.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/octet-stream")));
+        file.setFileName("random.bin");
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(file);
+        message.setContent(multipart);
+        message.saveChanges();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        message.writeTo(raw);
+
+        parser.parse(new FilterInputStream(new ByteArrayInputStream(raw.toByteArray())) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        });
+
+        assertEquals(2, parts.size());
+        assertEquals("see the attachment, \u00e9t\u00e9", content(0));
+        assertEquals("random.bin", parts.get(1).getFileName());
+        assertEquals("base64", parts.get(1).getTransferEncoding());
+        assertArrayEquals(attachment, contents.get(1).toByteArray());
+    }
+
+    /**
+     * A multipart entity without its close delimiter ends at the end of the
+     * message.
+     */
+    @Test
+    public void testTruncated() throws IOException {
+        parser.parse(stream("Content-Type: multipart/mixed; boundary=b\r\n"
+                + "\r\n"
+                + "--b\r\n"
+                + "\r\n"
+                + "first\r\n"
+                + "--b\r\n"
+                + "\r\n"
+                + "second --b"));
+
+        assertEquals(Arrays.asList("first", "second --b"), Arrays.asList(content(0), content(1)));
+    }
+
+    @Test
+    public void testParameter() {
+        String value = "attachment; size=10;filename=\"a \\\"b\\\"; c\"; x=y";
+        assertEquals("10", MimePart.parameter(value, "SIZE"));
+        assertEquals("a \"b\"; c", MimePart.parameter(value, "filename"));
+        assertEquals("y", MimePart.parameter(value, "x"));
+        assertEquals(null, MimePart.parameter(value, "attachment"));
+        assertNull(MimePart.parameter("text/plain", "text"));
+    }
+
+    private String content(int index) {
+        return new String(contents.get(index).toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static InputStream stream(String message) {
+        return new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,139 @@
+package org.subethamail.smtp.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.TextUtils;
+import org.subethamail.wiser.Wiser;
+
+/**
+ * This class tests a server with several accepting threads.
+ */
+public class AcceptorsTest {
+
+    /**
+     *
+     */
+    public static final int PORT = 2566;
+
+    private Wiser wiser;
+
+    @Before
+    public void setUp() {
+        wiser = new Wiser();
+        wiser.setPort(PORT);
+        wiser.setHostname("localhost");
+        wiser.getServer().setAcceptorCount(3);
+        wiser.getServer().setMaxConnections(4);
+    }
+
+    @After
+    public void tearDown() {
+        wiser.stop();
+    }
+
+    @Test
+    public void testMails() throws Exception {
+        wiser.start();
+        for (int i = 0; i < 6; i++) {
+            SmartClient client = new SmartClient("localhost", PORT, "localhost");
+            client.from("john@example.com");
+            client.to("jane@example.com");
+            client.dataStart();
+            byte[] body = TextUtils.getAsciiBytes("Subject: test " + i + "\r\n\r\nbody\r\n");
+            client.dataWrite(body, body.length);
+            client.dataEnd();
+            client.quit();
+        }
+
+        assertEquals(6, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testGlobalConnectionLimit() throws Exception {
+        testGlobalConnectionLimit(false);
+    }
+
+    @Test
+    public void testGlobalConnectionLimitNonBlocking() throws Exception {
+        testGlobalConnectionLimit(true);
+    }
+
+    /**
+     * Short connections from several threads must not leak registrations, the
+     * full connection limit is available afterwards.
+     */
+    @Test
+    public void testConnectionChurn() throws Exception {
+        wiser.getServer().setMaxConnections(20);
+        wiser.start();
+        List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 25; j++) {
+                            Client client = new Client("localhost", PORT);
+                            // a session is only unregistered after the client
+                            // has seen the reply to QUIT, so the limit may be
+                            // reached temporarily
+                            if (client.readResponse().startsWith("220")) {
+                                client.send("QUIT");
+                                client.expect("221");
+                            }
+                            client.close();
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), failures);
+
+        // let the last sessions end, then check that none of them leaked
+        Thread.sleep(500);
+        assertConnectionLimit(20);
+    }
+
+    private void testGlobalConnectionLimit(boolean nonBlocking) throws Exception {
+        wiser.getServer().setNonBlocking(nonBlocking);
+        wiser.start();
+        assertConnectionLimit(4);
+    }
+
+    private void assertConnectionLimit(int maxConnections) throws Exception {
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < maxConnections; i++) {
+            Client client = new Client("localhost", PORT);
+            client.expect("220");
+            clients.add(client);
+        }
+
+        long shed = wiser.getServer().getNumberOfShedConnections();
+        Client rejected = new Client("localhost", PORT);
+        rejected.expect("421");
+        rejected.close();
+        assertEquals(shed + 1, wiser.getServer().getNumberOfShedConnections());
+        assertEquals(maxConnections, wiser.getServer().getNumberOfConnections());
+
+        for (Client client : clients) {
+            client.send("QUIT");
+            client.expect("221");
+            client.close();
+        }
+    }
+}
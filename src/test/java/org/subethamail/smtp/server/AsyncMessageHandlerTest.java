@@ -0,0 +1,195 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import org.junit.Test;
+import org.subethamail.smtp.AsyncMessageHandler;
+import org.subethamail.smtp.AsyncMessageHandlerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.MessageHandlerTestCase;
+
+/**
+ * This class tests message handlers which accept commands asynchronously.
+ */
+public class AsyncMessageHandlerTest extends MessageHandlerTestCase {
+
+    /**
+     * The stages of the from() calls, completed by the test.
+     */
+    private final BlockingQueue<CompletableFuture<Void>> pendingSenders = new LinkedBlockingQueue<>();
+
+    @Test
+    public void testMessage() throws Exception {
+        startServer(false, 0);
+        sendMessage();
+    }
+
+    @Test
+    public void testMessageNonBlocking() throws Exception {
+        startServer(true, 0);
+        sendMessage();
+    }
+
+    @Test
+    public void testPipelinedReject() throws Exception {
+        startServer(true, 0);
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        client.send("HELO foo.com");
+        client.expect("250");
+        client.send("MAIL FROM: <john@example.com>\r\n"
+                + "RCPT TO: <nobody@example.com>\r\n"
+                + "RCPT TO: <jane@example.com>");
+        completeSender();
+        client.expect("250");
+        client.expect("553 <nobody@example.com> No such user");
+        client.expect("250");
+        client.close();
+    }
+
+    /**
+     * On the non-blocking transport a session waiting for its handler does
+     * not occupy the single worker thread.
+     */
+    @Test
+    public void testThreadIsReleased() throws Exception {
+        startServer(true, 1);
+        Client first = new Client("localhost", PORT);
+        first.expect("220");
+        first.send("MAIL FROM: <john@example.com>");
+        CompletableFuture<Void> firstSender = pendingSenders.poll(5, TimeUnit.SECONDS);
+        assertNotNull(firstSender);
+
+        Client second = new Client("localhost", PORT);
+        second.expect("220");
+        second.send("MAIL FROM: <jane@example.com>");
+        completeSender();
+        second.expect("250");
+
+        firstSender.complete(null);
+        first.expect("250");
+        first.close();
+        second.close();
+    }
+
+    /**
+     * A stage which never completes drops the connection after the
+     * connection timeout.
+     */
+    @Test
+    public void testHandlerTimeout() throws Exception {
+        startServer(false, 0);
+        expectHandlerTimeout();
+    }
+
+    @Test
+    public void testHandlerTimeoutNonBlocking() throws Exception {
+        startServer(true, 0);
+        expectHandlerTimeout();
+    }
+
+    private void startServer(boolean nonBlocking, int threads) {
+        SMTPServer server = new SMTPServer(null, null,
+                threads == 0 ? null : Executors.newFixedThreadPool(threads));
+        server.setNonBlocking(nonBlocking);
+        server.setDisableReceivedHeaders(true);
+        server.setAsyncMessageHandlerFactory(new AsyncMessageHandlerFactory() {
+            @Override
+            public AsyncMessageHandler create(MessageContext ctx) {
+                return new Handler();
+            }
+        });
+        start(server);
+    }
+
+    private void expectHandlerTimeout() throws Exception {
+        server.setConnectionTimeout(1000);
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        client.send("MAIL FROM: <john@example.com>");
+        assertNotNull(pendingSenders.poll(5, TimeUnit.SECONDS));
+        client.expect("421 Timeout waiting for the message handler.");
+        client.close();
+    }
+
+    private void sendMessage() throws Exception {
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        client.send("HELO foo.com");
+        client.expect("250");
+        client.send("MAIL FROM: <john@example.com>");
+        completeSender();
+        client.expect("250");
+        client.send("RCPT TO: <jane@example.com>");
+        client.expect("250");
+        client.send("DATA");
+        client.expect("354");
+        client.send("Subject: test\r\n\r\nbody\r\n.");
+        client.expect("250");
+        client.send("QUIT");
+        client.expect("221");
+        client.close();
+
+        assertEquals(1, messages.size());
+        assertEquals("Subject: test\r\n\r\nbody\r\n", messages.get(0));
+    }
+
+    private void completeSender() throws InterruptedException {
+        CompletableFuture<Void> sender = pendingSenders.poll(5, TimeUnit.SECONDS);
+        assertNotNull(sender);
+        sender.complete(null);
+    }
+
+    /**
+     * Completes the sender by the test, rejects a recipient, and reads the
+     * data on another thread.
+     */
+    private class Handler implements AsyncMessageHandler {
+
+        @Override
+        public CompletionStage<Void> from(String from) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            pendingSenders.add(result);
+            return result;
+        }
+
+        @Override
+        public CompletionStage<Void> recipient(String recipient) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            if (recipient.startsWith("nobody")) {
+                result.completeExceptionally(new RejectException(553, "<" + recipient + "> No such user"));
+            } else {
+                result.complete(null);
+            }
+            return result;
+        }
+
+        @Override
+        public CompletionStage<Void> data(final InputStream data) {
+            return CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        messages.add(read(data));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+}
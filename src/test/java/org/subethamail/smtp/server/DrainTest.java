@@ -0,0 +1,158 @@
+package org.subethamail.smtp.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.TextUtils;
+import org.subethamail.wiser.Wiser;
+
+/**
+ * This class tests draining a server and handing over its server socket.
+ */
+public class DrainTest {
+
+    /**
+     *
+     */
+    public static final int PORT = 2566;
+
+    private Wiser wiser;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() {
+        wiser = new Wiser();
+        wiser.setPort(PORT);
+        wiser.setHostname("localhost");
+    }
+
+    @After
+    public void tearDown() {
+        wiser.stop();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testIdleSessionIsClosed() throws Exception {
+        wiser.start();
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        client.send("HELO foo.com");
+        client.expect("250");
+
+        assertTrue(wiser.getServer().drain(5, TimeUnit.SECONDS));
+        client.expect("421");
+        client.close();
+    }
+
+    @Test
+    public void testIdleSessionIsClosedNonBlocking() throws Exception {
+        wiser.getServer().setNonBlocking(true);
+        testIdleSessionIsClosed();
+    }
+
+    @Test
+    public void testMessageCompletes() throws Exception {
+        wiser.start();
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        client.send("HELO foo.com");
+        client.expect("250");
+        client.send("MAIL FROM: <john@example.com>");
+        client.expect("250");
+        client.send("RCPT TO: <jane@example.com>");
+        client.expect("250");
+        client.send("DATA");
+        client.expect("354");
+        client.send("Subject: test\r\n\r\nbody");
+
+        Future<Boolean> drained = drainInBackground(5);
+        // the session keeps the server draining
+        Thread.sleep(300);
+        assertFalse(drained.isDone());
+        // the drain does not hold the server lock while it waits
+        assertTrue(wiser.getServer().isRunning());
+
+        client.send(".");
+        client.expect("250");
+        client.expect("421");
+        client.close();
+
+        assertTrue(drained.get());
+        assertEquals(1, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        wiser.start();
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        client.send("HELO foo.com");
+        client.expect("250");
+        client.send("MAIL FROM: <john@example.com>");
+        client.expect("250");
+
+        assertFalse(wiser.getServer().drain(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, wiser.getServer().getNumberOfConnections());
+        client.close();
+    }
+
+    @Test
+    public void testTakeOver() throws Exception {
+        wiser.start();
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+
+        Wiser successor = new Wiser();
+        successor.setHostname("localhost");
+        try {
+            successor.getServer().takeOver(wiser.getServer());
+            assertEquals(PORT, successor.getServer().getPort());
+
+            sendMessage();
+            assertEquals(1, successor.getMessages().size());
+            assertEquals(0, wiser.getMessages().size());
+
+            assertTrue(wiser.getServer().drain(5, TimeUnit.SECONDS));
+            client.expect("421");
+            client.close();
+
+            // the server socket is still open
+            sendMessage();
+            assertEquals(2, successor.getMessages().size());
+        } finally {
+            successor.stop();
+        }
+    }
+
+    private Future<Boolean> drainInBackground(final long seconds) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return wiser.getServer().drain(seconds, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    private void sendMessage() throws Exception {
+        SmartClient client = new SmartClient("localhost", PORT, "localhost");
+        client.from("john@example.com");
+        client.to("jane@example.com");
+        client.dataStart();
+        byte[] body = TextUtils.getAsciiBytes("Subject: test\r\n\r\nbody\r\n");
+        client.dataWrite(body, body.length);
+        client.dataEnd();
+        client.quit();
+    }
+}
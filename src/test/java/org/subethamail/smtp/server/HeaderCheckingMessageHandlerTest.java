@@ -0,0 +1,172 @@
+package org.subethamail.smtp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.subethamail.smtp.HeaderCheckingMessageHandler;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.MessageHeaders;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.MessageHandlerTestCase;
+
+/**
+ * This class tests message handlers which examine the header block before the
+ * message content is passed to them.
+ */
+public class HeaderCheckingMessageHandlerTest extends MessageHandlerTestCase {
+
+    private final List<String> subjects = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void testAccept() throws Exception {
+        startServer();
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        client.send("Subject: hello\r\n\r\nbody\r\n.");
+        client.expect("250");
+        client.close();
+
+        assertEquals(Collections.singletonList("hello"), subjects);
+        assertEquals(Collections.singletonList("Subject: hello\r\n\r\nbody\r\n"), messages);
+    }
+
+    /**
+     * The body of a rejected message is discarded without passing it to the
+     * handler.
+     */
+    @Test
+    public void testReject() throws Exception {
+        startServer();
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        StringBuilder body = new StringBuilder("Subject: spam\r\n\r\n");
+        for (int i = 0; i < 5000; i++) {
+            body.append("line ").append(i).append("\r\n");
+        }
+        client.send(body + ".");
+        client.expect("554 5.7.1 Spam");
+        client.send("NOOP");
+        client.expect("250");
+        client.send("MAIL FROM: <john@example.com>");
+        client.expect("250");
+        client.close();
+
+        assertEquals(Collections.singletonList("spam"), subjects);
+        assertEquals(Collections.emptyList(), messages);
+    }
+
+    @Test
+    public void testRejectBdat() throws Exception {
+        startServer();
+        Client client = startTransaction();
+        client.send("BDAT 20\r\nSubject: spam\r\n\r\n.");
+        client.send("BDAT 4 LAST\r\nbo");
+        client.expect("554 5.7.1 Spam");
+        client.expect("503");
+        client.send("NOOP");
+        client.expect("250");
+        client.close();
+
+        assertEquals(Collections.singletonList("spam"), subjects);
+        assertEquals(Collections.emptyList(), messages);
+    }
+
+    /**
+     * A plain handler finds the parsed header fields in the context, and
+     * reads the body after skipping the header block.
+     */
+    @Test
+    public void testParseHeaders() throws Exception {
+        SMTPServer server = new SMTPServer(new MessageHandlerFactory() {
+            @Override
+            public MessageHandler create(final MessageContext ctx) {
+                return new Collector() {
+                    @Override
+                    public void data(InputStream data) throws RejectException, IOException {
+                        MessageHeaders headers = ctx.getMessageHeaders();
+                        subjects.add(headers.get("Subject"));
+                        long skipped = 0;
+                        while (skipped < headers.getLength()) {
+                            skipped += data.skip(headers.getLength() - skipped);
+                        }
+                        super.data(data);
+                    }
+                };
+            }
+        });
+        server.setParseHeaders(true);
+        start(server);
+
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        client.send("Subject: hello\r\nTo: jane@example.com\r\n\r\nbody\r\n.");
+        client.expect("250");
+        client.close();
+
+        assertEquals(Collections.singletonList("hello"), subjects);
+        assertEquals(Collections.singletonList("body\r\n"), messages);
+    }
+
+    private void startServer() {
+        start(new SMTPServer(new MessageHandlerFactory() {
+            @Override
+            public MessageHandler create(MessageContext ctx) {
+                return new Handler();
+            }
+        }));
+    }
+
+    @Override
+    protected void start(SMTPServer server) {
+        server.setDisableReceivedHeaders(true);
+        super.start(server);
+    }
+
+    /**
+     * Rejects messages with the subject "spam".
+     */
+    private class Handler extends Collector implements HeaderCheckingMessageHandler {
+
+        @Override
+        public void headers(MessageHeaders headers) throws RejectException {
+            String subject = headers.get("Subject");
+            subjects.add(subject);
+            if ("spam".equals(subject)) {
+                throw new RejectException(554, "5.7.1 Spam");
+            }
+        }
+    }
+
+    /**
+     * Collects the messages.
+     */
+    private class Collector implements MessageHandler {
+
+        @Override
+        public void from(String from) throws RejectException {
+        }
+
+        @Override
+        public void recipient(String recipient) throws RejectException {
+        }
+
+        @Override
+        public void data(InputStream data) throws RejectException, IOException {
+            messages.add(read(data));
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.subethamail.smtp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.client.SMTPClient;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.TextUtils;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * This class tests the non-blocking transport.
+ */
+public class NonBlockingTest {
+
+    /**
+     *
+     */
+    public static final int PORT = 2566;
+
+    private Wiser wiser;
+
+    @Before
+    public void setUp() {
+        wiser = new Wiser();
+        wiser.setPort(PORT);
+        wiser.setHostname("localhost");
+        wiser.getServer().setNonBlocking(true);
+        wiser.getServer().setEventLoopCount(2);
+        wiser.start();
+    }
+
+    @After
+    public void tearDown() {
+        wiser.stop();
+    }
+
+    @Test
+    public void testTwoMailsInOneSession() throws Exception {
+        SmartClient client = new SmartClient("localhost", PORT, "localhost");
+        for (int i = 0; i < 2; i++) {
+            client.from("john@example.com");
+            client.to("jane@example.com");
+            client.dataStart();
+            byte[] body = TextUtils.getAsciiBytes("Subject: test " + i + "\r\n\r\n.body\r\n");
+            client.dataWrite(body, body.length);
+            client.dataEnd();
+        }
+        client.quit();
+
+        List<WiserMessage> messages = wiser.getMessages();
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(1).toString().endsWith("Subject: test 1\r\n\r\n.body\r\n"));
+    }
+
+    /**
+     * The content is larger than the input buffer of a connection, so reading
+     * is suspended until the session has consumed the buffer.
+     */
+    @Test
+    public void testLargeMessage() throws Exception {
+        StringBuilder content = new StringBuilder("Subject: large\r\n\r\n");
+        for (int i = 0; i < 5000; i++) {
+            content.append("line ").append(i).append(" of a message larger than the input buffer\r\n");
+        }
+        SmartClient client = new SmartClient("localhost", PORT, "localhost");
+        for (int i = 0; i < 2; i++) {
+            client.from("john@example.com");
+            client.to("jane@example.com");
+            client.dataStart();
+            byte[] body = TextUtils.getAsciiBytes(content.toString());
+            client.dataWrite(body, body.length);
+            client.dataEnd();
+        }
+        client.quit();
+
+        List<WiserMessage> messages = wiser.getMessages();
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(1).toString().endsWith("line 4999 of a message larger than the input buffer\r\n"));
+    }
+
+    @Test
+    public void testPipelinedCommandsInOnePacket() throws Exception {
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        client.send("HELO foo.com\r\nMAIL FROM: <a@example.com>\r\nRCPT TO: <b@example.com>\r\nDATA");
+        client.expect("250");
+        client.expect("250");
+        client.expect("250");
+        client.expect("354");
+        client.send("hello\r\n.\r\nQUIT");
+        client.expect("250");
+        client.expect("221");
+        client.close();
+
+        assertEquals(1, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testManyIdleConnections() throws Exception {
+        List<SMTPClient> clients = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            SMTPClient client = new SMTPClient("localhost", PORT);
+            client.receiveAndCheck();
+            assertEquals(250, client.sendReceive("HELO foo" + i).getCode());
+            clients.add(client);
+        }
+        for (SMTPClient client : clients) {
+            assertEquals(221, client.sendReceive("QUIT").getCode());
+            client.close();
+        }
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        wiser.getServer().setConnectionTimeout(500);
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        Thread.sleep(2500);
+        client.expect("421");
+        client.close();
+    }
+
+    @Test
+    public void testStopWithOpenConnection() throws Exception {
+        SMTPClient client = new SMTPClient("localhost", PORT);
+        client.receiveAndCheck();
+        assertEquals(250, client.sendReceive("HELO foo").getCode());
+        wiser.stop();
+        client.close();
+        wiser = new Wiser();
+        wiser.setPort(PORT);
+        wiser.getServer().setNonBlocking(true);
+        wiser.start();
+    }
+}
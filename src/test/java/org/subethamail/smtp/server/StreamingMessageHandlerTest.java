@@ -0,0 +1,263 @@
+package org.subethamail.smtp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.subethamail.smtp.AsyncMessageHandler;
+import org.subethamail.smtp.AsyncMessageHandlerFactory;
+import org.subethamail.smtp.BodyPublisher;
+import org.subethamail.smtp.BodySubscriber;
+import org.subethamail.smtp.BodySubscription;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.StreamingMessageHandler;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.MessageHandlerTestCase;
+
+/**
+ * This class tests message handlers which receive the message content as
+ * chunks pushed by the server.
+ */
+public class StreamingMessageHandlerTest extends MessageHandlerTestCase {
+
+    /**
+     * Runs the requests of the subscribers, so the chunks are requested
+     * asynchronously.
+     */
+    private final ExecutorService requester = Executors.newSingleThreadExecutor();
+
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * The number of chunks received before the subscription is cancelled, or
+     * 0.
+     */
+    private volatile int cancelAfter;
+
+    @After
+    public void tearDown() {
+        requester.shutdown();
+    }
+
+    @Test
+    public void testData() throws Exception {
+        startServer(false, true);
+        sendData();
+    }
+
+    @Test
+    public void testDataNonBlocking() throws Exception {
+        startServer(true, true);
+        sendData();
+    }
+
+    @Test
+    public void testReceivedHeader() throws Exception {
+        startServer(false, false);
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        client.send("Subject: test\r\n\r\nbody\r\n.");
+        client.expect("250");
+        client.close();
+
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).startsWith("Received: from foo.com"));
+        assertTrue(messages.get(0).endsWith("\r\nSubject: test\r\n\r\nbody\r\n"));
+    }
+
+    @Test
+    public void testBdat() throws Exception {
+        startServer(false, true);
+        Client client = startTransaction();
+        client.send("BDAT 20\r\nSubject: test\r\n\r\n.");
+        client.send("BDAT 6 LAST\r\nbody");
+        client.expect("250 20 octets received");
+        client.expect("250 Message OK, 26 octets received");
+        client.close();
+
+        assertEquals(Collections.singletonList("Subject: test\r\n\r\n.\r\nbody\r\n"), messages);
+        assertEquals(Collections.emptyList(), failures);
+    }
+
+    /**
+     * The server discards the content which is not delivered after the
+     * subscription is cancelled.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        cancelAfter = 1;
+        startServer(false, true);
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            body.append("line ").append(i).append("\r\n");
+        }
+        client.send(body + ".");
+        client.expect("250");
+        client.send("NOOP");
+        client.expect("250");
+        client.close();
+
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).length() < body.length());
+        assertTrue(body.toString().startsWith(messages.get(0)));
+    }
+
+    /**
+     * The subscriber receives the failure, and the rest of the message is
+     * discarded.
+     */
+    @Test
+    public void testMaxMessageSize() throws Exception {
+        startServer(false, true);
+        server.setMaxMessageSize(1000);
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            body.append("line ").append(i).append("\r\n");
+        }
+        client.send(body + ".");
+        client.expect("552 5.3.4");
+        client.send("NOOP");
+        client.expect("250");
+        client.close();
+
+        assertEquals(Collections.emptyList(), messages);
+    }
+
+    private void sendData() throws Exception {
+        Client client = startTransaction();
+        client.send("DATA");
+        client.expect("354");
+        StringBuilder body = new StringBuilder("Subject: test\r\n\r\n");
+        for (int i = 0; i < 2000; i++) {
+            body.append("line ").append(i).append("\r\n");
+        }
+        client.send(body + "..\r\n..dot\r\n.");
+        client.expect("250");
+        client.send("QUIT");
+        client.expect("221");
+        client.close();
+
+        assertEquals(Collections.singletonList(body + ".\r\n.dot\r\n"), messages);
+        assertEquals(Collections.emptyList(), failures);
+    }
+
+    private void startServer(boolean nonBlocking, boolean disableReceivedHeaders) {
+        SMTPServer server = new SMTPServer(null);
+        server.setNonBlocking(nonBlocking);
+        server.setDisableReceivedHeaders(disableReceivedHeaders);
+        server.setAsyncMessageHandlerFactory(new AsyncMessageHandlerFactory() {
+            @Override
+            public AsyncMessageHandler create(MessageContext ctx) {
+                return new Handler();
+            }
+        });
+        start(server);
+    }
+
+    /**
+     * Collects the chunks, requesting one at a time from another thread.
+     */
+    private class Handler implements StreamingMessageHandler {
+
+        @Override
+        public CompletionStage<Void> from(String from) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletionStage<Void> recipient(String recipient) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletionStage<Void> data(InputStream data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<Void> data(BodyPublisher body) {
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            body.subscribe(new BodySubscriber() {
+                private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                private final AtomicLong demand = new AtomicLong();
+                private BodySubscription subscription;
+                private int chunks;
+
+                @Override
+                public void onSubscribe(BodySubscription subscription) {
+                    this.subscription = subscription;
+                    request();
+                }
+
+                @Override
+                public void onNext(ByteBuffer chunk) {
+                    if (demand.decrementAndGet() < 0) {
+                        failures.add("chunk without demand");
+                    }
+                    byte[] bytes = new byte[chunk.remaining()];
+                    chunk.get(bytes);
+                    content.write(bytes, 0, bytes.length);
+                    if (++chunks == cancelAfter) {
+                        subscription.cancel();
+                        complete();
+                    } else {
+                        request();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable failure) {
+                    result.completeExceptionally(failure);
+                }
+
+                @Override
+                public void onComplete() {
+                    complete();
+                }
+
+                private void request() {
+                    requester.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            demand.incrementAndGet();
+                            subscription.request(1);
+                        }
+                    });
+                }
+
+                private void complete() {
+                    try {
+                        messages.add(content.toString("US-ASCII"));
+                    } catch (UnsupportedEncodingException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    result.complete(null);
+                }
+            });
+            return result;
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+}
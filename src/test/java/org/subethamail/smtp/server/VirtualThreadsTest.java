@@ -0,0 +1,69 @@
+package org.subethamail.smtp.server;
+
+import java.util.concurrent.Executors;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
+import org.subethamail.smtp.util.TextUtils;
+import org.subethamail.wiser.Wiser;
+
+/**
+ * This class tests running sessions in virtual threads. Most tests only run on
+ * Java 21 or later.
+ */
+public class VirtualThreadsTest {
+
+    /**
+     *
+     */
+    public static final int PORT = 2566;
+
+    @Test
+    public void testMailInVirtualThread() throws Exception {
+        assumeTrue(SMTPServer.isVirtualThreadsSupported());
+        sendMail(false);
+    }
+
+    @Test
+    public void testNonBlockingWithVirtualThreads() throws Exception {
+        assumeTrue(SMTPServer.isVirtualThreadsSupported());
+        sendMail(true);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnsupported() {
+        assumeTrue(!SMTPServer.isVirtualThreadsSupported());
+        new Wiser().getServer().setVirtualThreads(true);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSuppliedExecutor() {
+        SMTPServer server = new SMTPServer(new SimpleMessageListenerAdapter(new Wiser()), null,
+                Executors.newSingleThreadExecutor());
+        server.setVirtualThreads(true);
+    }
+
+    private void sendMail(boolean nonBlocking) throws Exception {
+        Wiser wiser = new Wiser();
+        wiser.setPort(PORT);
+        wiser.getServer().setVirtualThreads(true);
+        wiser.getServer().setNonBlocking(nonBlocking);
+        wiser.start();
+        try {
+            SmartClient client = new SmartClient("localhost", PORT, "localhost");
+            client.from("john@example.com");
+            client.to("jane@example.com");
+            client.dataStart();
+            byte[] body = TextUtils.getAsciiBytes("Subject: test\r\n\r\nbody\r\n");
+            client.dataWrite(body, body.length);
+            client.dataEnd();
+            client.quit();
+
+            assertEquals(1, wiser.getMessages().size());
+        } finally {
+            wiser.stop();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.subethamail.smtp.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.util.Client;
+import org.subethamail.smtp.util.MessageHandlerTestCase;
+
+/**
+ * This class tests the deduplication and reference counting of the content
+ * store.
+ */
+public class ContentStoreTest extends MessageHandlerTestCase {
+
+    private static final String BODY = "first line\r\nsecond line\r\nthird line\r\n";
+
+    private static final String MESSAGE1 = "Subject: one\r\n\r\n" + BODY;
+
+    private static final String MESSAGE2 = "Subject: two\r\n\r\n" + BODY;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("store");
+    }
+
+    @Test
+    public void testSharedBody() throws Exception {
+        ContentStore store = new ContentStore(dir, 16);
+        StoredDelivery one = store(store, MESSAGE1, "jane@example.com").get(0);
+        long written = store.getChunksWritten();
+        StoredDelivery two = store(store, MESSAGE2, "joe@example.com").get(0);
+
+        assertEquals(one.getBodyHash(), two.getBodyHash());
+        assertNotEquals(one.getHeadersHash(), two.getHeadersHash());
+        assertEquals(BODY.length(), two.getBodyLength());
+        assertEquals(1, store.getBodyCount());
+        // only the second header block is new
+        assertEquals(written + 1, store.getChunksWritten());
+        assertEquals(MESSAGE1, read(store, one));
+        assertEquals(MESSAGE2, read(store, two));
+    }
+
+    @Test
+    public void testRecipients() throws Exception {
+        ContentStore store = new ContentStore(dir);
+        List<StoredDelivery> deliveries = store(store, MESSAGE1, "jane@example.com", "joe@example.com");
+
+        assertEquals(2, deliveries.size());
+        assertEquals(2, store.getDeliveries().size());
+        assertEquals(1, store.getDeliveries("JOE@example.com").size());
+        assertEquals("john@example.com", deliveries.get(1).getFrom());
+        // the header block and the single body chunk
+        assertEquals(2, store.getChunkCount());
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        ContentStore store = new ContentStore(dir, 16);
+        StoredDelivery one = store(store, MESSAGE1, "jane@example.com").get(0);
+        StoredDelivery two = store(store, MESSAGE2, "joe@example.com").get(0);
+
+        assertTrue(store.delete(one));
+        assertFalse(store.delete(one));
+        assertEquals(1, store.getBodyCount());
+        assertEquals(MESSAGE2, read(store, two));
+
+        assertTrue(store.delete(two));
+        assertEquals(0, store.getBodyCount());
+        assertEquals(0, store.getChunkCount());
+        assertEquals(0, countFiles(dir));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        ContentStore store = new ContentStore(dir, 16);
+        store(store, MESSAGE1, "jane@example.com", "joe@example.com");
+        int chunks = store.getChunkCount();
+
+        ContentStore reopened = new ContentStore(dir, 16);
+        List<StoredDelivery> deliveries = reopened.getDeliveries("jane@example.com");
+        assertEquals(1, deliveries.size());
+        assertEquals(2, reopened.getDeliveries().size());
+        assertEquals(chunks, reopened.getChunkCount());
+        assertEquals(MESSAGE1, read(reopened, deliveries.get(0)));
+
+        StoredDelivery two = store(reopened, MESSAGE2, "jane@example.com").get(0);
+        assertEquals(1, reopened.getBodyCount());
+        for (StoredDelivery delivery : reopened.getDeliveries()) {
+            reopened.delete(delivery);
+        }
+        assertEquals(0, countFiles(dir));
+        assertFalse(reopened.delete(two));
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        ContentStore store = new ContentStore(dir);
+        start(new SMTPServer(new DeduplicatingMessageHandlerFactory(store)));
+        for (int i = 0; i < 2; i++) {
+            Client client = startTransaction();
+            client.send("RCPT TO: <joe@example.com>");
+            client.expect("250");
+            client.send("DATA");
+            client.expect("354");
+            client.send("Subject: test " + i + "\r\n\r\n" + BODY + ".");
+            client.expect("250");
+            client.close();
+        }
+
+        assertEquals(4, store.getDeliveries().size());
+        assertEquals(1, store.getBodyCount());
+        assertEquals(2, store.getDeliveries("jane@example.com").size());
+        for (StoredDelivery delivery : store.getDeliveries()) {
+            assertTrue(read(store, delivery).endsWith("\r\n\r\n" + BODY));
+        }
+    }
+
+    private static List<StoredDelivery> store(ContentStore store, String message, String... recipients)
+            throws IOException {
+        return store.store("john@example.com", Arrays.asList(recipients),
+                new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String read(ContentStore store, StoredDelivery delivery) throws IOException {
+        try (InputStream in = store.open(delivery)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * @return the number of files below the directory, without directories
+     */
+    private static int countFiles(File dir) {
+        int count = 0;
+        for (File file : dir.listFiles()) {
+            count += file.isDirectory() ? countFiles(file) : 1;
+        }
+        return count;
+    }
+}
@@ -70,7 +70,7 @@ public class Client {
      * Get the complete response, including a multiline response. Newlines are
      * included.
      */
-    protected String readResponse() throws Exception {
+    public String readResponse() throws Exception {
         StringBuilder builder = new StringBuilder();
         boolean done = false;
         while (!done) {
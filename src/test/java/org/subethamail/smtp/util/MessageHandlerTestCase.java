@@ -0,0 +1,86 @@
+package org.subethamail.smtp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.subethamail.smtp.server.SMTPServer;
+
+/**
+ * A base class for tests which run a server with their own message handlers
+ * and talk to it at the raw protocol level. The server is stopped after each
+ * test.
+ */
+public abstract class MessageHandlerTestCase {
+
+    /**
+     *
+     */
+    public static final int PORT = 2566;
+
+    /**
+     * The server of the current test, or null if it was not started.
+     */
+    protected SMTPServer server;
+
+    /**
+     * The messages collected by the handlers of the test.
+     */
+    protected final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     *
+     */
+    @After
+    public void stopServer() {
+        if (this.server != null) {
+            this.server.stop();
+        }
+    }
+
+    /**
+     * Starts the server on the test port.
+     */
+    protected void start(SMTPServer server) {
+        this.server = server;
+        server.setPort(PORT);
+        server.setHostName("localhost");
+        server.start();
+    }
+
+    /**
+     * Connects to the server and starts a mail transaction from
+     * john@example.com to jane@example.com.
+     *
+     * @return the client, ready to send the message content
+     */
+    protected Client startTransaction() throws Exception {
+        Client client = new Client("localhost", PORT);
+        client.expect("220");
+        client.send("EHLO foo.com");
+        client.expectContains("250 Ok");
+        client.send("MAIL FROM: <john@example.com>");
+        client.expect("250");
+        client.send("RCPT TO: <jane@example.com>");
+        client.expect("250");
+        return client;
+    }
+
+    /**
+     * Reads a stream to its end.
+     *
+     * @return the content as US-ASCII
+     */
+    protected static String read(InputStream data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = data.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("US-ASCII");
+    }
+}